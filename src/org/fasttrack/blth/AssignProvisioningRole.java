@@ -1,43 +1,78 @@
 package org.fasttrack.blth;
 
-import org.apache.commons.logging.Log; 
+import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import com.netegrity.imapi.BLTHAdapter;
 import com.netegrity.imapi.BLTHContext;
+import com.netegrity.llsdk6.imsapi.exception.NoSuchObjectException;
 import com.netegrity.llsdk6.imsapi.managedobject.Role;
 import com.netegrity.llsdk6.imsapi.managedobject.User;
 import com.netegrity.llsdk6.imsapi.provider.ProvisioningRoleProvider;
+import org.fasttrack.util.ProvisioningRoleResolver;
+import org.fasttrack.util.ProvisioningRoleResolver.Resolution;
+import org.fasttrack.util.RoleMembership;
+
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
 /**
- * Assigns Provisioning Role to users during any CreateUser and ModifyUser task 
+ * Assigns Provisioning Roles to users during any CreateUser and ModifyUser task
  * based upon user attribute values. The class was developed before and subsequently
- * replaced by the AssignProvisioningRole event listener. It remains as a 
+ * replaced by the AssignProvisioningRole event listener. It remains as a
  * working example of assigning a Provisioning Role thru a BLTH.
- * <p> 
+ * <p>
  * The BLTH takes the value of eTCustomField52 from the userform, determines
- * whether a Provisioning Role exists in the system by the same name, and 
- * assigns the Provisioning Role. Keep in mind that the attribute value is 
- * assumed to be a single Provisioning Role name whereas the event listener
- * is designed to take a comma-delimited list of names.
+ * whether a Provisioning Role exists in the system by the same name, and
+ * assigns the Provisioning Role. The attribute value may be a single Provisioning
+ * Role name or a list of names separated by commas or line breaks; duplicate names
+ * are ignored. All the roles are looked up in one pass, in parallel if configured,
+ * and the missing memberships are then assigned one after the other in the same session.
+ * Unlike the event listener, roles are never removed.
  * <p>
  * The BLTH does not display error messages to the requestor on the userform
  * as designed. Instead the errors will be displayed in the View Submitted Tasks
  * view. We decided not to allow errors in the BLTH to stop the form submission.
- * 
+ * A role that fails does not stop the other roles from being assigned; the failures
+ * are reported together once all roles were processed.
+ * <h3>User-Defined Properties</h3>
+ * <ul>
+ * <li><b>ROLE_LOOKUP_THREADS</b> - Optional. Number of Provisioning Role lookups to run in
+ * parallel. Default is 1; that is, one at a time. CA Identity Manager does not document the
+ * Provisioning Role provider of the task as safe to call from several threads, so values
+ * above 1 are opt-in; try them under load first.
+ * </ul>
+ *
  * @author      Lester Rivera
  * @version     %I%, %G%
  * @since       CA Identity Manager 12.0 CR7
  * @see 		org.fasttrack.evt.AssignProvisioningRole
  */
-public class AssignProvisioningRole extends BLTHAdapter {
+public class AssignProvisioningRole extends ValidationBLTHAdapter {
 
     private static final Log logger = LogFactory.getLog(AssignProvisioningRole.class);
+    private ProvisioningRoleResolver resolver = new ProvisioningRoleResolver(ProvisioningRoleResolver.DEFAULT_THREADS);
+    /**
+     * The init method allows retrieval of BLTH-specific properties.
+     * Using properties promotes re-usable code since business logic can
+     * be different for each task you assign the BLTH to.
+     */
+    public void init(Hashtable imeProperties) throws Exception {
+        super.init(imeProperties);
+        // Properties from the BLTH settings
+        int threads = ProvisioningRoleResolver.parseThreads((String)imeProperties.get("ROLE_LOOKUP_THREADS"));
+
+        resolver.shutdown();
+        resolver = new ProvisioningRoleResolver(threads);
+
+        logger.debug("AssignProvisioningRole BLTH properties: ");
+        logger.debug("- ROLE_LOOKUP_THREADS: " + threads);
+    }
     /**
      * Use the handleValidation trigger because it allows adding new events and
      * attribute values to the task before it is submitted into the engine.
-     * @exception Exception If the assigning the Provisioning Role to the user fails.
+     * @exception Exception If the assigning of one or more Provisioning Roles to the user fails.
      */
-    public void handleValidation(BLTHContext blthContext) throws Exception {
+    protected void validate(BLTHContext blthContext) throws Exception {
         logger.debug("Retrieving User Record Information.");
         String funcRole = "";
         // Retrieve the user object from context object
@@ -49,34 +84,59 @@ public class AssignProvisioningRole extends BLTHAdapter {
         if (userObj != null) {
             String userID = userObj.getFriendlyName();
             logger.debug("User is: " + userID);
-            
+
             // Retrieve the user attribute
             if (userObj.containsAttribute("eTCustomField52")) {
-                funcRole = userObj.getAttribute("eTCustomField52"); //Functional Role
+                funcRole = userObj.getAttribute("eTCustomField52"); //Functional Roles
                 logger.debug("eTCustomField52 is: " + funcRole);
             } else {
                 logger.warn("No value available for eTCustomField52.");
             }
-        	
 
+            List<String> roleNames = ProvisioningRoleResolver.parseRoleNames(funcRole);
+            if (roleNames.isEmpty()) {
+                logger.info("No Functional Role assigned to user " + userID);
+                return;
+            }
+
+            List<String> failures = new ArrayList<String>();
             try {
-                // get a Provisioning Role object
+                // Look up all the Provisioning Roles in one pass
                 ProvisioningRoleProvider pRoleProvider = blthContext.getProvisioningRoleProvider();
                 logger.debug("retrieved the ProvisioningRoleProvider.");
-                Role pRoleObject = pRoleProvider.findProvisioningRole(funcRole.trim());
-                
-                if (pRoleObject == null) {
-                    logger.info("No Provisioning Role matches the assigned Functional Role.");
-                } else {
-                	// Only provisioning the role if not previously assigned
-                    if (!userObj.isRoleMember(pRoleObject)) {
+                long start = System.currentTimeMillis();
+                List<Resolution> resolved = resolver.resolve(pRoleProvider, roleNames);
+                logger.debug("Resolved " + resolved.size() + " Provisioning Roles in " + (System.currentTimeMillis() - start) + " ms.");
+
+                // Only provisioning the roles if not previously assigned
+                RoleMembership membership = RoleMembership.fetch(userObj);
+                String sessionId = blthContext.getSessionId();
+                for (Resolution resolution : resolved) {
+                    String roleName = resolution.getName();
+                    if (resolution.getError() != null && !(resolution.getError() instanceof NoSuchObjectException)) {
+                        logger.warn("Failed to find the Provisioning Role - " + roleName + " - in " + resolution.getElapsedMillis() + " ms: " + resolution.getError().getMessage());
+                        failures.add(roleName + " (" + resolution.getError().getMessage() + ")");
+                        continue;
+                    }
+                    if (!resolution.isFound()) {
+                        logger.info("No Provisioning Role matches the assigned Functional Role - " + roleName);
+                        continue;
+                    }
+                    Role pRoleObject = resolution.getRole();
+                    if (membership.isMember(pRoleObject)) {
+                        logger.info("The user " + userID + " is already a member of the Provisioning Role - " + pRoleObject.getFriendlyName());
+                        continue;
+                    }
+                    try {
                         // Assigns the provisioning role to the user by adding to the user's role memberlist
-                        String sessionId = blthContext.getSessionId();
                         logger.debug("Assigning Provisioning Role - " + pRoleObject.getFriendlyName() + " - to User: " + userObj.getFriendlyName() + " for " + sessionId);
+                        long assignStart = System.currentTimeMillis();
                         userObj.makeRoleMember(pRoleObject, true, sessionId);
-                        logger.info("Provisioning Role - " + pRoleObject.getFriendlyName() + " - assigned to user " + userID);
-                    } else {
-                        logger.info("The user " + userID + " is already a member of the Provisioning Role - " + pRoleObject.getFriendlyName());
+                        logger.info("Provisioning Role - " + pRoleObject.getFriendlyName() + " - assigned to user " + userID
+                                + " (lookup " + resolution.getElapsedMillis() + " ms, assign " + (System.currentTimeMillis() - assignStart) + " ms)");
+                    } catch (Exception ex) {
+                        logger.warn("Failed to assign the Provisioning Role - " + roleName + " - to user " + userID + ": " + ex.getMessage());
+                        failures.add(roleName + " (" + ex.getMessage() + ")");
                     }
                 }
             } catch (Exception ex) {
@@ -84,9 +144,13 @@ public class AssignProvisioningRole extends BLTHAdapter {
                 logger.debug("Exception Message: " + ex.getMessage());
                 throw ex;
             } //Try/ Catch
+
+            if (!failures.isEmpty()) {
+                throw new Exception("Failed to assign " + failures.size() + " of " + roleNames.size()
+                        + " Provisioning Roles to user " + userID + ": " + failures);
+            }
         } else {
             logger.warn("Failed to get the user's unique name (UserID). No provisioning role assigned.");
         }
     } //handleValidation
 }
-
@@ -0,0 +1,345 @@
+package org.fasttrack.blth;
+
+import org.fasttrack.util.Deadline;
+import org.fasttrack.util.UserAttributes;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.netegrity.imapi.BLTHAdapter;
+import com.netegrity.imapi.BLTHContext;
+import com.netegrity.ims.exception.IMSException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+/**
+ * Business Logic Task Handler (BLTH) class which runs other BLTHs, the stages, as one
+ * handler. The stages that do not depend on each other run in parallel, so the time to
+ * validate the userform is that of the longest chain of dependent stages rather than
+ * the sum of all of them. For example, the previous user record search, the manager
+ * lookup in Active Directory and the LANID uniqueness search are independent, while
+ * the fullname may be needed before the previous user record search.
+ * <p>
+ * The stages are listed in order in the STAGES property, and each stage may only wait
+ * for stages listed before it. A stage starts as soon as the stages it waits for are done.
+ * <p>
+ * The stages share the user attributes of the submission (see {@link UserAttributes}),
+ * but each stage keeps the values it sets to itself until it is done. The values are then
+ * merged, and a stage sees the values of the stages it waits for. When two stages set the
+ * same attribute, the value of the stage listed last is kept, whatever stage finishes first.
+ * The values are written to the user object once all the stages succeeded. Stages that write
+ * to the user object directly, rather than through {@link UserAttributes}, must wait for the
+ * stages that read the same attributes.
+ * <p>
+ * When stages fail, the stages that do not wait for them still run, and the messages of all
+ * the failed stages are displayed together in the userform. The stages that wait for a failed
+ * stage are skipped.
+ * <h3>Thread Safety</h3>
+ * CA Identity Manager does not document the BLTH context, the user object or the providers
+ * as safe to use from several threads, and the stages run on threads of this BLTH while the
+ * task waits. Only the stage classes that read and set the user attributes through
+ * {@link UserAttributes}, which serializes the calls to the user object, may be listed:
+ * <ul>
+ * <li>org.fasttrack.blth.FormatFullname
+ * <li>org.fasttrack.blth.GenerateCID
+ * <li>org.fasttrack.blth.GenerateLANID
+ * <li>org.fasttrack.blth.SetManagerAttributes
+ * <li>org.fasttrack.blth.VerifyNoPreviousUserRecord - the only stage that searches with the
+ * user provider of the context, so the provider is never called from two threads at once.
+ * </ul>
+ * The other BLTHs, which use the user object, the administrator or the role provider
+ * directly, must be associated with the task on their own.
+ * <h3>User-Defined Properties</h3>
+ * <ul>
+ * <li><b>STAGES</b> - Comma-delimited list of stage names, in order. For example,
+ * FULLNAME,PREVIOUS,MANAGER,LANID
+ * <li><b>&lt;stage&gt;.CLASS</b> - The BLTH class of the stage. For example,
+ * org.fasttrack.blth.FormatFullname
+ * <li><b>&lt;stage&gt;.AFTER</b> - Optional. Comma-delimited list of the stages to wait for.
+ * For example, PREVIOUS.AFTER=FULLNAME
+ * <li><b>&lt;stage&gt;.&lt;property&gt;</b> - The properties of the stage BLTH, without the prefix.
+ * For example, LANID.EMAIL_DOMAIN=company.com
+ * <li><b>STAGE_TIMEOUT</b> - Optional. Milliseconds allowed to run all the stages. Default is 30000.
+ * The stages are also bound by the deadline of the BLTH invocation (see {@link Deadline}).
+ * </ul>
+ * @author 		Lester Rivera
+ * @version     %I%, %G%
+ * @since       CA Identity Manager 12.0 CR7
+ * @see 		org.fasttrack.util.UserAttributes
+ */
+public class CompositeValidation extends ValidationBLTHAdapter {
+    private static final Log logger = LogFactory.getLog(CompositeValidation.class);
+    private static final AtomicInteger threads = new AtomicInteger();
+    // The BLTHs that only use the user object through UserAttributes; see Thread Safety
+    private static final Set<String> STAGE_CLASSES = new HashSet<String>(Arrays.asList(
+            FormatFullname.class.getName(), GenerateCID.class.getName(), GenerateLANID.class.getName(),
+            SetManagerAttributes.class.getName(), VerifyNoPreviousUserRecord.class.getName()));
+    // Set once by init
+    private List<Stage> stages = new ArrayList<Stage>();
+    private long timeout = 30000;
+    private String configError = null;
+    private ExecutorService executor = null;
+    /**
+     * The init method allows retrieval of BLTH-specific properties.
+     * Using properties promotes re-usable code since business logic can
+     * be different for each task you assign the BLTH to.
+     */
+    public void init(Hashtable imeProperties) throws Exception {
+        super.init(imeProperties);
+        // Stop the threads of the previous settings; the stages are created again, but a
+        // stage of the same name and class keeps its handler, so it releases its own resources
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+        Map<String, Stage> previousStages = new HashMap<String, Stage>();
+        for (Stage stage : stages) {
+            previousStages.put(stage.name, stage);
+        }
+        stages = new ArrayList<Stage>();
+        configError = null;
+        timeout = 30000;
+        // Properties from the BLTH settings
+        String stageNames = (String)imeProperties.get("STAGES");
+        String stageTimeout = (String)imeProperties.get("STAGE_TIMEOUT");
+        if (stageTimeout != null && !stageTimeout.trim().isEmpty()) {
+            timeout = Long.parseLong(stageTimeout.trim());
+        }
+        logger.debug("CompositeValidation BLTH properties: ");
+        logger.debug("- STAGES: " + stageNames);
+        logger.debug("- STAGE_TIMEOUT: " + timeout);
+
+        if (stageNames == null || stageNames.trim().isEmpty()) {
+            configError = "The STAGES property is required.";
+            return;
+        }
+        Map<String, Stage> byName = new HashMap<String, Stage>();
+        for (String entry : stageNames.split(",")) {
+            String name = entry.trim();
+            if (name.isEmpty()) {
+                continue;
+            }
+            if (byName.containsKey(name)) {
+                configError = "Stage " + name + " is listed twice.";
+                return;
+            }
+            String className = (String)imeProperties.get(name + ".CLASS");
+            if (className == null || className.trim().isEmpty()) {
+                configError = "The " + name + ".CLASS property is required.";
+                return;
+            }
+            if (!STAGE_CLASSES.contains(className.trim())) {
+                configError = "Stage " + name + " cannot run " + className.trim() + " in parallel.";
+                return;
+            }
+            Stage stage = new Stage(name, stages.size());
+            String after = (String)imeProperties.get(name + ".AFTER");
+            if (after != null) {
+                for (String dependency : after.split(",")) {
+                    if (dependency.trim().isEmpty()) {
+                        continue;
+                    }
+                    Stage previous = byName.get(dependency.trim());
+                    if (previous == null) {
+                        // Only stages listed before, so the stages cannot wait for each other
+                        configError = "Stage " + name + " waits for " + dependency.trim() + ", which is not listed before it.";
+                        return;
+                    }
+                    stage.after.add(previous);
+                }
+            }
+            try {
+                Stage previous = previousStages.get(name);
+                if (previous != null && previous.handler.getClass().getName().equals(className.trim())) {
+                    stage.handler = previous.handler;
+                } else {
+                    stage.handler = (BLTHAdapter)Class.forName(className.trim()).getDeclaredConstructor().newInstance();
+                }
+                stage.handler.init(stageProperties(imeProperties, name));
+            } catch (Exception ex) {
+                logger.error("Unable to create stage " + name + " (" + className + "): " + ex.getMessage());
+                configError = "Unable to create stage " + name + ".";
+                return;
+            }
+            logger.debug("- Stage " + name + ": " + className.trim() + (after == null ? "" : " after " + after));
+            byName.put(name, stage);
+            stages.add(stage);
+        }
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "CompositeValidation-" + threads.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+    /**
+     * Use the handleValidation trigger because it allows adding new events and
+     * attribute values to the task before it is submitted into the engine.
+     * @exception IMSException With the messages of all the stages that failed, or if the
+     * BLTH is not configured properly.
+     */
+    protected void validate(final BLTHContext blthContext) throws Exception {
+        if (configError != null) {
+            // Displays the error in the userform and stops the form submission
+            // if the BLTH is improperly configured.
+            IMSException imsEx = new IMSException();
+            logger.warn("CompositeValidation is not configured properly. " + configError);
+            imsEx.addUserMessage("CompositeValidation is not configured properly. " + configError);
+            throw imsEx;
+        }
+        final UserAttributes attributes = UserAttributes.forRequest(blthContext);
+        if (attributes == null) {
+            // this message will be presented on the screen
+            IMSException imsEx = new IMSException();
+            logger.error("Unable to retrieve the user record.");
+            imsEx.addUserMessage("Unable to retrieve the user record.");
+            throw imsEx;
+        }
+        long start = System.currentTimeMillis();
+        // The stages get the deadline of the composite on their own threads
+        final Deadline deadline = Deadline.current();
+        // The stage that set each attribute, so the last listed stage wins
+        final Map<String, Integer> writers = new HashMap<String, Integer>();
+        final Map<Stage, Future<Boolean>> results = new HashMap<Stage, Future<Boolean>>();
+        // Listed order, so a stage is submitted after the stages it waits for
+        for (final Stage stage : stages) {
+            final List<Future<Boolean>> waitFor = new ArrayList<Future<Boolean>>();
+            for (Stage previous : stage.after) {
+                waitFor.add(results.get(previous));
+            }
+            results.put(stage, executor.submit(new Callable<Boolean>() {
+                public Boolean call() throws Exception {
+                    for (Future<Boolean> previous : waitFor) {
+                        boolean done;
+                        try {
+                            // False for a stage that was skipped itself
+                            done = previous.get().booleanValue();
+                        } catch (Exception ex) {
+                            // The failed stage reports the error
+                            done = false;
+                        }
+                        if (!done) {
+                            logger.debug("Stage " + stage.name + " skipped; a stage it waits for failed.");
+                            return Boolean.FALSE;
+                        }
+                    }
+                    return Boolean.valueOf(runStage(stage, blthContext, attributes, writers, deadline));
+                }
+            }));
+        }
+
+        // Wait for all the stages, collecting the messages in the listed order
+        Set<String> messages = new LinkedHashSet<String>();
+        long until = start + Deadline.timeout("CompositeValidation stages", timeout);
+        for (Stage stage : stages) {
+            Future<Boolean> result = results.get(stage);
+            try {
+                result.get(Math.max(until - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException ex) {
+                result.cancel(true);
+                logger.warn("Stage " + stage.name + " did not complete within " + timeout + " ms.");
+                messages.add("The validation of the task did not complete in time. Please try again.");
+            } catch (CancellationException ex) {
+                messages.add("The validation of the task did not complete in time. Please try again.");
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof IMSException) {
+                    for (Object message : ((IMSException)cause).getUserMessages(Locale.getDefault())) {
+                        messages.add(String.valueOf(message));
+                    }
+                } else {
+                    logger.error("Stage " + stage.name + " failed: " + cause);
+                    messages.add("Unable to complete the validation of the task.");
+                }
+            }
+        }
+        logger.info("Ran " + stages.size() + " stages in " + (System.currentTimeMillis() - start) + " ms; "
+                + messages.size() + " errors.");
+        if (!messages.isEmpty()) {
+            IMSException imsEx = new IMSException();
+            for (String message : messages) {
+                imsEx.addUserMessage(message);
+            }
+            throw imsEx;
+        }
+        // All the stages succeeded; write the merged values once
+        attributes.flush();
+    }
+
+    // Runs a stage on its own fork of the attributes, and merges the values it set
+    private boolean runStage(Stage stage, BLTHContext blthContext, UserAttributes attributes,
+            Map<String, Integer> writers, Deadline deadline) throws Exception {
+        UserAttributes fork = attributes.fork();
+        fork.attach();
+        Deadline stageDeadline = Deadline.start(stage.name, timeout, deadline);
+        long start = System.currentTimeMillis();
+        try {
+            stage.handler.handleValidation(blthContext);
+        } finally {
+            stageDeadline.end();
+            UserAttributes.detach();
+            logger.debug("Stage " + stage.name + " ran in " + (System.currentTimeMillis() - start) + " ms.");
+        }
+        synchronized (writers) {
+            Iterator<Map.Entry<String, String>> it = fork.getChanges().entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, String> change = it.next();
+                Integer writer = writers.get(change.getKey());
+                if (writer != null) {
+                    logger.warn("Stages " + stages.get(writer.intValue()).name + " and " + stage.name
+                            + " both set " + change.getKey() + "; the value of the stage listed last is kept.");
+                    if (writer.intValue() > stage.index) {
+                        continue;
+                    }
+                }
+                attributes.set(change.getKey(), change.getValue());
+                writers.put(change.getKey(), Integer.valueOf(stage.index));
+            }
+        }
+        return true;
+    }
+
+    // The properties of a stage, without the stage prefix
+    private static Hashtable<Object, Object> stageProperties(Hashtable<?, ?> imeProperties, String name) {
+        Hashtable<Object, Object> properties = new Hashtable<Object, Object>();
+        String prefix = name + ".";
+        for (Object key : imeProperties.keySet()) {
+            if (key instanceof String && ((String)key).startsWith(prefix)) {
+                properties.put(((String)key).substring(prefix.length()), imeProperties.get(key));
+            }
+        }
+        return properties;
+    }
+
+    private static class Stage {
+        final String name;
+        final int index;
+        final List<Stage> after = new ArrayList<Stage>();
+        BLTHAdapter handler;
+
+        Stage(String name, int index) {
+            this.name = name;
+            this.index = index;
+        }
+    }
+}
@@ -3,12 +3,13 @@ package org.fasttrack.blth;
 import org.apache.commons.logging.Log; 
 import org.apache.commons.logging.LogFactory;
 
-import com.netegrity.imapi.BLTHAdapter;
 import com.netegrity.imapi.BLTHContext;
+import org.fasttrack.util.UserAttributes;
 import com.netegrity.sdk.apiutil.SmApiException;
 import com.netegrity.llsdk6.imsapi.managedobject.User;
 import com.netegrity.ims.exception.IMSException;
 import java.util.Hashtable;
+import java.util.regex.Matcher;
 /**
  * Formats the fullname field according to the provided format template. 
  * An override mechanism is supported when a value is placed in the 
@@ -28,9 +29,10 @@ import java.util.Hashtable;
  * @version     %I%, %G%
  * @since       CA Identity Manager 12.0
  */
-public class FormatFullname extends BLTHAdapter {
+public class FormatFullname extends ValidationBLTHAdapter {
     private static final Log logger = LogFactory.getLog(FormatFullname.class);
     
+    // Set once by init; the template is never modified by a request
     private String formatString = "<<last>>, <<first>>";
     private boolean useInitial = false;
     /**
@@ -41,10 +43,13 @@ public class FormatFullname extends BLTHAdapter {
     public void init(Hashtable imeProperties) throws Exception {
         super.init(imeProperties);
         // Properties from the BLTH settings
-        formatString = (String)imeProperties.get("FORMAT");
+        String format = (String)imeProperties.get("FORMAT");
         String useInit = (String)imeProperties.get("USE_INITIAL");
  
-        if (useInit.equalsIgnoreCase("true")){
+        if (format != null && !format.isEmpty()) {
+            formatString = format;
+        }
+        if (useInit != null && useInit.equalsIgnoreCase("true")){
             useInitial = true;
         }
         logger.debug("FormatFullname BLTH properties: ");
@@ -56,7 +61,7 @@ public class FormatFullname extends BLTHAdapter {
      * attribute values to the task before it is submitted into the engine.
      * @exception 	IMSException If setting the fullname attribute fails. 
      */
-    public void handleValidation(BLTHContext blthContext) throws Exception {
+    protected void validate(BLTHContext blthContext) throws Exception {
         
         logger.debug("Retrieving User Information to generate Fullname.");
         // get current users information
@@ -66,33 +71,20 @@ public class FormatFullname extends BLTHAdapter {
         // its a good idea to check the user object before attempting to modify it.
         // Oddly enough, reading from the user object does not generate the  errors.
         if (changeUser != null) {
-            // Retrieve first name
-            // This is an example of the best way to retrieve fields;
-            // that is, determine if the userform contains the attribute
-            // then get the attribute.
-            String firstName = "";
-            if (changeUser.containsAttribute("%FIRST_NAME%")) {
-                firstName = changeUser.getAttribute("%FIRST_NAME%"); //First Name
-            }
+            // Retrieve the fields from the attributes shared with the other BLTHs
+            // of the task; each attribute is read from the userform only once.
+            UserAttributes attributes = UserAttributes.forRequest(blthContext);
+            String firstName = attributes.get("%FIRST_NAME%"); //First Name
             // Retrieve middle name
-            String middleName = "";
-            if (changeUser.containsAttribute("eTMiddleInitial")) {
-                middleName = changeUser.getAttribute("eTMiddleInitial"); //Middle Name
-            }
+            String middleName = attributes.get("eTMiddleInitial"); //Middle Name
             // Determine if to use the middle initial only
             if (useInitial && !middleName.isEmpty()){
                 middleName = middleName.substring(0, 1);
             }
             // Retrieve last name
-            String lastName = "";
-            if (changeUser.containsAttribute("%LAST_NAME%")) {
-                lastName = changeUser.getAttribute("%LAST_NAME%"); //Last Name
-            }
+            String lastName = attributes.get("%LAST_NAME%"); //Last Name
             // Retrieve full name
-            String fullName = "";
-            if (changeUser.containsAttribute("%FULL_NAME%")) {
-                fullName = changeUser.getAttribute("%FULL_NAME%"); //Full Name
-            }
+            String fullName = attributes.get("%FULL_NAME%"); //Full Name
             
             logger.debug("Finding user attributes: ");
             logger.debug("- First Name: " + firstName);
@@ -105,12 +97,13 @@ public class FormatFullname extends BLTHAdapter {
                     String firstTemplate = "<<first>>";
                     String middleTemplate = "<<middle>>";
                     String lastTemplate = "<<last>>";
-                    // Replace the template values
-                    formatString = formatString.replaceAll(firstTemplate, firstName.trim());
-                    formatString = formatString.replaceAll(middleTemplate, middleName.trim());
-                    fullName = formatString.replaceAll(lastTemplate, lastName.trim());
+                    // Replace the template values in a copy of the template
+                    String formatted = formatString.replaceAll(firstTemplate, Matcher.quoteReplacement(firstName.trim()));
+                    formatted = formatted.replaceAll(middleTemplate, Matcher.quoteReplacement(middleName.trim()));
+                    fullName = formatted.replaceAll(lastTemplate, Matcher.quoteReplacement(lastName.trim()));
 
-                    changeUser.setAttribute("%FULL_NAME%", fullName.trim()); 
+                    attributes.set("%FULL_NAME%", fullName.trim());
+                    attributes.flush();
                     logger.debug("fullname is set.");
 
                 } catch (SmApiException ex) {
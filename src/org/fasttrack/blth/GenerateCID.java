@@ -1,16 +1,33 @@
 package org.fasttrack.blth;
 
+import org.fasttrack.util.CIDGenerator;
+import org.fasttrack.util.CounterStore;
+import org.fasttrack.util.IDIndex;
+import org.fasttrack.util.JDBCCounterStore;
+import org.fasttrack.util.LDAPCounterStore;
 import org.fasttrack.util.LDAPUtils;
 
 import org.apache.commons.logging.Log; 
 import org.apache.commons.logging.LogFactory;
 
-import com.netegrity.imapi.BLTHAdapter;
 import com.netegrity.imapi.BLTHContext;
-import com.netegrity.llsdk6.imsapi.managedobject.User;
+import org.fasttrack.util.UserAttributes;
+import org.fasttrack.util.Warmup;
 import com.netegrity.ims.exception.IMSException;
+import com.netegrity.rtl.jce.JSafeTools;
 
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.Hashtable;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
 /**
  * Generate the Unique UserID for Contractors.
  * <p>
@@ -24,30 +41,84 @@ import java.util.Hashtable;
  * is retrieved, incremented, and returned to the LDAP object; however, the transaction is not
  * strictly atomic and - in high-usage situation - collisions can occur.
  * <p>
- * Improved designs could use a database to maintain the counter to ensure an ACID transaction. Or,
+ * Improved designs could use a database to maintain the counter to ensure an ACID transaction;
+ * this is available with the JDBC mode (see {@link JDBCCounterStore}), where numbers are allocated
+ * in blocks through a database sequence or a locked counter row, and handed out from memory. Or,
  * an interesting approach would be to generate a GUID value then check the uniqueness through a
  * query to the CA Identity Manager system.
+ * <p>
+ * The latter is available with the SNOWFLAKE mode. In this mode each CA Identity Manager node
+ * generates the numeric ID on its own from the time, its node ID, and a sequence number (see
+ * {@link CIDGenerator}); there is no counter to read or write, so contractor creates are no
+ * longer serialized through a single LDAP attribute. The values are unique by construction
+ * as long as each node has its own CID_NODE_ID. The uniqueness is verified lazily: when
+ * CID_VERIFY_ATTRIBUTE is set, a background thread searches the LDAP_COUNTER_ENVIRONMENT for
+ * an existing user with the same value after the CID is assigned, and logs an error if one
+ * is found. A single user created after the CID was generated is the user of the task itself
+ * and is not reported; the directory must return createTimestamp for the check to see the
+ * difference. The form submission never waits for that search.
+ * <p>
+ * The SNOWFLAKE values are a different format than the counter values: they are up to 19
+ * digits long, beyond the range of a 32-bit integer, so the attributes and downstream systems
+ * that take the CID must accept such numbers before the mode is enabled. Since every value is
+ * above the int range, the SNOWFLAKE values never repeat a CID handed out by the counter.
+ * <p>
+ * In any mode, CID_ID_INDEX keeps an index of the CIDs of the LDAP_COUNTER_ENVIRONMENT (see
+ * {@link IDIndex}), and a number already assigned in the directory, such as one left behind by
+ * a counter reset or a migration, is skipped without a search.
  * <h3>User-Defined Properties</h3>
  * <ul>
+ * <li><b>CID_MODE</b> - Optional. COUNTER (default) to use the LDAP counter, JDBC to use a
+ * database counter, or SNOWFLAKE to generate the ID locally
  * <li><b>CID_PREFIX</b> - Prefix value to append to the numeric ID
  * <li><b>LDAP_COUNTER_ENVIRONMENT</b> - Environment name of settings configured in ldap.properties
  * <li><b>LDAP_COUNTER_OBJECT</b> - DN (distinguishedName) of the LDAP object used to store the counter information
  * <li><b>LDAP_COUNTER_ATTRIBUTE</b> - Attribute name of the attribute in the LDAP object used as a counter
+ * <li><b>CID_NODE_ID</b> - SNOWFLAKE mode only. Number from 0 to 1023, unique to each CA Identity Manager node
+ * <li><b>CID_VERIFY_ATTRIBUTE</b> - SNOWFLAKE mode only. Optional. Attribute holding the CID in the
+ * LDAP_COUNTER_ENVIRONMENT, such as eTCustomField01, to verify the uniqueness in the background
+ * <li><b>CID_ID_INDEX</b> - Optional. File of an index of the CID_VERIFY_ATTRIBUTE values of the
+ * LDAP_COUNTER_ENVIRONMENT, which must keep modifyTimestamp; requires CID_VERIFY_ATTRIBUTE in any mode
+ * <li><b>CID_ID_INDEX_REFRESH</b> - Optional. Milliseconds between reads of the changes of the
+ * directory into the CID_ID_INDEX. Default is 60000.
+ * <li><b>JDBC_DATASOURCE</b> - JDBC mode only. JNDI name of the DataSource of the application server.
+ * If not set, the JDBC_URL settings are used instead.
+ * <li><b>JDBC_DRIVER</b>, <b>JDBC_URL</b>, <b>JDBC_USERNAME</b>, <b>JDBC_ENCRYPTED</b> - JDBC mode only. Driver
+ * class, URL, user and encrypted password of the database; use the IM password tool to encrypt the password.
+ * <li><b>JDBC_POOL_SIZE</b> - JDBC mode only. Optional. Idle connections to keep open. Default is 2.
+ * <li><b>JDBC_SEQUENCE_QUERY</b> - JDBC mode only. Query returning the next value of a database sequence
+ * created with an increment of 1; for example, SELECT NEXT VALUE FOR CID_SEQ. Each value allocates
+ * the JDBC_BLOCK_SIZE numbers starting at the value times JDBC_BLOCK_SIZE.
+ * <li><b>JDBC_COUNTER_TABLE</b>, <b>JDBC_COUNTER_NAME</b> - JDBC mode only. Table and COUNTER_NAME of the
+ * counter row, used when JDBC_SEQUENCE_QUERY is not set. Default name is CID.
+ * <li><b>JDBC_BLOCK_SIZE</b> - JDBC mode only. Optional. Numbers allocated per database call. Default is 20.
+ * With JDBC_SEQUENCE_QUERY, it may be raised later but never lowered.
+ * <li><b>WARMUP</b> - Optional. TRUE to open the LDAP connections in the background when
+ * CA Identity Manager starts (see {@link org.fasttrack.util.Warmup}).
+ * <li><b>WARMUP_WAIT</b> - Optional. Milliseconds the initialization waits for the warm-up
+ * before CA Identity Manager continues to start. Default is 0, not to wait.
  * </ul>
  * @author 		Lester Rivera
  * @version     %I%, %G%
  * @since       CA Identity Manager 12.0 CR7
  * @see 		org.fasttrack.util.LDAPUtils
  */
-public class GenerateCID extends BLTHAdapter {
+public class GenerateCID extends ValidationBLTHAdapter {
 
     private static final Log logger = LogFactory.getLog(GenerateCID.class);
 
-    private Hashtable env = new Hashtable(11);
     private String prefixVal = "";
     private String counterObj = "";
     private String counterAttr = "";
     private String counterEnv = "";
+    private String mode = "COUNTER";
+    private CounterStore counter = null;
+    private String verifyAttr = "";
+    // Milliseconds of clock difference allowed between this node and the directory
+    private static final long CLOCK_SKEW = 60000;
+    private ExecutorService verifier = null;
+    private IDIndex idIndex = null;
+    private static final int MAXSKIP = 20;
     /**
      * The init method allows retrieval of BLTH-specific properties.
      * Using properties promotes re-usable code since business logic can
@@ -60,19 +131,84 @@ public class GenerateCID extends BLTHAdapter {
         counterEnv = (String)imeProperties.get("LDAP_COUNTER_ENVIRONMENT");
         counterObj = (String)imeProperties.get("LDAP_COUNTER_OBJECT");
         counterAttr = (String)imeProperties.get("LDAP_COUNTER_ATTRIBUTE");
+        String cidMode = (String)imeProperties.get("CID_MODE");
+        String nodeId = (String)imeProperties.get("CID_NODE_ID");
+        verifyAttr = (String)imeProperties.get("CID_VERIFY_ATTRIBUTE");
+        if (counterEnv == null) counterEnv = "";
+        if (counterObj == null) counterObj = "";
+        if (counterAttr == null) counterAttr = "";
+        if (verifyAttr == null) verifyAttr = "";
+        
+        if (cidMode != null && !cidMode.trim().isEmpty()) {
+            mode = cidMode.trim().toUpperCase();
+        }
+        
+        // Stop the verification thread of the previous settings
+        if (verifier != null) {
+            verifier.shutdown();
+            verifier = null;
+        }
+        // Release the database connections of the previous counter
+        if (counter instanceof JDBCCounterStore) {
+            ((JDBCCounterStore) counter).close();
+        }
+        counter = null;
+        idIndex = null;
+        if (mode.equals("JDBC")) {
+            counter = createJDBCCounter(imeProperties);
+        } else if (mode.equals("SNOWFLAKE")) {
+            if (nodeId == null || nodeId.trim().isEmpty()) {
+                throw new IllegalArgumentException("GenerateCID requires CID_NODE_ID in SNOWFLAKE mode.");
+            }
+            counter = new CIDGenerator(Integer.parseInt(nodeId.trim()));
+            if (!verifyAttr.isEmpty() && !counterEnv.isEmpty()) {
+                verifier = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "GenerateCID-verify");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+        } else if (!counterEnv.isEmpty() && !counterObj.isEmpty() && !counterAttr.isEmpty()) {
+            counter = new LDAPCounterStore(counterObj, counterAttr, counterEnv);
+        }
+        String indexFile = (String)imeProperties.get("CID_ID_INDEX");
+        String indexRefresh = (String)imeProperties.get("CID_ID_INDEX_REFRESH");
+        if (indexFile != null && !indexFile.trim().isEmpty() && !verifyAttr.isEmpty() && !counterEnv.isEmpty()) {
+            long interval = 60000;
+            if (indexRefresh != null && !indexRefresh.trim().isEmpty()) {
+                interval = Long.parseLong(indexRefresh.trim());
+            }
+            String attr = verifyAttr.trim();
+            idIndex = IDIndex.shared(counterEnv.trim(), "(" + attr + "=*)", attr, IDIndex.TIMESTAMP, indexFile.trim(), interval);
+        }
+        String warmup = (String)imeProperties.get("WARMUP");
+        String warmupWait = (String)imeProperties.get("WARMUP_WAIT");
         
         logger.debug("GenerateCID BLTH properties: ");
         logger.debug("- CID_PREFIX: " + prefixVal);
         logger.debug("- LDAP_COUNTER_ENVIRONMENT: " + counterEnv);
         logger.debug("- LDAP_COUNTER_OBJECT: " + counterObj);
         logger.debug("- LDAP_COUNTER_ATTRIBUTE: " + counterAttr);
+        logger.debug("- CID_MODE: " + mode);
+        logger.debug("- CID_NODE_ID: " + nodeId);
+        logger.debug("- CID_VERIFY_ATTRIBUTE: " + verifyAttr);
+        logger.debug("- CID_ID_INDEX: " + indexFile);
+        logger.debug("- CID_ID_INDEX_REFRESH: " + indexRefresh);
+        logger.debug("- WARMUP: " + warmup);
+        logger.debug("- WARMUP_WAIT: " + warmupWait);
+        if (warmup != null && warmup.trim().equalsIgnoreCase("TRUE")) {
+            Warmup.ldap();
+            Warmup.await(Warmup.parseWait(warmupWait));
+        }
     }
     /**
      * Use the handleValidation trigger because it allows adding new events and
      * attribute values to the task before it is submitted into the engine.
      */
-    public void handleValidation(BLTHContext blthContext) throws Exception {
-        if (counterEnv.isEmpty() || counterObj.isEmpty() || counterAttr.isEmpty()){
+    protected void validate(BLTHContext blthContext) throws Exception {
+        if (counter == null){
             // Displays the error in the userform and stops the form submission
         	// if the BLTH is improperly configured.
             IMSException imsEx = new IMSException();
@@ -83,24 +219,14 @@ public class GenerateCID extends BLTHAdapter {
 
         logger.debug("Retrieving User Information to generate CID.");
         // get current users information
-        User changeUser = blthContext.getUser();
+        // The attributes are shared with the other BLTHs of the task
+        UserAttributes attributes = UserAttributes.forRequest(blthContext);
 
         // Retrieve name values; strictly unnecessary, but logging a name
         // with the CID in the View Submitted Tasks logs helps troubleshooting.
-        String firstName = "";
-        if (changeUser.containsAttribute("%FIRST_NAME%")) {
-            firstName = changeUser.getAttribute("%FIRST_NAME%"); //First Name
-        }
-
-        String middleName = "";
-        if (changeUser.containsAttribute("Middlename")) {
-            middleName = changeUser.getAttribute("Middlename"); //Middle Name
-        }
-
-        String lastName = "";
-        if (changeUser.containsAttribute("%LAST_NAME%")) {
-            lastName = changeUser.getAttribute("%LAST_NAME%"); //Last Name
-        }
+        String firstName = attributes.get("%FIRST_NAME%"); //First Name
+        String middleName = attributes.get("Middlename"); //Middle Name
+        String lastName = attributes.get("%LAST_NAME%"); //Last Name
 
         logger.debug("Finding user attributes: ");
         logger.debug("- First Name: " + firstName);
@@ -112,14 +238,31 @@ public class GenerateCID extends BLTHAdapter {
             logger.debug("Determining CID.");
             String CID = getNextCPID();
             logger.debug("Returned CID of " + CID);
+            // Skip the numbers already assigned in the directory
+            for (int skipped = 0; idIndex != null && !CID.isEmpty() && idIndex.contains(CID); skipped++) {
+                if (skipped == MAXSKIP) {
+                    logger.error("The last " + MAXSKIP + " CIDs from the " + mode + " counter are already assigned.");
+                    CID = "";
+                    break;
+                }
+                logger.warn("CID " + CID + " is already assigned in the directory; skipping it.");
+                CID = getNextCPID();
+            }
             // If a good CID is available, change user record
             if (!CID.isEmpty()) {
                 // Set the CID on required fields
                 logger.info("Setting CID for " + firstName + " " + lastName + " as " + CID);
-                changeUser.setAttribute("eTCustomField01", CID); // userID
+                attributes.set("eTCustomField01", CID); // userID
                 logger.debug("Set eTCustomField01: " + CID);
-                changeUser.setAttribute("%USER_ID%", CID); // GlobalUserName
+                attributes.set("%USER_ID%", CID); // GlobalUserName
                 logger.debug("Set %USER_ID%: " + CID);
+                attributes.flush();
+                if (idIndex != null) {
+                    idIndex.add(CID);
+                }
+                if (verifier != null) {
+                    verifyLater(CID);
+                }
             } else {
                 throw new Exception(); //else, let the user know
             }
@@ -140,24 +283,101 @@ public class GenerateCID extends BLTHAdapter {
     private String getNextCPID() throws Exception {
         String foundID = "";
         try {
-            // Create the initial context
-	    LDAPUtils counter = new LDAPUtils();
-            String tempID = counter.getAttributeValue(counterObj, counterAttr, counterEnv);
-            logger.debug("Retrieved value " + counterAttr + " for " + counterObj + " is " + tempID + "");
-            
-            int tempInt = Integer.parseInt(tempID);
-            tempInt = tempInt + 1;
-            
-            counter.replaceAttributeValue(counterObj, counterAttr, Integer.toString(tempInt), counterEnv);
-            logger.debug("Set value " + counterAttr + " for " + counterObj + " to " + Integer.toString(tempInt) + "");
-            if (prefixVal.isEmpty()){
-            	foundID = "c" + Integer.toString(tempInt);
-            } else {
-            	foundID = prefixVal.trim() + Integer.toString(tempInt);
-            }
+            long next = counter.nextValue();
+            logger.debug("Retrieved value " + next + " from the " + mode + " counter");
+            foundID = prefix() + Long.toString(next);
         } catch (Exception ex) {
             logger.error("General exception occurred on search for counter object: " + ex.getMessage());
         }
         return foundID;
     }
+    // Create the database counter from the JDBC properties
+    private static CounterStore createJDBCCounter(Hashtable imeProperties) throws Exception {
+        String dataSource = (String)imeProperties.get("JDBC_DATASOURCE");
+        String sequenceQuery = (String)imeProperties.get("JDBC_SEQUENCE_QUERY");
+        String counterTable = (String)imeProperties.get("JDBC_COUNTER_TABLE");
+        String counterName = (String)imeProperties.get("JDBC_COUNTER_NAME");
+        String blockSize = (String)imeProperties.get("JDBC_BLOCK_SIZE");
+        String poolSize = (String)imeProperties.get("JDBC_POOL_SIZE");
+        if (counterName == null || counterName.trim().isEmpty()) {
+            counterName = "CID";
+        }
+        int block = blockSize == null || blockSize.trim().isEmpty() ? 20 : Integer.parseInt(blockSize.trim());
+        int pool = poolSize == null || poolSize.trim().isEmpty() ? 2 : Integer.parseInt(poolSize.trim());
+        
+        logger.debug("- JDBC_DATASOURCE: " + dataSource);
+        logger.debug("- JDBC_SEQUENCE_QUERY: " + sequenceQuery);
+        logger.debug("- JDBC_COUNTER_TABLE: " + counterTable);
+        logger.debug("- JDBC_COUNTER_NAME: " + counterName);
+        logger.debug("- JDBC_BLOCK_SIZE: " + block);
+        if (dataSource != null && !dataSource.trim().isEmpty()) {
+            return new JDBCCounterStore(dataSource.trim(), sequenceQuery, counterTable, counterName.trim(), block);
+        }
+        String encrypted = (String)imeProperties.get("JDBC_ENCRYPTED");
+        String password = "";
+        if (encrypted != null && !encrypted.trim().isEmpty()) {
+            password = JSafeTools.decryptText(encrypted.trim()).toString();
+        }
+        logger.debug("- JDBC_URL: " + imeProperties.get("JDBC_URL"));
+        logger.debug("- JDBC_USERNAME: " + imeProperties.get("JDBC_USERNAME"));
+        return new JDBCCounterStore((String)imeProperties.get("JDBC_DRIVER"), (String)imeProperties.get("JDBC_URL"),
+                (String)imeProperties.get("JDBC_USERNAME"), password, pool, sequenceQuery, counterTable, counterName.trim(), block);
+    }
+    // The prefix of the CID; c by default
+    private String prefix() {
+        if (prefixVal == null || prefixVal.isEmpty()){
+            return "c";
+        }
+        return prefixVal.trim();
+    }
+    // Search for another user with the same CID in the background and report any conflict.
+    // The user being created may already be in the directory by the time the search runs,
+    // so a single entry created after the CID was generated is that user, not a conflict.
+    private void verifyLater(final String CID) {
+        final long generated = System.currentTimeMillis();
+        verifier.execute(new Runnable() {
+            public void run() {
+                try {
+                    LDAPUtils ldap = new LDAPUtils();
+                    String attr = verifyAttr.trim();
+                    List<Attributes> entries = ldap.QueryAll(counterEnv.trim(), "(" + attr + "=" + CID + ")",
+                            new String[]{attr, "createTimestamp"}, 10);
+                    boolean conflict = entries.size() > 1;
+                    for (Attributes entry : entries) {
+                        Date created = createTimestamp(entry);
+                        // Allow for the clock difference between this node and the directory
+                        if (created != null && created.getTime() < generated - CLOCK_SKEW) {
+                            conflict = true;
+                        }
+                    }
+                    if (conflict) {
+                        logger.error("Generated CID " + CID + " is already assigned to another user.");
+                    } else {
+                        logger.debug("Verified generated CID " + CID + " is unique.");
+                    }
+                } catch (Exception ex) {
+                    logger.warn("Unable to verify the uniqueness of CID " + CID + ": " + ex.getMessage());
+                }
+            }
+        });
+    }
+    // The createTimestamp of an entry, or null if not returned or not readable
+    private static Date createTimestamp(Attributes entry) throws NamingException {
+        Attribute attr = entry.get("createTimestamp");
+        if (attr == null || attr.get() == null) {
+            return null;
+        }
+        // Generalized time; for example, 20120115093000Z or 20120115093000.0Z
+        String value = attr.get().toString();
+        if (value.length() < 14) {
+            return null;
+        }
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        try {
+            return format.parse(value.substring(0, 14));
+        } catch (ParseException ex) {
+            return null;
+        }
+    }
 }
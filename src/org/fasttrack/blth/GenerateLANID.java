@@ -1,15 +1,22 @@
 package org.fasttrack.blth;
 
+import org.fasttrack.util.DirectoryUniquenessChecker;
+import org.fasttrack.util.IDIndex;
 import org.fasttrack.util.LDAPUtils;
 
 import org.apache.commons.logging.Log; 
 import org.apache.commons.logging.LogFactory;
 
-import com.netegrity.imapi.BLTHAdapter;
 import com.netegrity.imapi.BLTHContext;
+import org.fasttrack.util.UserAttributes;
+import org.fasttrack.util.Warmup;
 import com.netegrity.ims.exception.IMSException;
-import com.netegrity.llsdk6.imsapi.managedobject.User;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.List;
+import java.util.Set;
+import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
 /**
  * Business Logic Task Handler (BLTH) class which generates a LANID for a user;
@@ -58,6 +65,24 @@ import javax.naming.directory.Attributes;
  * from the system and we are looking for LANIDs to be unique across those users
  * as well; primarily, because it allows audit of user activities after their 
  * employment ends.
+ * <p>
+ * For very common last names, each potential value costs a separate search and the 20 
+ * potential values can all be taken. The PREFIX strategy instead issues a single (paged) 
+ * search for all IDs starting with the last name - for example, (sAMAccountName=SMITH*) - 
+ * and picks the first free potential value in memory. When all 20 potential values are taken,
+ * the strategy continues with a numeric suffix on the initial value (for example, SMITHJF1, 
+ * SMITHJF2, ...) within the 20 character limit, so the LANID is found with one round-trip 
+ * and practically never fails. The last name part of the search is limited to 15 characters 
+ * to leave room for the initials and the suffix.
+ * <p>
+ * The LANID also becomes the accountID in other directories. When LDAP_UNIQUE_ENVIRONMENTS
+ * is set, each potential value is verified against all of the listed directories instead
+ * of only the LDAP_ENVIRONMENT. The directories are searched in parallel, stopping at the
+ * first directory where the value is taken, so adding a directory costs the latency of the
+ * slowest directory rather than adding up. If a directory cannot be searched within
+ * LDAP_UNIQUE_TIMEOUT, the LANID is not assigned and an error is displayed in the userform.
+ * With the PREFIX strategy, the prefix search still runs on the LDAP_ENVIRONMENT, and the
+ * free value it finds is then verified against the listed directories.
  * <h3>User-Defined Properties</h3>
  * <ul>
  * <li><b>EMAIL_DOMAIN</b> - The domain for the email address. For example, company.com 
@@ -65,18 +90,42 @@ import javax.naming.directory.Attributes;
  * <li><b>LDAP_ENVIRONMENT</b> - Environment name of settings configured in ldap.properties
  * <li><b>LDAP_USERID</b> -	The username attribute used by the LDAP directory. For example,
  * sAMAccountName is used by Active Directory, UID is typically used for LDAP.
+ * <li><b>LANID_STRATEGY</b> - Optional. SEQUENTIAL (default) to search each potential value, 
+ * or PREFIX to search all taken values with one prefix search.
+ * <li><b>LDAP_UNIQUE_ENVIRONMENTS</b> - Optional. Comma-delimited list of environments configured 
+ * in ldap.properties where the LANID must be unique, each optionally followed by :attribute when 
+ * the directory keeps the ID in an attribute other than LDAP_USERID. For example,
+ * ADQuery,ADForest2,COUNTER:eTGlobalUserName
+ * <li><b>LDAP_UNIQUE_TIMEOUT</b> - Optional. Milliseconds allowed to search all of the
+ * LDAP_UNIQUE_ENVIRONMENTS. Default is 10000.
+ * <li><b>LDAP_ID_INDEX</b> - Optional. File of an index of the LDAP_USERID values of the
+ * LDAP_ENVIRONMENT, which must be an Active Directory domain controller. Values in the index
+ * are known to be taken without searching the directory, and the PREFIX strategy reads the
+ * taken values from the index; the value picked is still verified against the directory.
+ * <li><b>LDAP_ID_INDEX_REFRESH</b> - Optional. Milliseconds between reads of the changes of
+ * the directory into the LDAP_ID_INDEX. Default is 60000.
+ * <li><b>WARMUP</b> - Optional. TRUE to open the LDAP connections in the background when
+ * CA Identity Manager starts (see {@link org.fasttrack.util.Warmup}).
+ * <li><b>WARMUP_WAIT</b> - Optional. Milliseconds the initialization waits for the warm-up
+ * before CA Identity Manager continues to start. Default is 0, not to wait.
  * </ul>
  * @author 		Lester Rivera
  * @version     %I%, %G%
  * @since       CA Identity Manager 12.0 CR7
  * @see 		org.fasttrack.util.LDAPUtils
  */
-public class GenerateLANID extends BLTHAdapter {
+public class GenerateLANID extends ValidationBLTHAdapter {
     private static final Log logger = LogFactory.getLog(GenerateLANID.class);
     private int MAXTRIES = 20;
     private String emaildomain = "";
     private String ldap_env = "";
     private String ldap_userID = "";
+    private boolean prefixStrategy = false;
+    private DirectoryUniquenessChecker uniquenessChecker = null;
+    private IDIndex idIndex = null;
+    private static final int MAXLENGTH = 20;
+    private static final int STEMLENGTH = 15;
+    private static final int PAGESIZE = 500;
     /**
      * The init method allows retrieval of BLTH-specific properties.
      * Using properties promotes re-usable code since business logic can
@@ -85,14 +134,55 @@ public class GenerateLANID extends BLTHAdapter {
     public void init(Hashtable imeProperties) throws Exception {
         super.init(imeProperties);
         // Properties from the BLTH settings
-        String emaildomain = (String)imeProperties.get("EMAIL_DOMAIN");
-        String ldap_env = (String)imeProperties.get("LDAP_ENVIRONMENT");
-        String ldap_userID = (String)imeProperties.get("LDAP_USERID");
+        emaildomain = (String)imeProperties.get("EMAIL_DOMAIN");
+        ldap_env = (String)imeProperties.get("LDAP_ENVIRONMENT");
+        ldap_userID = (String)imeProperties.get("LDAP_USERID");
+        String strategy = (String)imeProperties.get("LANID_STRATEGY");
+        if (emaildomain == null) emaildomain = "";
+        if (ldap_env == null) ldap_env = "";
+        if (ldap_userID == null) ldap_userID = "";
+        prefixStrategy = strategy != null && strategy.trim().equalsIgnoreCase("PREFIX");
+        String uniqueEnvs = (String)imeProperties.get("LDAP_UNIQUE_ENVIRONMENTS");
+        String uniqueTimeout = (String)imeProperties.get("LDAP_UNIQUE_TIMEOUT");
+        // Stop the threads of the previous settings
+        if (uniquenessChecker != null) {
+            uniquenessChecker.shutdown();
+            uniquenessChecker = null;
+        }
+        if (uniqueEnvs != null && !uniqueEnvs.trim().isEmpty()) {
+            long timeout = 10000;
+            if (uniqueTimeout != null && !uniqueTimeout.trim().isEmpty()) {
+                timeout = Long.parseLong(uniqueTimeout.trim());
+            }
+            uniquenessChecker = new DirectoryUniquenessChecker(uniqueEnvs, ldap_userID.trim(), timeout);
+        }
+        String indexFile = (String)imeProperties.get("LDAP_ID_INDEX");
+        String indexRefresh = (String)imeProperties.get("LDAP_ID_INDEX_REFRESH");
+        if (indexFile != null && !indexFile.trim().isEmpty()) {
+            long interval = 60000;
+            if (indexRefresh != null && !indexRefresh.trim().isEmpty()) {
+                interval = Long.parseLong(indexRefresh.trim());
+            }
+            idIndex = IDIndex.shared(ldap_env.trim(), "(objectClass=user)", ldap_userID.trim(), IDIndex.USN, indexFile.trim(), interval);
+        }
+        String warmup = (String)imeProperties.get("WARMUP");
+        String warmupWait = (String)imeProperties.get("WARMUP_WAIT");
         
         logger.debug("GenerateLANID BLTH properties: ");
         logger.debug("- EMAIL_DOMAIN: " + emaildomain);
         logger.debug("- LDAP_ENVIRONMENT: " + ldap_env);
         logger.debug("- LDAP_USERID: " + ldap_userID);
+        logger.debug("- LANID_STRATEGY: " + strategy);
+        logger.debug("- LDAP_UNIQUE_ENVIRONMENTS: " + uniqueEnvs);
+        logger.debug("- LDAP_UNIQUE_TIMEOUT: " + uniqueTimeout);
+        logger.debug("- LDAP_ID_INDEX: " + indexFile);
+        logger.debug("- LDAP_ID_INDEX_REFRESH: " + indexRefresh);
+        logger.debug("- WARMUP: " + warmup);
+        logger.debug("- WARMUP_WAIT: " + warmupWait);
+        if (warmup != null && warmup.trim().equalsIgnoreCase("TRUE")) {
+            Warmup.ldap();
+            Warmup.await(Warmup.parseWait(warmupWait));
+        }
         
     }
     /**
@@ -101,7 +191,7 @@ public class GenerateLANID extends BLTHAdapter {
      * @exception IMSException	If the a valid unique LANID cannot be found, or if the
      * required properties are not configured.
      */
-    public void handleValidation(BLTHContext blthContext) throws Exception {
+    protected void validate(BLTHContext blthContext) throws Exception {
         if (emaildomain.isEmpty() || ldap_env.isEmpty() || ldap_userID.isEmpty()){
             // Displays the error in the userform and stops the form submission
         	// if the BLTH is improperly configured.
@@ -113,32 +203,14 @@ public class GenerateLANID extends BLTHAdapter {
         
         logger.debug("Retrieving User Information to generate LANID.");
         // get current users information
-        User changeUser = blthContext.getUser();        
+        // The attributes are shared with the other BLTHs of the task
+        UserAttributes attributes = UserAttributes.forRequest(blthContext);
         
-        String firstName = "";
-        if (changeUser.containsAttribute("%FIRST_NAME%")) {
-            firstName = changeUser.getAttribute("%FIRST_NAME%"); //First Name
-        }
-        
-        String middleName = "";
-        if (changeUser.containsAttribute("eTMiddleInitial")) {
-            middleName = changeUser.getAttribute("eTMiddleInitial"); //Middle Name
-        }
-        
-        String lastName = "";
-        if (changeUser.containsAttribute("%LAST_NAME%")) {
-            lastName = changeUser.getAttribute("%LAST_NAME%"); //Last Name
-        }
-        
-        String LANID = "";
-        if (changeUser.containsAttribute("eTCustomField02")) {
-            LANID = changeUser.getAttribute("eTCustomField02"); //LANID
-        }
-        
-        String email = "";
-        if (changeUser.containsAttribute("%EMAIL%")) {
-        	email = changeUser.getAttribute("%EMAIL%"); //email
-        }
+        String firstName = attributes.get("%FIRST_NAME%"); //First Name
+        String middleName = attributes.get("eTMiddleInitial"); //Middle Name
+        String lastName = attributes.get("%LAST_NAME%"); //Last Name
+        String LANID = attributes.get("eTCustomField02"); //LANID
+        String email = attributes.get("%EMAIL%"); //email
         
         logger.debug("Finding user attributes: ");
         logger.debug("- First Name: " + firstName);
@@ -149,45 +221,35 @@ public class GenerateLANID extends BLTHAdapter {
 
         // with a value in LANID; a new value will not be generated and saved 
         if (LANID.isEmpty() && email.isEmpty()) { 
-            // remove special characters from first and last name
-            String nonSpecialChars = "[^A-Z]";
-            String remSuffix1 = "^AL-"; // remove arabic name prefix al-
-            String remSuffix2 = "^BIN-"; // remove arabic name prefix bin-
-            String remSuffix3 = "\\sI$"; // remove suffix I
-            String remSuffix4 = "\\sII$"; // remove suffix II
-            String remSuffix5 = "\\sIII$"; // remove suffix III
-            String remSuffix6 = "\\sIV$"; // remove suffix IV
-            String remSuffix7 = "\\sV$"; // remove suffix V
-            String remSuffix8 = "\\sJR$"; // remove suffix JR
-            String remSuffix9 = "\\sSR$"; // remove suffix SR
-            firstName = firstName.toUpperCase().replaceAll(nonSpecialChars, "");
-            lastName = lastName.toUpperCase().replaceAll(remSuffix1, ""); // Remove al- from name
-            lastName = lastName.toUpperCase().replaceAll(remSuffix2, ""); // Remove bin- from name
-            lastName = lastName.toUpperCase().replaceAll(remSuffix3, ""); // remove suffix I
-            lastName = lastName.toUpperCase().replaceAll(remSuffix4, ""); // remove suffix II
-            lastName = lastName.toUpperCase().replaceAll(remSuffix5, ""); // remove suffix III
-            lastName = lastName.toUpperCase().replaceAll(remSuffix6, ""); // remove suffix IV
-            lastName = lastName.toUpperCase().replaceAll(remSuffix7, ""); // remove suffix V
-            lastName = lastName.toUpperCase().replaceAll(remSuffix8, ""); // remove suffix Jr
-            lastName = lastName.toUpperCase().replaceAll(remSuffix9, ""); // remove suffix Sr
-            lastName = lastName.toUpperCase().replaceAll(nonSpecialChars, "");
+            // remove special characters, prefixes and suffixes from first and last name;
+            // the normalized names are shared with the other BLTHs as well
+            firstName = attributes.getNormalizedFirstName();
+            lastName = attributes.getNormalizedLastName();
+            // the middle initial is part of the LANID as well
+            middleName = UserAttributes.normalizeFirstName(middleName);
 
             logger.debug("Modifying user attributes: ");
             logger.debug("- First Name: " + firstName);
+            logger.debug("- Middle Name: " + middleName);
             logger.debug("- Last Name: " + lastName);
 
             logger.info("Starting to generate LANID for: " + lastName + ", " + firstName + " " + middleName);
             try {
                 logger.debug("Determining LANID.");
                 boolean goodId = false;
-                LANID = genInitialTempID(firstName, middleName, lastName);
-                // Iterate to test a valid LANID
-                for (int count = 1; count < MAXTRIES; count++) { // cycle through 20 times; max length of LANID
-                   if (isUniqueID(LANID)){ //check for uniqueness in user store
-                       goodId = true;
-                       break;
-                   }
-                   LANID = genNewTempID(firstName, lastName, count);
+                if (prefixStrategy && lastName.length() > 0) {
+                    LANID = findFreeID(firstName, middleName, lastName);
+                    goodId = LANID != null;
+                } else {
+                    LANID = genInitialTempID(firstName, middleName, lastName);
+                    // Iterate to test a valid LANID
+                    for (int count = 1; count < MAXTRIES; count++) { // cycle through 20 times; max length of LANID
+                       if (isUniqueID(LANID)){ //check for uniqueness in user store
+                           goodId = true;
+                           break;
+                       }
+                       LANID = genNewTempID(firstName, lastName, count);
+                    }
                 }
 
                 // If a good LANID is available, change user record
@@ -195,10 +257,14 @@ public class GenerateLANID extends BLTHAdapter {
                     // Set the LANID on required fields
                     logger.info("Setting LANID for " + firstName + " " + lastName + " as " + LANID);
                     logger.debug("LANID is of size: " + LANID.length());
-                    changeUser.setAttribute("eTCustomField02", LANID); // LAN userID
+                    attributes.set("eTCustomField02", LANID); // LAN userID
                     logger.debug("Set eTCustomField02: " + LANID);
-                    changeUser.setAttribute("%EMAIL%", LANID + "@" + emaildomain.trim()); // Email
+                    attributes.set("%EMAIL%", LANID + "@" + emaildomain.trim()); // Email
                     logger.debug("Set %EMAIL%: " + LANID + "@" + emaildomain.trim());
+                    attributes.flush();
+                    if (idIndex != null) {
+                        idIndex.add(LANID);
+                    }
                 } else {
                     throw new Exception(); //else, let the user know
                 }
@@ -261,8 +327,81 @@ public class GenerateLANID extends BLTHAdapter {
         
         return lastName + firstName;
     }
+    // Find the first free LANID with a single prefix search of the taken IDs
+    private String findFreeID (String firstName, String middleName, String lastName) throws Exception {
+        String stem = lastName.substring(0, Math.min(lastName.length(), STEMLENGTH));
+        // The index may miss IDs created since its last refresh, so its free value is verified
+        boolean fromIndex = idIndex != null && idIndex.isReady();
+        Set<String> taken = fromIndex ? idIndex.startingWith(stem) : findTakenIDs(stem);
+        
+        // The standard potential values first, as long as the search covered them
+        List<String> candidates = new ArrayList<String>();
+        candidates.add(genInitialTempID(firstName, middleName, lastName));
+        for (int count = 1; count < MAXTRIES; count++) {
+            candidates.add(genNewTempID(firstName, lastName, count));
+        }
+        for (String candidate : candidates) {
+            if (candidate.startsWith(stem) && !taken.contains(candidate) && isFree(candidate, fromIndex)) {
+                logger.debug("Found free LANID " + candidate + " among " + taken.size() + " taken IDs.");
+                return candidate;
+            }
+        }
+        
+        // Then the initial value with a numeric suffix, shortening the last name down to the stem
+        String initials = genInitialTempID(firstName, middleName, "");
+        for (long suffix = 1; ; suffix++) {
+            String number = Long.toString(suffix);
+            int lastLength = Math.min(lastName.length(), MAXLENGTH - initials.length() - number.length());
+            if (lastLength < stem.length()) {
+                break;
+            }
+            String candidate = lastName.substring(0, lastLength) + initials + number;
+            if (!taken.contains(candidate) && isFree(candidate, fromIndex)) {
+                logger.debug("Found free LANID " + candidate + " with numeric suffix among " + taken.size() + " taken IDs.");
+                return candidate;
+            }
+        }
+        logger.debug("No free LANID found for stem " + stem);
+        return null;
+    }
+    // Retrieve all the IDs starting with the stem, in upper case
+    private Set<String> findTakenIDs (String stem) throws Exception {
+        Set<String> taken = new HashSet<String>();
+        String attr = ldap_userID.trim();
+        try {
+            LDAPUtils ldap = new LDAPUtils();
+            String ldapFilter = "(&(objectClass=user)(" + attr + "=" + stem + "*))";
+            for (Attributes attrs : ldap.QueryAll(ldap_env.trim(), ldapFilter, new String[]{attr}, PAGESIZE)) {
+                Attribute id = attrs.get(attr);
+                if (id != null && id.get() != null) {
+                    taken.add(id.get().toString().toUpperCase());
+                }
+            }
+        } catch (Exception e) {
+            logger.debug("Unable to connect to LDAP.");
+            logger.debug(e.getMessage());
+            throw e;
+        }
+        logger.debug("Found " + taken.size() + " taken IDs starting with " + stem);
+        return taken;
+    }
+    // Check if an ID found free among the taken IDs is unique to the directories
+    private boolean isFree (String checkID, boolean fromIndex) throws Exception {
+        return fromIndex ? isUniqueID(checkID) : isUniqueElsewhere(checkID);
+    }
+    // Check if an ID found free by the prefix search is unique to the other directories
+    private boolean isUniqueElsewhere (String checkID) throws Exception {
+        return uniquenessChecker == null || uniquenessChecker.check(checkID).isUnique();
+    }
     // Check if ID is unique to user store
     private boolean isUniqueID (String checkID) throws Exception{
+        if (idIndex != null && idIndex.contains(checkID)) {
+            logger.debug("LANID " + checkID + " is taken in the ID index.");
+            return false;
+        }
+        if (uniquenessChecker != null) {
+            return uniquenessChecker.check(checkID).isUnique();
+        }
         boolean ret = false;
         logger.debug("Determining if LANID is unique: " + checkID);
         try {
@@ -3,13 +3,13 @@ package org.fasttrack.blth;
 import org.apache.commons.logging.Log; 
 import org.apache.commons.logging.LogFactory;
 
-import com.netegrity.imapi.BLTHAdapter;
 import com.netegrity.imapi.BLTHContext;
 import com.netegrity.sdk.apiutil.SmApiException;
 import com.netegrity.llsdk6.imsapi.managedobject.User;
 import com.netegrity.ims.exception.IMSException;
 import java.util.Hashtable;
 import com.netegrity.rtl.jce.JSafeTools;
+import org.fasttrack.util.PasswordGenerator;
 /**
  * Generates a unique password and assigns it to the user. An optional feature allows you 
  * to establish an encrypted default password to assign to all users. In addition, an 
@@ -27,15 +27,36 @@ import com.netegrity.rtl.jce.JSafeTools;
  * To encrypt the password, go to <b>%admin_tools_home%</b>/passwordtool<br>
  * > <code>pwdtools -JSAFE -p &lt;new password&gt;</code><br><br>
  * NOTE: Be sure the JAVA_HOME variable is defined.
+ * <p>
+ * The following properties generate the passwords locally:
+ * <ul>
+ * <li><b>PASSWORD_LENGTH</b> - Optional. Length of the passwords generated locally. When set,
+ * passwords are generated by this class instead of the password policy of CA Identity Manager.
+ * <li><b>PASSWORD_MIN_UPPER</b>, <b>PASSWORD_MIN_LOWER</b>, <b>PASSWORD_MIN_DIGITS</b>,
+ * <b>PASSWORD_MIN_SPECIAL</b> - Optional. Minimum number of characters of each class in a
+ * locally generated password. Default is 1 each.
+ * <li><b>PASSWORD_EXCLUDE</b> - Optional. Characters never used in a locally generated password; 
+ * for example, look-alikes such as O0Il1.
+ * <li><b>PASSWORD_POOL_SIZE</b> - Optional. Number of locally generated passwords to keep ready
+ * for bulk creates. Default is 100; 0 disables the pool.
+ * </ul>
+ * <p>
+ * The default password is decrypted once when the BLTH is initialized. Without a default
+ * password, each create calls the password policy of CA Identity Manager on the server,
+ * unless PASSWORD_LENGTH is set; in that case the passwords come from a local pool of
+ * passwords generated ahead of time with a SecureRandom. The local policy should be kept
+ * at least as strict as the password policy of CA Identity Manager.
  * @author 		Lester Rivera
  * @version     %I%, %G%
  * @since       CA Identity Manager 12.0 CR7
  */
 
 // Associate this BLTH with task Create User
-public class GeneratePassword extends BLTHAdapter {
+public class GeneratePassword extends ValidationBLTHAdapter {
     private static final Log logger = LogFactory.getLog(GeneratePassword.class);
     private String defaultPass = "";
+    private String decryptedDefaultPass = null;
+    private PasswordGenerator generator = null;
     /**
      * The init method allows retrieval of BLTH-specific properties.
      * Using properties promotes re-usable code since business logic can
@@ -46,15 +67,39 @@ public class GeneratePassword extends BLTHAdapter {
         // Properties from the BLTH settings
         defaultPass = (String)imeProperties.get("DEFAULT_PASSWORD");
         
+        if (defaultPass == null) {
+            defaultPass = "";
+        }
+        if (!defaultPass.isEmpty()) {
+            decryptedDefaultPass = JSafeTools.decryptText(defaultPass.trim()).toString();
+        }
+        
+        String length = (String)imeProperties.get("PASSWORD_LENGTH");
+        // Stop the pool of the previous settings
+        if (generator != null) {
+            generator.shutdown();
+            generator = null;
+        }
+        if (length != null && !length.trim().isEmpty()) {
+            generator = new PasswordGenerator(Integer.parseInt(length.trim()),
+                    getNumber(imeProperties, "PASSWORD_MIN_UPPER", 1),
+                    getNumber(imeProperties, "PASSWORD_MIN_LOWER", 1),
+                    getNumber(imeProperties, "PASSWORD_MIN_DIGITS", 1),
+                    getNumber(imeProperties, "PASSWORD_MIN_SPECIAL", 1),
+                    (String)imeProperties.get("PASSWORD_EXCLUDE"),
+                    getNumber(imeProperties, "PASSWORD_POOL_SIZE", 100));
+        }
+        
         logger.debug("GeneratePassword BLTH properties: ");
         logger.debug("- DEFAULT_PASSWORD: " + defaultPass);
+        logger.debug("- PASSWORD_LENGTH: " + length);
     }
     /**
      * Use the handleValidation trigger because it allows adding new events and
      * attribute values to the task before it is submitted into the engine.
      * @exception IMSException If it fails to set the password.
      */
-    public void handleValidation(BLTHContext blthContext) throws Exception {
+    protected void validate(BLTHContext blthContext) throws Exception {
         
         logger.debug("Retrieving User Record Information.");
         
@@ -87,7 +132,11 @@ public class GeneratePassword extends BLTHAdapter {
                 try {
                     String tempPassword = "";
                     // If default password is not set; generate a password
-                    if (defaultPass.isEmpty()){
+                    if (decryptedDefaultPass == null && generator != null){
+                        // Take a password generated ahead of time by the local policy
+                        logger.debug("Attempting to generate a new password locally"); 
+                        tempPassword = generator.nextPassword();
+                    } else if (decryptedDefaultPass == null){
                         logger.debug("Attempting to generate a new password"); 
                         // Use the admin user to generate the temporary password.
                         // The generateTemporaryPassword method is only available
@@ -99,7 +148,7 @@ public class GeneratePassword extends BLTHAdapter {
                     } else {
                     	// If a default password is set; use that value
                         logger.debug("Using default password");
-                        tempPassword = JSafeTools.decryptText(defaultPass.trim()).toString();
+                        tempPassword = decryptedDefaultPass;
                     }
                     logger.debug("Attempting to set a new password"); 
                     changeUser.setAttribute("%PASSWORD%", tempPassword); 
@@ -127,5 +176,12 @@ public class GeneratePassword extends BLTHAdapter {
             } //if
         }
     }
+    // Retrieve an optional numeric BLTH property
+    private static int getNumber(Hashtable imeProperties, String name, int defaultValue) {
+        String value = (String)imeProperties.get(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        return Integer.parseInt(value.trim());
+    }
 }
-
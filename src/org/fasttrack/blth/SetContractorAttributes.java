@@ -1,73 +1,109 @@
 package org.fasttrack.blth;
 
-import org.apache.commons.logging.Log; 
+import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import com.netegrity.imapi.BLTHAdapter;
 import com.netegrity.imapi.BLTHContext;
-import com.netegrity.llsdk6.imsapi.managedobject.User;
+import org.fasttrack.util.AttributeRuleEngine;
+import org.fasttrack.util.UserAttributes;
+
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.Properties;
 /**
- * Set default values for contractor-related user attributes. 
+ * Set default values for contractor-related user attributes.
  * This class is available for educational purposes only.
  * <p>
  * This is a typical use case in IAM design; however, the actual business logic would
  * be different for each implementation. That said, a best practice is to ensure that
- * a requestor does not have to input values into a user form that can be easily derived 
+ * a requestor does not have to input values into a user form that can be easily derived
  * from other values in the userform that may have already been specified. This mechanism
  * is an example of that type of business logic.
+ * <p>
+ * The values are derived from the employeeType attribute by the rules of an
+ * AttributeRuleEngine. Without a rules file, the built-in rules set eTCustomField03
+ * and eTTitle for the ABC, BANK, USMC, USCG and NAVY employee types. The rules file
+ * can be changed without restarting CA Identity Manager; see contractor-rules.properties
+ * for an example.
+ * <h3>User-Defined Properties</h3>
+ * <ul>
+ * <li><b>RULES_FILE</b> - Optional. Properties file with the attribute rules. A relative
+ * name is looked up next to the ldap-target.properties file.
+ * <li><b>KEY_ATTRIBUTE</b> - Optional. Attribute whose value selects the rule. Default is employeeType.
+ * <li><b>RELOAD_INTERVAL</b> - Optional. Seconds between checks for changes in the rules file.
+ * Default is 60; 0 disables the reload.
+ * </ul>
  * @author 		Lester Rivera
  * @version     %I%, %G%
  * @since       CA Identity Manager 12.0 CR7
+ * @see 		org.fasttrack.util.AttributeRuleEngine
  */
-public class SetContractorAttributes extends BLTHAdapter {
+public class SetContractorAttributes extends ValidationBLTHAdapter {
     private static final Log logger = LogFactory.getLog(SetContractorAttributes.class);
-    
-    public void handleValidation(BLTHContext blthContext) throws Exception {
-        
+    private String keyAttribute = "employeeType";
+    private AttributeRuleEngine rules = new AttributeRuleEngine(defaultRules());
+    /**
+     * The init method allows retrieval of BLTH-specific properties.
+     * Using properties promotes re-usable code since business logic can
+     * be different for each task you assign the BLTH to.
+     */
+    public void init(Hashtable imeProperties) throws Exception {
+        super.init(imeProperties);
+        // Properties from the BLTH settings
+        String rulesFile = (String)imeProperties.get("RULES_FILE");
+        String keyAttr = (String)imeProperties.get("KEY_ATTRIBUTE");
+        String reload = (String)imeProperties.get("RELOAD_INTERVAL");
+
+        if (keyAttr != null && !keyAttr.trim().isEmpty()) {
+            keyAttribute = keyAttr.trim();
+        }
+        long reloadInterval = 60;
+        if (reload != null && !reload.trim().isEmpty()) {
+            reloadInterval = Long.parseLong(reload.trim());
+        }
+        if (rulesFile != null && !rulesFile.trim().isEmpty()) {
+            rules = new AttributeRuleEngine(rulesFile.trim(), reloadInterval * 1000);
+        }
+
+        logger.debug("SetContractorAttributes BLTH properties: ");
+        logger.debug("- RULES_FILE: " + rulesFile);
+        logger.debug("- KEY_ATTRIBUTE: " + keyAttribute);
+        logger.debug("- RELOAD_INTERVAL: " + reloadInterval);
+    }
+
+    /**
+     * Use the handleValidation trigger because it allows adding new events and
+     * attribute values to the task before it is submitted into the engine.
+     */
+    protected void validate(BLTHContext blthContext) throws Exception {
+
         // Retrieve selection
         logger.debug("Retrieving user information to set additional contractor attributes.");
-        // get current users information
-        User changeUser = blthContext.getUser();        
-        
-        String employeeType = "";
-        if (changeUser.containsAttribute("employeeType")) {
-            employeeType = changeUser.getAttribute("employeeType"); //Employee Type
-        }
-        logger.debug("Retrieved Employee Type as " + employeeType);
-        
+        // get current users information; written through the snapshot of the submission,
+        // so the next BLTHs see the values
+        UserAttributes attributes = UserAttributes.forRequest(blthContext);
+
+        String employeeType = attributes.get(keyAttribute); //Employee Type
+        logger.debug("Retrieved " + keyAttribute + " as " + employeeType);
+
         // Get and set contractor attributes
-        if (employeeType.equalsIgnoreCase("ABC")){
-            changeUser.setAttribute("eTCustomField03", "2"); // INST DATA
-            logger.debug("Set eTCustomField03: " + "2");  
-            changeUser.setAttribute("eTTitle", "ABC Contractor"); // Title
-            logger.debug("Set eTTitle: " + "ABC Contractor");  
-        } else if (employeeType.equalsIgnoreCase("BANK")){
-            changeUser.setAttribute("eTCustomField03", "2"); // INST DATA
-            logger.debug("Set eTCustomField03: " + "2");  
-            changeUser.setAttribute("eTTitle", "Bank Contractor"); // Title
-            logger.debug("Set eTTitle: " + "Bank Contractor");               
-        } else if (employeeType.equalsIgnoreCase("USMC")){
-            changeUser.setAttribute("eTCustomField03", "M"); // INST DATA
-            logger.debug("Set eTCustomField03: " + "M");  
-            changeUser.setAttribute("eTTitle", "US Marines"); // Title
-            logger.debug("Set eTTitle: " + "US Marines");             
-        } else if (employeeType.equalsIgnoreCase("USCG")){
-            changeUser.setAttribute("eTCustomField03", "O"); // INST DATA
-            logger.debug("Set eTCustomField03: " + "O");  
-            changeUser.setAttribute("eTTitle", "US Coast Guard"); // Title
-            logger.debug("Set eTTitle: " + "US Coast Guard");            
-        } else if (employeeType.equalsIgnoreCase("NAVY")){
-            changeUser.setAttribute("eTCustomField03", "N"); // INST DATA
-            logger.debug("Set eTCustomField03: " + "N");  
-            changeUser.setAttribute("eTTitle", "US Navy"); // Title
-            logger.debug("Set eTTitle: " + "US Navy");                
-        } else {
-            changeUser.setAttribute("eTCustomField03", "2"); // INST DATA
-            logger.debug("Set eTCustomField03: " + "2");  
-            changeUser.setAttribute("eTTitle", "Contractor"); // Title
-            logger.debug("Set eTTitle: " + "Contractor");  
+        for (Map.Entry<String, String> assignment : rules.evaluate(employeeType).entrySet()) {
+            attributes.set(assignment.getKey(), assignment.getValue());
+            logger.debug("Set " + assignment.getKey() + ": " + assignment.getValue());
         }
+        attributes.flush();
         logger.info("Set additional contractor attributes.");
     }
 
+    // The rules used when no rules file is configured
+    private static Properties defaultRules() {
+        Properties defaults = new Properties();
+        defaults.setProperty("ABC", "eTCustomField03=2; eTTitle=ABC Contractor");
+        defaults.setProperty("BANK", "eTCustomField03=2; eTTitle=Bank Contractor");
+        defaults.setProperty("USMC", "eTCustomField03=M; eTTitle=US Marines");
+        defaults.setProperty("USCG", "eTCustomField03=O; eTTitle=US Coast Guard");
+        defaults.setProperty("NAVY", "eTCustomField03=N; eTTitle=US Navy");
+        defaults.setProperty(AttributeRuleEngine.DEFAULT_KEY, "eTCustomField03=2; eTTitle=Contractor");
+        return defaults;
+    }
 }
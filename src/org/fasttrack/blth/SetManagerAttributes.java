@@ -5,10 +5,10 @@ import java.util.Hashtable;
 import org.apache.commons.logging.Log; 
 import org.apache.commons.logging.LogFactory;
 
-import com.netegrity.imapi.BLTHAdapter;
 import com.netegrity.imapi.BLTHContext;
+import org.fasttrack.util.UserAttributes;
+import org.fasttrack.util.Warmup;
 import com.netegrity.ims.exception.IMSException;
-import com.netegrity.llsdk6.imsapi.managedobject.User;
 import org.fasttrack.util.LDAPUtils;
 import javax.naming.directory.Attributes;
 /**
@@ -35,12 +35,19 @@ import javax.naming.directory.Attributes;
  * <h3>User-Defined Properties</h3>
  * <ul>
  * <li><b>LDAP_ENVIRONMENT</b> - Environment name of settings configured in ldap.properties
+ * <li><b>WARMUP</b> - Optional. TRUE to open the LDAP connections in the background when
+ * CA Identity Manager starts (see {@link org.fasttrack.util.Warmup}).
+ * <li><b>WARMUP_WAIT</b> - Optional. Milliseconds the initialization waits for the warm-up
+ * before CA Identity Manager continues to start. Default is 0, not to wait.
  * </ul>
+ * To recompute the attributes of all the users at once, such as after a reorganization,
+ * use the ManagerAttributesBatch job instead of re-submitting each user.
  * @author 		Lester Rivera
  * @version     %I%, %G%
  * @since       CA Identity Manager 12.0 CR7
+ * @see 		org.fasttrack.util.ManagerAttributesBatch
  */
-public class SetManagerAttributes extends BLTHAdapter {
+public class SetManagerAttributes extends ValidationBLTHAdapter {
     private static final Log logger = LogFactory.getLog(SetManagerAttributes.class);
     private String ldap_env = "";
     /**
@@ -52,16 +59,24 @@ public class SetManagerAttributes extends BLTHAdapter {
         super.init(imeProperties);
         // Properties from the BLTH settings
         ldap_env = (String)imeProperties.get("LDAP_ENVIRONMENT");
+        String warmup = (String)imeProperties.get("WARMUP");
+        String warmupWait = (String)imeProperties.get("WARMUP_WAIT");
         
         logger.debug("SetManagerAttributes BLTH properties: ");
         logger.debug("- LDAP_ENVIRONMENT: " + ldap_env);
+        logger.debug("- WARMUP: " + warmup);
+        logger.debug("- WARMUP_WAIT: " + warmupWait);
+        if (warmup != null && warmup.trim().equalsIgnoreCase("TRUE")) {
+            Warmup.ldap();
+            Warmup.await(Warmup.parseWait(warmupWait));
+        }
     }
     /**
      * Use the handleValidation trigger because it allows adding new events and
      * attribute values to the task before it is submitted into the engine.
      * @exception 	IMSException If required properties are not configured.
      */
-    public void handleValidation(BLTHContext blthContext) throws Exception {
+    protected void validate(BLTHContext blthContext) throws Exception {
         if (ldap_env.isEmpty()){
             // Displays the error in the userform and stops the form submission
         	// if the BLTH is improperly configured.
@@ -73,19 +88,17 @@ public class SetManagerAttributes extends BLTHAdapter {
         // Retrieve selection
         logger.debug("Retrieving user information to set additional manager attributes.");
         // get current users information
-        User changeUser = blthContext.getUser();        
+        // The attributes are shared with the other BLTHs of the task
+        UserAttributes attributes = UserAttributes.forRequest(blthContext);
         // retrieve the manager selection in the userform; this is the standard field
-        String managerDN = "";
-        if (changeUser.containsAttribute("manager")) {
-            managerDN = changeUser.getAttribute("manager"); //Manager DN in LDAP format
-        }
+        String managerDN = attributes.get("manager"); //Manager DN in LDAP format
         logger.debug("Retrieved manager DN as " + managerDN);
         
         // Get and set Manager LANID
-        String[] tempArr = managerDN.split(",");
-        String managerYID = tempArr[0].replaceAll("uid=", "");
+        String managerYID = LDAPUtils.getUID(managerDN);
         logger.debug("Cleaned Manager UID to " + managerYID);
-        changeUser.setAttribute("eTCustomField69", managerYID); // LAN userID of the manager
+        attributes.set("eTCustomField69", managerYID); // LAN userID of the manager
+        attributes.flush();
         logger.debug("Set eTCustomField69: " + managerYID);       
         
         // retrieve the ADSPath from Active Directory for the manager
@@ -98,7 +111,8 @@ public class SetManagerAttributes extends BLTHAdapter {
                 logger.debug("sAMAccountName: " + attrs.get("sAMAccountName").get().toString());
                 //logger.debug("adsPath: " + attrs.get("adsPath").getID().toString());
                 String managerADSPath = attrs.get("distinguishedName").get().toString();
-                changeUser.setAttribute("eTCustomField22", managerADSPath); // ADSPath of the manager
+                attributes.set("eTCustomField22", managerADSPath); // ADSPath of the manager
+                attributes.flush();
                 logger.debug("Set eTCustomField22: " + managerADSPath);
             } else {
                 logger.debug("No user account found for manager in AD.");
@@ -0,0 +1,65 @@
+package org.fasttrack.blth;
+
+import org.fasttrack.util.Deadline;
+import org.fasttrack.util.Tracer;
+import org.fasttrack.util.Tracer.Span;
+import org.fasttrack.util.UserAttributes;
+
+import com.netegrity.imapi.BLTHAdapter;
+import com.netegrity.imapi.BLTHContext;
+/**
+ * The base class of the Business Logic Task Handlers (BLTH) of this package, which
+ * run their business logic in the handleValidation trigger.
+ * <p>
+ * Each invocation is traced under the session ID of the task (see {@link Tracer}) and
+ * runs within the validation budget of a {@link Deadline}. When the business logic fails,
+ * the attributes of the submission are released (see {@link UserAttributes}), so a form
+ * submitted again after the error is read again; and when the deadline is spent, the
+ * user is told so, whatever call the deadline stopped. The attributes are also released
+ * by the handleSubmission trigger, once every BLTH of the task accepted the form.
+ *
+ * @author 		Lester Rivera
+ * @version     %I%, %G%
+ * @since       CA Identity Manager 12.0 CR7
+ */
+public abstract class ValidationBLTHAdapter extends BLTHAdapter {
+    /**
+     * Use the handleValidation trigger because it allows adding new events and
+     * attribute values to the task before it is submitted into the engine.
+     * @exception Exception The error of the business logic, or a DeadlineExceededException
+     * if the deadline was spent.
+     */
+    public void handleValidation(BLTHContext blthContext) throws Exception {
+        String name = getClass().getSimpleName();
+        Span span = Tracer.startTrace(name + ".handleValidation", blthContext.getSessionId());
+        Deadline deadline = Deadline.start(name, Deadline.VALIDATION_BUDGET);
+        try {
+            validate(blthContext);
+        } catch (Exception ex) {
+            // A form submitted again after the error must be read again
+            UserAttributes.release(blthContext);
+            span.setError(ex);
+            if (deadline.isExpired()) {
+                // Tell the user why, whatever call the deadline stopped
+                throw deadline.exceeded();
+            }
+            throw ex;
+        } finally {
+            deadline.end();
+            span.end();
+        }
+    }
+    /**
+     * The submission is accepted; its attributes are no longer needed.
+     */
+    public void handleSubmission(BLTHContext blthContext) throws Exception {
+        UserAttributes.release(blthContext);
+        super.handleSubmission(blthContext);
+    }
+    /**
+     * The business logic of the handleValidation trigger.
+     *
+     * @param blthContext	the context of the task
+     */
+    protected abstract void validate(BLTHContext blthContext) throws Exception;
+}
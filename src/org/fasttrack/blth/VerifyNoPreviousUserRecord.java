@@ -5,8 +5,8 @@ import java.util.Vector;
 import org.apache.commons.logging.Log; 
 import org.apache.commons.logging.LogFactory;
 
-import com.netegrity.imapi.BLTHAdapter;
 import com.netegrity.imapi.BLTHContext;
+import org.fasttrack.util.UserAttributes;
 import com.netegrity.llsdk6.imsapi.managedobject.User;
 import com.netegrity.ims.exception.IMSException;
 import com.netegrity.llsdk6.imsapi.collections.AttributeRightsCollection;
@@ -37,16 +37,14 @@ import com.netegrity.llsdk6.imsapi.type.ConjunctionType;
  */
 
 // Associate this BLTH with task Create User
-public class VerifyNoPreviousUserRecord extends BLTHAdapter {
+public class VerifyNoPreviousUserRecord extends ValidationBLTHAdapter {
     private static final Log logger = LogFactory.getLog(VerifyNoPreviousUserRecord.class);
-    private String foundID = "N/A";
-    private String foundName = "N/A";
     /**
      * Use the handleValidation trigger because it allows adding new events and
      * attribute values to the task before it is submitted into the engine.
      * @exception IMSException If a duplicate user is found.
      */
-    public void handleValidation(BLTHContext blthContext) throws Exception {
+    protected void validate(BLTHContext blthContext) throws Exception {
         
         logger.debug("Retrieving User Record Information.");
         
@@ -57,26 +55,22 @@ public class VerifyNoPreviousUserRecord extends BLTHAdapter {
         if (changeUser != null) {
         	// Retrieve from the userform to use in the query
         	// The last 4 digits of the SSN
-            String userLast4SSN = "";
-            if (changeUser.containsAttribute("eTCustomField06")) {
-                userLast4SSN = changeUser.getAttribute("eTCustomField06"); //Last 4 SSN
-            }
+            // The attributes are shared with the other BLTHs of the task
+            UserAttributes userAttributes = UserAttributes.forRequest(blthContext);
+            String userLast4SSN = userAttributes.get("eTCustomField06"); //Last 4 SSN
             logger.debug("Retrieved eTCustomField06: " + userLast4SSN);
             // The first name; not really used for the query, but good to log errors
-            String firstName = "";
-            if (changeUser.containsAttribute("%FIRST_NAME%")) {
-                firstName = changeUser.getAttribute("%FIRST_NAME%"); //First Name
-            }
+            String firstName = userAttributes.get("%FIRST_NAME%"); //First Name
             logger.debug("Retrieved %FIRST_NAME%: " + firstName);
             // the last name      
-            String lastName = "";
-            if (changeUser.containsAttribute("%LAST_NAME%")) {
-                lastName = changeUser.getAttribute("%LAST_NAME%"); //Last Name
-            }
+            String lastName = userAttributes.get("%LAST_NAME%"); //Last Name
             logger.debug("Retrieved %LAST_NAME%: " + lastName);
             
             // 1. Search for the manager's global record
             logger.info("Searching for a previous user record for " + firstName + " " + lastName);
+            // The user record found, if any; kept per request
+            String foundID = "N/A";
+            String foundName = "N/A";
                 
 		    try
 		    {
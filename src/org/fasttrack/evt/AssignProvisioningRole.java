@@ -14,7 +14,18 @@ import com.netegrity.llsdk6.imsapi.managedobject.ProvisioningRole;
 import com.netegrity.llsdk6.imsapi.exception.NoSuchObjectException;
 import com.netegrity.imapi.IMEventName;
 
+import org.fasttrack.util.ProvisioningRoleResolver;
+import org.fasttrack.util.ProvisioningRoleResolver.Resolution;
 import org.fasttrack.util.ProvisioningRolesType;
+import org.fasttrack.util.ProvisioningRolesType.RoleType;
+import org.fasttrack.util.RoleAssignmentRule;
+import org.fasttrack.util.RoleAssignmentRule.Decision;
+import org.fasttrack.util.RoleMembership;
+import org.fasttrack.util.Deadline;
+import org.fasttrack.util.DeadlineExceededException;
+import org.fasttrack.util.Tracer;
+import org.fasttrack.util.Tracer.Span;
+import org.fasttrack.util.Warmup;
 
 import javax.mail.Session; 
 import javax.mail.Message; 
@@ -54,16 +65,61 @@ import java.util.Properties;
  * Roles in <b>eTCustomField52</b> is always complete; that is, the list represents
  * all the Functional Roles that should be assigned to the user. As such, during an update 
  * the business logic will attempt to remove any Functional Roles assigned to the user not 
- * found on the list. 
+ * found on the list. The roles are only removed when the list brings at least one new
+ * Functional Role, and roles still on the list are kept. The same rule is used by the
+ * RoleDriftReconciler batch job (see {@link RoleAssignmentRule}).
  * <h3>User-Defined Properties</h3>
  * <ul>
  * <li><b>SMTP_SERVER</b> - SMTP Host Name or IP Address
  * <li><b>SMTP_PORT</b> - SMTP Port; Optional if default port (25)
  * <li><b>TO_EMAIL</b> - Email Address to receive; More than one email can be used separated by comma (,)
  * <li><b>FROM_EMAIL</b> - Email Address of sender; may be required by SMTP server
+ * <li><b>SMTP_TIMEOUT</b> - Optional. Milliseconds allowed to connect, read and write
+ * when sending an email. Default is 10000.
  * <li><b>DEBUG</b> - Optional. TRUE if you want to trace SMTP in server log.
  * <li><b>BASE_ROLE</b> - Optional. Name of the Provisioning Role assigned to all users.
+ * <li><b>COALESCE_WINDOW</b> - Optional. Time in milliseconds during which a ModifyUserEvent
+ * is skipped when the Functional Roles of the user did not change since the last event
+ * processed for the user. Disabled if not set or 0.
+ * <li><b>COALESCE_MAX_USERS</b> - Optional. Maximum number of users whose last processed
+ * Functional Roles are remembered; the least recent are forgotten first. Default is 1000.
+ * <li><b>ROLE_LOOKUP_THREADS</b> - Optional. Number of Provisioning Role lookups to run in
+ * parallel for an event. Default is 1; that is, one at a time. CA Identity Manager does not
+ * document the Provisioning Role provider of an event as safe to call from several threads,
+ * so values above 1 are opt-in; try them under load first.
+ * <li><b>WARMUP</b> - Optional. TRUE to open the LDAP connections in the background when
+ * CA Identity Manager starts (see {@link Warmup}), and to look up the WARMUP_ROLES with the
+ * roles of the first event.
+ * <li><b>WARMUP_ROLES</b> - Optional. Comma-delimited list of the known Functional Roles whose
+ * role types are cached by the first event.
+ * <li><b>WARMUP_WAIT</b> - Optional. Milliseconds the initialization waits for the warm-up
+ * before CA Identity Manager continues to start. Default is 0, not to wait.
  * </ul>
+ * <h3>Event Coalescing</h3>
+ * Bulk updates and multi-step tasks can fire several ModifyUserEvents for the same user
+ * within seconds, most of them with the same value of <b>eTCustomField52</b>. When
+ * COALESCE_WINDOW is set, the listener remembers the list of Functional Roles it last
+ * processed for each user (by unique name). A ModifyUserEvent that carries the same list
+ * within the window is skipped; any other event is processed at once, in its own event, and
+ * remembered. Nothing is deferred past the event. A role assigned or revoked by other means
+ * within the window is only reconciled by the next event after the window, or with another
+ * list. CreateUserEvents are never skipped.
+ * <h3>Role Lookups</h3>
+ * The Base Role and all the Functional Roles of an event are looked up in one pass,
+ * ROLE_LOOKUP_THREADS at a time (see {@link ProvisioningRoleResolver}), so a long list of
+ * roles takes about as long as its slowest lookups rather than the sum of all of them. The
+ * role memberships of the user are read once. The roles are then assigned and revoked in
+ * the order of the list, as before; duplicate and blank names in the list are ignored.
+ * <h3>Warm-up</h3>
+ * The Provisioning Roles can only be looked up through the provider of an event, which CA
+ * Identity Manager does not document as usable from another thread or after the event,
+ * so the roles cannot be resolved when the listener is initialized. Instead, the first
+ * event looks up the WARMUP_ROLES on its own thread, in the same pass as its own roles, and
+ * caches their role types for the next events (see {@link ProvisioningRolesType}).
+ * <h3>Deadline</h3>
+ * Each event is given a {@link Deadline}. The Provisioning Role lookups, the directory
+ * calls and the emails take their timeouts from the time left, and once it is spent the
+ * event stops with an error instead of waiting on each remaining call.
  * 
  * @author      Lester Rivera
  * @version     %I%, %G%
@@ -80,8 +136,22 @@ public class AssignProvisioningRole extends EventListenerAdapter {
 	private String[] _recipients;
 	private String _debug  = "false";
     private Boolean _canMail  = false;
-    private Boolean _isCreate  = false;
     private String _baseRole  = "";
+    private long _coalesceWindow = 0;
+    private int _coalesceMaxUsers = 1000;
+    private long _smtpTimeout = 10000;
+    // Last Functional Roles processed per user unique name, least recently processed first
+    private final Map<String, Processed> _processed = new LinkedHashMap<String, Processed>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        protected boolean removeEldestEntry(Map.Entry<String, Processed> eldest) {
+            return size() > _coalesceMaxUsers;
+        }
+    };
+    private ProvisioningRoleResolver _resolver = null;
+    private boolean _warmup = false;
+    private List<String> _warmupRoles = new ArrayList<String>();
+    private volatile boolean _rolesWarmed = false;
     /** 
      * Business logic performed when the Event Listener is initialized.
      * Retrieves the configuration parameters for the Event 
@@ -97,6 +167,20 @@ public class AssignProvisioningRole extends EventListenerAdapter {
         _fromEmail = (String) imeProperties.get("FROM_EMAIL");
         _debug = (String) imeProperties.get("DEBUG");
         _baseRole = (String) imeProperties.get("BASE_ROLE");
+        _coalesceWindow = parseNumber((String) imeProperties.get("COALESCE_WINDOW"), 0);
+        _coalesceMaxUsers = (int) parseNumber((String) imeProperties.get("COALESCE_MAX_USERS"), _coalesceMaxUsers);
+        _smtpTimeout = parseNumber((String) imeProperties.get("SMTP_TIMEOUT"), _smtpTimeout);
+        int lookupThreads = ProvisioningRoleResolver.parseThreads((String) imeProperties.get("ROLE_LOOKUP_THREADS"));
+        // Stop the threads of the previous settings
+        if (_resolver != null) {
+            _resolver.shutdown();
+        }
+        _resolver = new ProvisioningRoleResolver(lookupThreads);
+        String warmup = (String) imeProperties.get("WARMUP");
+        long warmupWait = parseNumber((String) imeProperties.get("WARMUP_WAIT"), 0);
+        _warmup = warmup != null && warmup.trim().equalsIgnoreCase("TRUE");
+        _warmupRoles = ProvisioningRoleResolver.parseRoleNames((String) imeProperties.get("WARMUP_ROLES"));
+        _rolesWarmed = false;
         
         // In case multiple email addresses
         if (_toEmail.contains(","))
@@ -113,54 +197,151 @@ public class AssignProvisioningRole extends EventListenerAdapter {
         logger.debug("Set FROM_EMAIL " + _fromEmail);
         logger.debug("Set DEBUG " + _debug);
         logger.debug("Set BASE_ROLE " + _baseRole);
+        logger.debug("Set COALESCE_WINDOW " + _coalesceWindow);
+        logger.debug("Set COALESCE_MAX_USERS " + _coalesceMaxUsers);
+        logger.debug("Set SMTP_TIMEOUT " + _smtpTimeout);
+        logger.debug("Set ROLE_LOOKUP_THREADS " + lookupThreads);
+        logger.debug("Set WARMUP " + _warmup);
+        logger.debug("Set WARMUP_ROLES " + _warmupRoles);
+        logger.debug("Set WARMUP_WAIT " + warmupWait);
         logger.debug("Can We Email " + _canMail);
 
+        if (_warmup) {
+            Warmup.ldap();
+            Warmup.await(warmupWait);
+        }
+
     }
     
     /** 
      * Business logic performed after the event occurs.
      */
     public int after(EventContext evtCtx) throws Exception {
+        IMEvent evt = evtCtx.getEvent();
+        if (_coalesceWindow <= 0 || !(evt instanceof UserEvent)) {
+            return assignRoles(evtCtx);
+        }
+        User user = ((UserEvent) evt).getUser();
+        String key = user.getUniqueName();
+        List<String> funcRoles = ProvisioningRoleResolver.parseRoleNames(user.getAttribute("eTCustomField52"));
+        if (!evtCtx.getEventName().equals(IMEventName.CREATEUSEREVENT) && isProcessed(key, funcRoles)) {
+            logger.debug("Skipping event for user " + key + "; Functional Roles unchanged since the last event.");
+            return CONTINUE;
+        }
+        int result = assignRoles(evtCtx);
+        synchronized (_processed) {
+            _processed.put(key, new Processed(funcRoles, System.currentTimeMillis()));
+        }
+        return result;
+    }
+    
+    /**
+     * Determines if the same Functional Roles were processed for the user within the
+     * coalescing window.
+     * 
+     * @param key		the unique name of the user
+     * @param funcRoles	the Functional Roles of the event
+     * @return true, if the event can be skipped; false, if it must be processed.
+     */
+    private boolean isProcessed(String key, List<String> funcRoles) {
+        synchronized (_processed) {
+            Processed last = _processed.get(key);
+            return last != null && last.funcRoles.equals(funcRoles)
+                    && System.currentTimeMillis() - last.time < _coalesceWindow;
+        }
+    }
+    
+    /** 
+     * Assigns and revokes the Provisioning Roles of the user in the event.
+     * The work is recorded as a trace of its own.
+     */
+    private int assignRoles(EventContext evtCtx) throws Exception {
+        Span span = Tracer.startTrace("AssignProvisioningRole.after", null)
+                .setAttribute("im.event", evtCtx.getEventName());
+        Deadline deadline = Deadline.start("AssignProvisioningRole", Deadline.EVENT_BUDGET);
+        try {
+            return processRoles(evtCtx);
+        } catch (Exception ex) {
+            span.setError(ex);
+            if (deadline.isExpired()) {
+                throw deadline.exceeded();
+            }
+            throw ex;
+        } finally {
+            deadline.end();
+            span.end();
+        }
+    }
+    
+    // The business logic of assignRoles
+    private int processRoles(EventContext evtCtx) throws Exception {
         IMEvent evt = evtCtx.getEvent();
         // LJR - Fix on 3/18/10 - isRoleMemeber() call fails in CreateUserEvent
-        _isCreate = evtCtx.getEventName().equals(IMEventName.CREATEUSEREVENT);
+        boolean isCreate = evtCtx.getEventName().equals(IMEventName.CREATEUSEREVENT);
         if (evt instanceof UserEvent) {
         	// Retrieve the user object in the event
             User user = ((UserEvent) evt).getUser();
 
-        	String[] temp;
-            Vector requestedRoles = new Vector(); 							// Temporary list of requested roles
-            String delimiter = ","; 										// Delimiter for the list of functional roles
             String userFuncRole = user.getAttribute("eTCustomField52");     // List of functional roles
             
             logger.debug("Processing user " + user.getFriendlyName());
             logger.debug("Functional Role (eTCustomField52) " + userFuncRole);
-            logger.debug("Is this a create event? " + _isCreate);
+            logger.debug("Is this a create event? " + isCreate);
 
-            // Process the Base Role
-            ProvisioningRole baseRole = null;
+            // Fetch the role membership once for all the checks below;
+            // isRoleMember() fails in CreateUserEvent, and a new user has no roles.
+            RoleMembership membership = RoleMembership.EMPTY;
+            if (!isCreate) {
+                try {
+                    membership = RoleMembership.fetch(user);
+                } catch (DeadlineExceededException ex) {
+                    throw ex; // stop the event; the remaining calls would fail as well
+                } catch (Exception ex) {
+                    // Carry on as if the user had no roles: the roles are assigned again, none is revoked
+                    logger.error("Unspecified error reading the Provisioning Roles of user " + user.getFriendlyName() + ": " + ex.getMessage());
+                }
+            }
+
+            // Look up the Base Role and all the Functional Roles in one pass, in parallel;
+            // the events are then generated one after the other, in the order of the list
+            List<String> funcRoles = ProvisioningRoleResolver.parseRoleNames(userFuncRole);
+            logger.debug("OMF Functional Role (eTCustomField52) after cleanup " + funcRoles);
+            String baseName = _baseRole.trim();
+            List<String> names = new ArrayList<String>(funcRoles);
+            if (!baseName.isEmpty() && !names.contains(baseName)) {
+                names.add(0, baseName);
+            }
+            List<String> warmupNames = warmupNames(names);
+            List<String> lookups = new ArrayList<String>(names);
+            lookups.addAll(warmupNames);
+            Map<String, Resolution> resolved = resolveRoles(evtCtx, lookups);
+            cacheWarmupRoles(resolved, warmupNames);
+
+            // Resolve the Base Role
+            Map<String, ProvisioningRole> roles = new LinkedHashMap<String, ProvisioningRole>();
+            String baseKey = null;
             logger.debug("Determining if Base Role needs to assigned.");
-            if (!_baseRole.isEmpty()){
+            if (!baseName.isEmpty()){
 	            try{
 	            	// Determines if the base role exists in the system.
-	                baseRole =  evtCtx.getProvisioningRoleProvider().findProvisioningRole(_baseRole.trim());
-	                if(baseRole.exists() && (_isCreate || !user.isRoleMember(baseRole))) {
-	                	// Create an AssignProvisioningRoleEvent to provision the role
-                        logger.debug("Generating AssignProvisioningRoleEvent");
-                        evtCtx.generateEvent("com.netegrity.ims.events.AssignProvisioningRoleEvent", user, baseRole,null);
-                        logger.info("Assign Provisioning Role " + baseRole.getFriendlyName() + " to user " + user.getFriendlyName());
+	                ProvisioningRole baseRole = foundRole(resolved.get(baseName));
+	                if(baseRole != null) {
+	                    baseKey = baseRole.getUniqueName();
+	                    roles.put(baseKey, baseRole);
 	                }
 	            } catch(NoSuchObjectException e){
-	                logger.warn("Could not find the Provisioning Role " + baseRole.getFriendlyName());
+	                logger.warn("Could not find the Provisioning Role " + baseName);
 	
 	                // Notify if no provisioning role was found for a base role
 	                String mytxt = "The following system did not find a Provisioning Role corresponding to " +
 	                        "the Base Role.\n" +
-	                        "Base Role: " + baseRole.getFriendlyName() + "\n" +
+	                        "Base Role: " + baseName + "\n" +
 	                        "UserID: " + user.getFriendlyName() + "\n" +
 	                        "Event: " + evt.getEventName() + "\n" +
 	                        "\n\n**** This is an automated message sent by the Identity Management System ****";
 	                this.postMail("Provisioning Role not found for Base Role.", mytxt);
+	            } catch(DeadlineExceededException ex){
+	                throw ex; // stop the event; the remaining calls would fail as well
 	            } catch(Exception ex){
 	                logger.error("Unspecified error in Base Role Processing: " + ex.getMessage());
 	            }
@@ -168,75 +349,142 @@ public class AssignProvisioningRole extends EventListenerAdapter {
             	logger.error("No Base Role was configured for the Event Listener.");
             }
                
-            // Process the Functional Roles    
-            // FIX: If submitted from the userform, we may get control characters
-            userFuncRole = userFuncRole.replaceAll("(\r\n|\r|\n|\n\r|\u001F\u001F)", ",");
-            logger.debug("OMF Functional Role (eTCustomField52) after cleanup " + userFuncRole);
-            if(!userFuncRole.isEmpty()) {
-            	// Split the comma-delimited list 
-            	temp = userFuncRole.split(delimiter);  
-            	for(int i =0; i < temp.length ; i++) {                   
-                	// Set the Provisioning Role from Functional Role
-                    ProvisioningRole assignRole = null;
+            // Resolve the Functional Roles    
+            List<String> listed = new ArrayList<String>();
+            if(!funcRoles.isEmpty()) {
+            	for (String roleName : funcRoles) {
                     try{
-                    	logger.debug("Searching for Provisioning Role based on OMF Functional Role value.");
-                    	assignRole =  evtCtx.getProvisioningRoleProvider().findProvisioningRole(temp[i].trim());
-                        if(assignRole.exists()) {
-                            if(_isCreate || !user.isRoleMember(assignRole)) {
-                            	// assign the role to the list of requested roles
-                                requestedRoles.add(assignRole);
-                                // Create an AssignProvisioningRoleEvent to provision the role
-                            	logger.debug("Generating AssignProvisioningRoleEvent");
-                                evtCtx.generateEvent("com.netegrity.ims.events.AssignProvisioningRoleEvent", user, assignRole,null);
-                                logger.info("Assign Provisioning Role " + assignRole.getFriendlyName() + " from the Functional Role (eTCustomField52) for user " + user.getFriendlyName());
-                            }
+                    	ProvisioningRole assignRole = foundRole(resolved.get(roleName));
+                        if(assignRole != null) {
+                            listed.add(assignRole.getUniqueName());
+                            roles.put(assignRole.getUniqueName(), assignRole);
                         }
                     } catch(NoSuchObjectException e){
-                    	logger.warn("Could not find the Provisioning Role " + temp[i].trim());
+                    	logger.warn("Could not find the Provisioning Role " + roleName);
                     	
                     	// Notify if no provisioning role was found for an OMF Role
                         String mytxt = "The following system did not find a Provisioning Role corresponding to " +
                         	"the Functional Role.\n" +
-                        	"Functional Role: " + temp[i].trim() + "\n" +
+                        	"Functional Role: " + roleName + "\n" +
                         	"UserID: " + user.getFriendlyName() + "\n" +
                         	"Event: " + evt.getEventName() + "\n" +
                         	"\n\n**** This is an automated message sent by the Identity Management System ****";
                         this.postMail("Provisioning Role not found for Functional Role.", mytxt);
+                    } catch(DeadlineExceededException ex){
+                        throw ex; // stop the event; the remaining calls would fail as well
                     } catch(Exception ex){
                     	logger.error("Unspecified error in Functional Role Processing: " + ex.getMessage());
                     }
             	}//for
-                    
-            	// Determine if we need to de-provision any roles
-            	// Basically, we compare the current list of functional roles from the user attribute with
-            	// the list of provisioning roles of type functional role that is already assigned to the user.
-            	if (requestedRoles.size() > 0 && !_isCreate){
-            		// Determine what the type of the newly requested roles
-            		ProvisioningRolesType newRoles = new ProvisioningRolesType(requestedRoles);
-            		// Determine the type of the currently assigned roles
-            		ProvisioningRolesType assignedRoles = new ProvisioningRolesType(user.getProvisioningRolesMember());
-            		logger.debug("Functional roles found. Requested: " + newRoles.getFunctionalRoles().size() + " Assigned: "+ assignedRoles.getFunctionalRoles().size());
-            		if (assignedRoles.hasFunctionalRoles() && newRoles.hasFunctionalRoles()) {
-            			logger.debug("User has previously assigned functional roles.");
-            			Iterator vItr = assignedRoles.getFunctionalRoles().iterator(); 
-            			ProvisioningRole checkRole = null;
-            			logger.debug("Ready to remove previously assigned functional roles.");
-            			while(vItr.hasNext()){
-            				checkRole = (ProvisioningRole) vItr.next();
-            				 // Create an RevokeProvisioningRoleEvent to de-provision the role
-            				logger.debug("Generating RevokeProvisioningRoleEvent");
-            				evtCtx.generateEvent("com.netegrity.ims.events.RevokeProvisioningRoleEvent", user, checkRole,null);
-            				logger.info("Remove Assigned Functional Provisioning Role " + checkRole.getFriendlyName() + " for user " + user.getFriendlyName());
-            			} //While
-            		}
-            	}
             } else { //if
             	logger.warn("No Functional Role Assigned to User: " + user.getFriendlyName());
             } 
-                
+
+            // Decide the roles to assign and revoke with the rule shared with the RoleDriftReconciler;
+            // the Functional Roles not on the list are only revoked when a new Functional Role is assigned
+            List<String> assigned = new ArrayList<String>();
+            for (ProvisioningRole role : membership.getRoles()) {
+                assigned.add(role.getUniqueName());
+                roles.put(role.getUniqueName(), role);
+            }
+            ProvisioningRolesType types = new ProvisioningRolesType(roles.values());
+            Map<String, RoleType> typeByKey = new HashMap<String, RoleType>();
+            for (Map.Entry<String, ProvisioningRole> role : roles.entrySet()) {
+                typeByKey.put(role.getKey(), types.getRoleType(role.getValue().getFriendlyName()));
+            }
+            Decision<String> decision = RoleAssignmentRule.decide(baseKey, listed, assigned, typeByKey, isCreate);
+            logger.debug("Roles to assign: " + decision.getAssign() + " Roles to revoke: " + decision.getRevoke());
+
+            for (String key : decision.getAssign()) {
+                ProvisioningRole assignRole = roles.get(key);
+                try {
+                    // Create an AssignProvisioningRoleEvent to provision the role
+                    logger.debug("Generating AssignProvisioningRoleEvent");
+                    evtCtx.generateEvent("com.netegrity.ims.events.AssignProvisioningRoleEvent", user, assignRole,null);
+                    if (key.equals(baseKey)) {
+                        logger.info("Assign Provisioning Role " + assignRole.getFriendlyName() + " to user " + user.getFriendlyName());
+                    } else {
+                        logger.info("Assign Provisioning Role " + assignRole.getFriendlyName() + " from the Functional Role (eTCustomField52) for user " + user.getFriendlyName());
+                    }
+                } catch(DeadlineExceededException ex){
+                    throw ex; // stop the event; the remaining calls would fail as well
+                } catch(Exception ex){
+                    logger.error("Unspecified error assigning Provisioning Role " + key + ": " + ex.getMessage());
+                }
+            }
+            for (String key : decision.getRevoke()) {
+                ProvisioningRole checkRole = roles.get(key);
+                try {
+                    // Create an RevokeProvisioningRoleEvent to de-provision the role
+                    logger.debug("Generating RevokeProvisioningRoleEvent");
+                    evtCtx.generateEvent("com.netegrity.ims.events.RevokeProvisioningRoleEvent", user, checkRole,null);
+                    logger.info("Remove Assigned Functional Provisioning Role " + checkRole.getFriendlyName() + " for user " + user.getFriendlyName());
+                } catch(DeadlineExceededException ex){
+                    throw ex; // stop the event; the remaining calls would fail as well
+                } catch(Exception ex){
+                    logger.error("Unspecified error revoking Provisioning Role " + key + ": " + ex.getMessage());
+                }
+            }
         }
         return CONTINUE;
     }
+    
+    // The WARMUP_ROLES to look up with the roles of the first event; none after that
+    private List<String> warmupNames(List<String> names) {
+        List<String> warmupNames = new ArrayList<String>();
+        if (_warmup && !_rolesWarmed) {
+            _rolesWarmed = true;
+            for (String name : _warmupRoles) {
+                if (!names.contains(name)) {
+                    warmupNames.add(name);
+                }
+            }
+        }
+        return warmupNames;
+    }
+    // Caches the role types of the WARMUP_ROLES found; a failure only costs the next events a lookup
+    private void cacheWarmupRoles(Map<String, Resolution> resolved, List<String> warmupNames) {
+        if (warmupNames.isEmpty()) {
+            return;
+        }
+        List<ProvisioningRole> found = new ArrayList<ProvisioningRole>();
+        for (String name : warmupNames) {
+            Resolution resolution = resolved.get(name);
+            if (resolution != null && resolution.isFound()) {
+                found.add(resolution.getRole());
+            } else {
+                logger.warn("Warm-up did not find the Provisioning Role " + name);
+            }
+        }
+        try {
+            new ProvisioningRolesType(found);
+            logger.info("Warm-up cached the role types of " + found.size() + " of " + warmupNames.size() + " Provisioning Roles.");
+        } catch (DeadlineExceededException ex) {
+            throw ex; // stop the event; the remaining calls would fail as well
+        } catch (Exception ex) {
+            logger.warn("Warm-up could not cache the role types: " + ex.getMessage());
+        }
+    }
+    // Look up the Provisioning Roles, in parallel up to ROLE_LOOKUP_THREADS; by role name
+    private Map<String, Resolution> resolveRoles(EventContext evtCtx, List<String> names) throws Exception {
+        Map<String, Resolution> resolved = new HashMap<String, Resolution>();
+        long start = System.currentTimeMillis();
+        for (Resolution resolution : _resolver.resolve(evtCtx.getProvisioningRoleProvider(), names)) {
+            resolved.put(resolution.getName(), resolution);
+        }
+        logger.debug("Resolved " + names.size() + " Provisioning Roles in " + (System.currentTimeMillis() - start) + " ms.");
+        return resolved;
+    }
+    // The Provisioning Role of a lookup; null if it does not exist, or the error of the lookup
+    private static ProvisioningRole foundRole(Resolution resolution) throws Exception {
+        Throwable error = resolution.getError();
+        if (error instanceof Exception) {
+            throw (Exception) error;
+        } else if (error != null) {
+            throw new Exception(error);
+        }
+        return resolution.isFound() ? resolution.getRole() : null;
+    }
     /** 
      * Method to send email to select recipients based upon parameter settings in the
      * Event Listener configuration.
@@ -262,11 +510,17 @@ public class AssignProvisioningRole extends EventListenerAdapter {
 	        	 logger.debug("Setting mail.smtp.port properties to default port (25).");
 	        	 props.put("mail.smtp.port", "25");
 	         }
+	         // Bound each step of the send by the time left to the deadline of the event
+	         String timeout = String.valueOf(Deadline.timeout("smtp.send", _smtpTimeout));
+	         props.put("mail.smtp.connectiontimeout", timeout);
+	         props.put("mail.smtp.timeout", timeout);
+	         props.put("mail.smtp.writetimeout", timeout);
 	         logger.debug("Completed setting properties.");
 	
-	        // create some properties and get the default Session
+	        // create some properties and get a Session; not the default Session,
+	        // which keeps the properties, and so the timeouts, of the first call
 	         logger.debug("Getting session.");
-	        Session session = Session.getDefaultInstance(props, null);
+	        Session session = Session.getInstance(props, null);
 	        if (_debug != null && _debug.equalsIgnoreCase("true")){ debug = true;} // Set debug to true if _debug value is true
 	        session.setDebug(debug);
             try {
@@ -303,7 +557,15 @@ public class AssignProvisioningRole extends EventListenerAdapter {
                 logger.debug("Sending email. Subject - " + subject + " - to: " + _toEmail);
                 msg.setSubject(subject);
                 msg.setContent(message, "text/plain");
-                Transport.send(msg);
+                Span span = Tracer.startSpan("smtp.send").setAttribute("smtp.host", _smtp);
+                try {
+                    Transport.send(msg);
+                } catch (MessagingException ex) {
+                    span.setError(ex);
+                    throw ex;
+                } finally {
+                    span.end();
+                }
 	        } catch (Exception ex) {
 	        	logger.error(" Error postMail exception: " + ex.getMessage());
 	        }
@@ -311,5 +573,29 @@ public class AssignProvisioningRole extends EventListenerAdapter {
         	logger.debug("No email sent. SMTP settings must be set.");
         }
     } //postMail
+    
+    // The Functional Roles last processed for a user, and when
+    private static class Processed {
+        final List<String> funcRoles;
+        final long time;
+
+        Processed(List<String> funcRoles, long time) {
+            this.funcRoles = funcRoles;
+            this.time = time;
+        }
+    }
+    
+    // Parse an optional numeric property; returns the default if not set or invalid
+    private static long parseNumber(String value, long defaultValue) {
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException ex) {
+            logger.warn("Invalid numeric property value: " + value);
+            return defaultValue;
+        }
+    }
 
 }
\ No newline at end of file
@@ -0,0 +1,193 @@
+package org.fasttrack.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+/**
+ * A table-driven rule engine which derives user attribute values from the value of
+ * a single key attribute; for example, the title of a contractor from the employee type.
+ * <p>
+ * The rules are loaded from a properties file, where each entry maps a value of the
+ * key attribute to the attribute assignments it implies, separated by semicolons:
+ * <pre>
+ * ABC  = eTCustomField03=2; eTTitle=ABC Contractor
+ * USMC = eTCustomField03=M; eTTitle=US Marines
+ * *    = eTCustomField03=2; eTTitle=Contractor
+ * </pre>
+ * The entry <b>*</b> is the default used for any value without an entry of its own.
+ * Key values are matched regardless of case. The rules are compiled once into a hash
+ * table, so evaluating a value is a single lookup no matter how many rules exist.
+ * <p>
+ * When loaded from a file, the engine checks the modification time of the file at most
+ * once per reload interval and recompiles the rules when it changed. The new rules replace
+ * the old ones in a single atomic swap; requests being evaluated at the time see either the
+ * old or the new rules, never a mix. If the file cannot be read, the previous rules are kept.
+ * <p>
+ * A relative file name is looked up in the same location as the ldap-target.properties
+ * file used by LDAPUtils.
+ *
+ * @author      Lester Rivera
+ * @version     %I%, %G%
+ * @since       CA Identity Manager 12.0 CR7
+ * @see org.fasttrack.blth.SetContractorAttributes
+ */
+public class AttributeRuleEngine {
+	private static final Log logger = LogFactory.getLog(AttributeRuleEngine.class);
+
+	/** Key of the rule used when no other rule matches */
+	public static final String DEFAULT_KEY = "*";
+
+	private final File _file;
+	private final long _reloadInterval;
+	private final AtomicReference<RuleSet> _rules = new AtomicReference<RuleSet>();
+	private final AtomicLong _nextCheck = new AtomicLong();
+	/**
+	 * Creates an engine with a fixed set of rules.
+	 *
+	 * @param rules	the rules, in the properties format described above
+	 */
+	public AttributeRuleEngine(Properties rules) {
+		_file = null;
+		_reloadInterval = 0;
+		_rules.set(new RuleSet(rules, 0));
+	}
+	/**
+	 * Creates an engine with rules loaded from a file.
+	 *
+	 * @param fileName			the properties file with the rules
+	 * @param reloadInterval	the time in milliseconds between checks for changes in the file;
+	 * 0 disables the reload
+	 * @throws IOException if the file cannot be read
+	 */
+	public AttributeRuleEngine(String fileName, long reloadInterval) throws IOException {
+		File file = new File(fileName);
+		if (!file.isAbsolute()) {
+			File local = new File(AttributeRuleEngine.class.getProtectionDomain().getCodeSource().getLocation().getPath() + File.separator + fileName);
+			if (local.exists()) {
+				file = local;
+			}
+		}
+		_file = file;
+		_reloadInterval = reloadInterval;
+		_rules.set(load(file));
+		_nextCheck.set(System.currentTimeMillis() + reloadInterval);
+		logger.debug("Loaded " + _rules.get().size() + " attribute rules from " + file.getPath());
+	}
+	/**
+	 * Returns the attribute assignments for a value of the key attribute.
+	 *
+	 * @param keyValue	the value of the key attribute; may be null
+	 * @return the attribute names and values to set, in the order of the rule; empty if no
+	 * rule matches and there is no default rule
+	 */
+	public Map<String, String> evaluate(String keyValue) {
+		reloadIfModified();
+		return _rules.get().evaluate(keyValue);
+	}
+	/**
+	 * Recompiles the rules from the file if it changed since it was loaded.
+	 *
+	 * @return true, if new rules were loaded; false otherwise.
+	 */
+	public boolean reload() {
+		if (_file == null) {
+			return false;
+		}
+		RuleSet current = _rules.get();
+		if (_file.lastModified() == current.lastModified) {
+			return false;
+		}
+		try {
+			RuleSet updated = load(_file);
+			if (_rules.compareAndSet(current, updated)) {
+				logger.info("Reloaded " + updated.size() + " attribute rules from " + _file.getPath());
+				return true;
+			}
+		} catch (IOException ex) {
+			logger.error("Unable to reload attribute rules from " + _file.getPath() + ": " + ex.getMessage());
+		}
+		return false;
+	}
+
+	private void reloadIfModified() {
+		if (_reloadInterval <= 0) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		long next = _nextCheck.get();
+		// Only one thread checks the file per interval
+		if (now >= next && _nextCheck.compareAndSet(next, now + _reloadInterval)) {
+			reload();
+		}
+	}
+
+	private static RuleSet load(File file) throws IOException {
+		long lastModified = file.lastModified();
+		Properties props = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			props.load(in);
+		} finally {
+			in.close();
+		}
+		return new RuleSet(props, lastModified);
+	}
+
+	private static String fold(String value) {
+		return value.trim().toUpperCase(Locale.ENGLISH);
+	}
+
+	// An immutable, compiled set of rules
+	private static class RuleSet {
+		private final Map<String, Map<String, String>> table = new HashMap<String, Map<String, String>>();
+		private final Map<String, String> defaults;
+		private final long lastModified;
+
+		RuleSet(Properties props, long lastModified) {
+			this.lastModified = lastModified;
+			for (String key : props.stringPropertyNames()) {
+				Map<String, String> assignments = new LinkedHashMap<String, String>();
+				for (String pair : props.getProperty(key).split(";")) {
+					int idx = pair.indexOf('=');
+					if (idx > 0) {
+						assignments.put(pair.substring(0, idx).trim(), pair.substring(idx + 1).trim());
+					} else if (!pair.trim().isEmpty()) {
+						logger.warn("Ignoring invalid attribute assignment for rule " + key + ": " + pair);
+					}
+				}
+				table.put(fold(key), Collections.unmodifiableMap(assignments));
+			}
+			Map<String, String> fallback = table.get(DEFAULT_KEY);
+			if (fallback == null) {
+				fallback = Collections.emptyMap();
+			}
+			defaults = fallback;
+		}
+
+		Map<String, String> evaluate(String keyValue) {
+			if (keyValue != null) {
+				Map<String, String> assignments = table.get(fold(keyValue));
+				if (assignments != null) {
+					return assignments;
+				}
+			}
+			return defaults;
+		}
+
+		int size() {
+			return table.size();
+		}
+	}
+}
@@ -0,0 +1,186 @@
+package org.fasttrack.util;
+
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.spec.KeySpec;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+/**
+ * A short-lived cache of LDAP authentication decisions, so repeated logins of the
+ * same user within seconds do not each bind to every directory.
+ * <p>
+ * Passwords are never kept. Each decision holds a salted PBKDF2 hash of the password,
+ * and a login is answered from the cache only if the hash of its password matches.
+ * The salt is random per cache, so the hashes are of no use outside of the process.
+ * <p>
+ * Successful authentications are kept for the time-to-live. Failed attempts are kept
+ * for a much shorter time in a separate, smaller cache, so a client retrying a wrong
+ * password does not turn each retry into a bind (and a step towards a lockout) on
+ * Active Directory. A failure does not hide a later login with the right password,
+ * since the decision applies only to the same password.
+ * <p>
+ * Only the failures where the directories rejected the credentials (LDAP error 49)
+ * are recorded; a login that failed because a directory could not answer is asked
+ * again next time.
+ * <p>
+ * The least recently used users are evicted when a cache is full. Call
+ * {@link #invalidate(String)}, through {@link LDAPUtils#invalidateAuthentication(String)},
+ * when a password is changed or an account is disabled.
+ *
+ * @author      Lester Rivera
+ * @version     %I%, %G%
+ * @since       CA Identity Manager 12.0 CR7
+ * @see org.fasttrack.util.LDAPUtils
+ */
+public class AuthenticationCache {
+	private static final Log logger = LogFactory.getLog(AuthenticationCache.class);
+
+	private static final int ITERATIONS = 5000;
+	private static final int KEY_LENGTH = 256;
+
+	private final byte[] salt = new byte[16];
+	private final long ttl;
+	private final long negativeTtl;
+	private final Map<String, Decision> accepted;
+	private final Map<String, Decision> rejected;
+	/**
+	 * Creates a cache.
+	 *
+	 * @param ttl			the time in milliseconds a successful authentication is kept
+	 * @param negativeTtl	the time in milliseconds a failed authentication is kept; 0 to not keep failures
+	 * @param maxEntries	the maximum number of users kept; failures are limited to a tenth of it
+	 */
+	public AuthenticationCache(long ttl, long negativeTtl, int maxEntries) {
+		this.ttl = ttl;
+		this.negativeTtl = negativeTtl;
+		this.accepted = lru(maxEntries);
+		this.rejected = lru(Math.max(maxEntries / 10, 1));
+		new SecureRandom().nextBytes(salt);
+	}
+	/**
+	 * Looks up the decision for a login.
+	 *
+	 * @param username	the UserID provided by the user
+	 * @param password	the password provided by the user
+	 * @return TRUE if the same login succeeded recently, FALSE if it failed recently,
+	 * or null if the directories must be asked
+	 */
+	public Boolean lookup(String username, String password) {
+		String key = key(username);
+		Decision success;
+		Decision failure;
+		synchronized (this) {
+			success = valid(accepted, key);
+			failure = valid(rejected, key);
+		}
+		if (success == null && failure == null) {
+			return null;
+		}
+		// Hash only when the user has a decision to compare with
+		byte[] hash = hash(key, password);
+		if (success != null && MessageDigest.isEqual(success.hash, hash)) {
+			logger.debug("Authentication of " + username + " answered from cache.");
+			return Boolean.TRUE;
+		}
+		if (failure != null && MessageDigest.isEqual(failure.hash, hash)) {
+			logger.debug("Failed authentication of " + username + " answered from cache.");
+			return Boolean.FALSE;
+		}
+		return null;
+	}
+	/**
+	 * Records the decision of the directories for a login.
+	 *
+	 * @param username		the UserID provided by the user
+	 * @param password		the password provided by the user
+	 * @param authenticated	true if the user was authenticated
+	 */
+	public void put(String username, String password, boolean authenticated) {
+		if (!authenticated && negativeTtl <= 0) {
+			return;
+		}
+		String key = key(username);
+		byte[] hash = hash(key, password);
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			if (authenticated) {
+				accepted.put(key, new Decision(hash, now + ttl));
+				rejected.remove(key);
+			} else {
+				rejected.put(key, new Decision(hash, now + negativeTtl));
+			}
+		}
+	}
+	/**
+	 * Forgets the decisions for a user; for example, after a password change.
+	 *
+	 * @param username	the UserID
+	 */
+	public synchronized void invalidate(String username) {
+		String key = key(username);
+		accepted.remove(key);
+		rejected.remove(key);
+	}
+	/**
+	 * Forgets all the decisions.
+	 */
+	public synchronized void clear() {
+		accepted.clear();
+		rejected.clear();
+	}
+
+	private static String key(String username) {
+		return username.trim().toLowerCase(Locale.ENGLISH);
+	}
+
+	// The decision, or null if none or expired; must hold the lock
+	private static Decision valid(Map<String, Decision> decisions, String key) {
+		Decision decision = decisions.get(key);
+		if (decision != null && decision.expires < System.currentTimeMillis()) {
+			decisions.remove(key);
+			return null;
+		}
+		return decision;
+	}
+
+	// Salted with the cache salt and the user, so equal passwords have different hashes
+	private byte[] hash(String key, String password) {
+		try {
+			byte[] userSalt = new byte[salt.length + key.length() * 2];
+			System.arraycopy(salt, 0, userSalt, 0, salt.length);
+			for (int i = 0; i < key.length(); i++) {
+				userSalt[salt.length + i * 2] = (byte) (key.charAt(i) >> 8);
+				userSalt[salt.length + i * 2 + 1] = (byte) key.charAt(i);
+			}
+			KeySpec spec = new PBEKeySpec(password.toCharArray(), userSalt, ITERATIONS, KEY_LENGTH);
+			return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1").generateSecret(spec).getEncoded();
+		} catch (Exception ex) {
+			throw new IllegalStateException("Unable to hash the password: " + ex.getMessage(), ex);
+		}
+	}
+
+	private static Map<String, Decision> lru(final int maxEntries) {
+		return new LinkedHashMap<String, Decision>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<String, Decision> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	private static class Decision {
+		final byte[] hash;
+		final long expires;
+
+		Decision(byte[] hash, long expires) {
+			this.hash = hash;
+			this.expires = expires;
+		}
+	}
+}
@@ -0,0 +1,22 @@
+package org.fasttrack.util;
+
+/**
+ * A source of unique, increasing numbers; for example, the numeric part of the
+ * Contractor UserID (CID) generated by the GenerateCID BLTH.
+ * <p>
+ * Implementations must be safe to call from several threads at once.
+ *
+ * @author      Lester Rivera
+ * @version     %I%, %G%
+ * @since       CA Identity Manager 12.0 CR7
+ * @see org.fasttrack.blth.GenerateCID
+ */
+public interface CounterStore {
+	/**
+	 * Returns the next number of the counter.
+	 *
+	 * @return the next number
+	 * @throws Exception if the counter cannot be read or updated
+	 */
+	long nextValue() throws Exception;
+}
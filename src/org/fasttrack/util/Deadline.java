@@ -0,0 +1,138 @@
+package org.fasttrack.util;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.netegrity.ims.exception.IMSException;
+/**
+ * The time budget of a BLTH invocation or an event, carried by the thread that works
+ * on it. The directory, role and mail calls take their timeouts from the time left, so
+ * a slow server cannot hold a request thread for longer than the budget; once the budget
+ * is spent, the next call fails at once with a {@link DeadlineExceededException}.
+ * <p>
+ * A deadline started while another one is current on the thread never ends later than it.
+ * Work handed to another thread starts a deadline with the current one as its parent, as
+ * for the spans of the {@link Tracer}.
+ * <h3>System Properties</h3>
+ * <ul>
+ * <li><b>fasttrack.deadline.validation</b> - Milliseconds allowed to a BLTH invocation. Default is 30000.
+ * <li><b>fasttrack.deadline.event</b> - Milliseconds allowed to an Event Listener event. Default is 120000.
+ * </ul>
+ *
+ * @author      Lester Rivera
+ * @version     %I%, %G%
+ * @since       CA Identity Manager 12.0 CR7
+ */
+public final class Deadline {
+	private static final Log logger = LogFactory.getLog(Deadline.class);
+
+	/** The budget of a BLTH invocation, in milliseconds */
+	public static final long VALIDATION_BUDGET = Long.getLong("fasttrack.deadline.validation", 30000L);
+	/** The budget of an Event Listener event, in milliseconds */
+	public static final long EVENT_BUDGET = Long.getLong("fasttrack.deadline.event", 120000L);
+
+	private static final ThreadLocal<Deadline> current = new ThreadLocal<Deadline>();
+
+	private final String name;
+	private final long expires;
+	private final Deadline previous;
+
+	private Deadline(String name, long expires, Deadline previous) {
+		this.name = name;
+		this.expires = expires;
+		this.previous = previous;
+	}
+	/**
+	 * Starts a deadline, and makes it the current deadline of the thread.
+	 *
+	 * @param name		the name of the work; for example, the class of the handler
+	 * @param budget	the time allowed in milliseconds
+	 * @return the deadline; call {@link #end()} when done
+	 */
+	public static Deadline start(String name, long budget) {
+		return start(name, budget, current.get());
+	}
+	/**
+	 * Starts a deadline that ends no later than the given one, and makes it the current
+	 * deadline of the thread.
+	 *
+	 * @param name		the name of the work
+	 * @param budget	the time allowed in milliseconds
+	 * @param parent	the deadline of the work, from {@link #current()} on the original thread; may be null
+	 * @return the deadline; call {@link #end()} when done
+	 */
+	public static Deadline start(String name, long budget, Deadline parent) {
+		long expires = System.currentTimeMillis() + budget;
+		if (parent != null && parent.expires < expires) {
+			expires = parent.expires;
+		}
+		Deadline deadline = new Deadline(name, expires, current.get());
+		current.set(deadline);
+		return deadline;
+	}
+	/**
+	 * @return the current deadline of the thread, or null
+	 */
+	public static Deadline current() {
+		return current.get();
+	}
+	/**
+	 * Ends the deadline, and restores the previous current deadline of the thread.
+	 */
+	public void end() {
+		if (previous == null) {
+			current.remove();
+		} else {
+			current.set(previous);
+		}
+	}
+	/**
+	 * @return the time left in milliseconds; zero or less once expired
+	 */
+	public long remaining() {
+		return expires - System.currentTimeMillis();
+	}
+	/**
+	 * @return true if the time is spent
+	 */
+	public boolean isExpired() {
+		return remaining() <= 0;
+	}
+	/**
+	 * @return an error for the userform, telling the request took too long
+	 */
+	public IMSException exceeded() {
+		logger.warn(name + " did not complete within its deadline.");
+		IMSException imsEx = new IMSException();
+		imsEx.addUserMessage("The request took too long to complete and was stopped. Please try again.");
+		return imsEx;
+	}
+	/**
+	 * The timeout of a call, from the time left to the current deadline of the thread.
+	 *
+	 * @param operation	the call; for example, ldap.search
+	 * @param limit		the timeout of the call without a deadline, in milliseconds
+	 * @return the smallest of the limit and the time left; the limit if the thread has no deadline
+	 * @throws DeadlineExceededException if the time is spent
+	 */
+	public static long timeout(String operation, long limit) {
+		Deadline deadline = current.get();
+		if (deadline == null) {
+			return limit;
+		}
+		long remaining = deadline.remaining();
+		if (remaining <= 0) {
+			throw new DeadlineExceededException(operation + " not attempted; the deadline of " + deadline.name + " expired.");
+		}
+		return Math.min(limit, remaining);
+	}
+	/**
+	 * Fails if the current deadline of the thread is spent; for calls that take no timeout.
+	 *
+	 * @param operation	the call about to be made
+	 * @throws DeadlineExceededException if the time is spent
+	 */
+	public static void check(String operation) {
+		timeout(operation, Long.MAX_VALUE);
+	}
+}
@@ -0,0 +1,17 @@
+package org.fasttrack.util;
+/**
+ * Thrown by a directory, role or mail call when the deadline of the BLTH invocation
+ * or event is spent, instead of making the call.
+ *
+ * @author      Lester Rivera
+ * @version     %I%, %G%
+ * @since       CA Identity Manager 12.0 CR7
+ * @see org.fasttrack.util.Deadline
+ */
+public class DeadlineExceededException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	public DeadlineExceededException(String message) {
+		super(message);
+	}
+}
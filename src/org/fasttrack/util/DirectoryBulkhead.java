@@ -0,0 +1,367 @@
+package org.fasttrack.util;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+/**
+ * A limit on the concurrent calls to one LDAP environment, shared by all the threads of
+ * the process, so a bulk load cannot flood a domain controller with hundreds of searches
+ * and modifies, and a slow environment cannot hold all the request threads while the
+ * others are fine.
+ * <p>
+ * The limit adapts to the latency of the calls (additive increase, multiplicative decrease).
+ * Each call that succeeds updates the smoothed latency, a moving average of the latest calls,
+ * so the usual spread of the connects, binds and searches does not move the limit. The
+ * baseline is the lowest smoothed latency of the last minute or two, once enough calls have
+ * completed. A smoothed latency above the baseline by more than the tolerance shows the
+ * directory is queuing, and the limit goes down by 10%, at most once per smoothed latency,
+ * so the calls that were in flight together count as one signal. Otherwise, a call that
+ * completes while the calls in flight use at least half of the limit raises the limit by one
+ * over the limit, which is one for each limit calls. The limit stays between its minimum and
+ * maximum.
+ * <p>
+ * A failed call says nothing of the latency of the directory; an error often comes back at
+ * once. The callers mark the failed calls (see {@link Permit#failed()}), which give their
+ * permit back without a sample.
+ * <p>
+ * A call over the limit waits in a queue for a permit, in order of arrival, for no longer
+ * than the queue timeout nor the time left to the {@link Deadline} of the thread. A call
+ * that finds the queue full, or that waited too long, fails at once with a
+ * {@link DirectoryOverloadedException}.
+ * <p>
+ * The bulkheads are configured by the bulkhead settings of the ldap-target.properties file,
+ * which an environment may override with ENVIRON_bulkhead_...; they are created on the first
+ * call to each environment and keep their settings until CA Identity Manager is restarted.
+ * An invalid number is logged and replaced by its default.
+ * The current limits, calls in flight and queue depths are available from
+ * {@link #getBulkheads()} and {@link #report()}.
+ *
+ * @author      Lester Rivera
+ * @version     %I%, %G%
+ * @since       CA Identity Manager 12.0 CR7
+ * @see org.fasttrack.util.LDAPUtils
+ */
+public class DirectoryBulkhead {
+	private static final Log logger = LogFactory.getLog(DirectoryBulkhead.class);
+
+	private static final double BACKOFF = 0.9;
+	// The weight of each call in the smoothed latency, as for the round-trip time of TCP
+	private static final double SMOOTHING = 0.125;
+	// The calls before the smoothed latency may become the baseline
+	private static final int WARMUP_SAMPLES = 20;
+	// The baseline is the lowest smoothed latency of the current and the previous window,
+	// so it follows a directory that is slower for good, one window later
+	private static final long WINDOW = 60000000000L;
+
+	private static final Map<String, DirectoryBulkhead> bulkheads = new TreeMap<String, DirectoryBulkhead>();
+
+	private final String env;
+	private final int minLimit;
+	private final int maxLimit;
+	private final int maxQueue;
+	private final long queueTimeout;
+	private final double tolerance;
+
+	// Guarded by this
+	private double limit;
+	private int inFlight = 0;
+	private final Deque<Waiter> queue = new ArrayDeque<Waiter>();
+	private long baseline = 0;
+	private double smoothed = 0;
+	private long samples = 0;
+	private long windowMin = 0;
+	private long previousMin = 0;
+	private long windowStart;
+	private long lastDecrease;
+	private long completed = 0;
+	private long rejected = 0;
+	/**
+	 * @param env			the LDAP environment
+	 * @param initialLimit	the limit before any call completes
+	 * @param minLimit		the lowest limit
+	 * @param maxLimit		the highest limit
+	 * @param maxQueue		the number of calls that may wait for a permit
+	 * @param queueTimeout	the time a call may wait for a permit, in milliseconds
+	 * @param tolerance		the ratio of the latency to the baseline above which the limit goes down
+	 */
+	public DirectoryBulkhead(String env, int initialLimit, int minLimit, int maxLimit, int maxQueue, long queueTimeout, double tolerance) {
+		this.env = env;
+		this.minLimit = Math.max(minLimit, 1);
+		this.maxLimit = Math.max(maxLimit, this.minLimit);
+		this.maxQueue = maxQueue;
+		this.queueTimeout = queueTimeout;
+		this.tolerance = tolerance;
+		this.limit = Math.min(Math.max(initialLimit, this.minLimit), this.maxLimit);
+		this.lastDecrease = System.nanoTime();
+		this.windowStart = this.lastDecrease;
+	}
+	/**
+	 * The bulkhead of an environment, created from the settings on first use.
+	 *
+	 * @param env	the LDAP environment
+	 * @param props	the settings of the ldap-target.properties file
+	 * @return the bulkhead, or null if bulkhead is not set to true
+	 */
+	public static DirectoryBulkhead forEnvironment(String env, Properties props) {
+		synchronized (bulkheads) {
+			if (bulkheads.containsKey(env)) {
+				return bulkheads.get(env);
+			}
+			DirectoryBulkhead bulkhead = null;
+			if (setting(props, env, "bulkhead", "false").equalsIgnoreCase("true")) {
+				bulkhead = new DirectoryBulkhead(env,
+						(int) number(props, env, "bulkhead_initial_limit", 20),
+						(int) number(props, env, "bulkhead_min_limit", 2),
+						(int) number(props, env, "bulkhead_max_limit", 100),
+						(int) number(props, env, "bulkhead_queue", 50),
+						(long) number(props, env, "bulkhead_queue_timeout", 1000),
+						number(props, env, "bulkhead_tolerance", 2.0));
+				logger.info("Created " + bulkhead);
+			}
+			// Also kept when disabled, so the settings are read once
+			bulkheads.put(env, bulkhead);
+			return bulkhead;
+		}
+	}
+	/**
+	 * @return the bulkheads created so far, by environment
+	 */
+	public static Map<String, DirectoryBulkhead> getBulkheads() {
+		synchronized (bulkheads) {
+			Map<String, DirectoryBulkhead> enabled = new TreeMap<String, DirectoryBulkhead>();
+			for (Map.Entry<String, DirectoryBulkhead> entry : bulkheads.entrySet()) {
+				if (entry.getValue() != null) {
+					enabled.put(entry.getKey(), entry.getValue());
+				}
+			}
+			return enabled;
+		}
+	}
+	/**
+	 * @return the state of all the bulkheads, one line each
+	 */
+	public static String report() {
+		StringBuilder report = new StringBuilder();
+		for (DirectoryBulkhead bulkhead : getBulkheads().values()) {
+			report.append(bulkhead).append('\n');
+		}
+		return report.toString();
+	}
+	/**
+	 * Waits for a permit to call the directory.
+	 *
+	 * @param operation	the call; for example, ldap.search
+	 * @return the permit; release it when the call is done
+	 * @throws DirectoryOverloadedException if the queue is full, or no permit was given in time
+	 * @throws DeadlineExceededException if the deadline of the thread is spent
+	 */
+	public Permit acquire(String operation) {
+		long wait = Deadline.timeout(operation, queueTimeout);
+		synchronized (this) {
+			// The calls that wait go first, so none waits longer than its turn
+			if (inFlight < (int) limit && queue.isEmpty()) {
+				inFlight++;
+				return new Permit(this);
+			}
+			if (queue.size() >= maxQueue) {
+				throw reject(operation + " rejected; " + inFlight + " calls in flight and " + queue.size() + " waiting");
+			}
+			long expires = System.currentTimeMillis() + wait;
+			Waiter waiter = new Waiter();
+			queue.addLast(waiter);
+			try {
+				// The permit is handed over by release, so no other call takes it meanwhile
+				while (!waiter.granted) {
+					long remaining = expires - System.currentTimeMillis();
+					if (remaining <= 0) {
+						queue.remove(waiter);
+						throw reject(operation + " waited " + wait + " ms for one of the " + (int) limit + " calls in flight");
+					}
+					wait(remaining);
+				}
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				if (waiter.granted) {
+					inFlight--;
+					grant();
+				} else {
+					queue.remove(waiter);
+				}
+				throw reject(operation + " interrupted while waiting");
+			}
+		}
+		return new Permit(this);
+	}
+	/**
+	 * @return the current limit of calls in flight
+	 */
+	public synchronized int getLimit() {
+		return (int) limit;
+	}
+	/**
+	 * @return the number of calls in flight
+	 */
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+	/**
+	 * @return the number of calls waiting for a permit
+	 */
+	public synchronized int getQueued() {
+		return queue.size();
+	}
+	/**
+	 * @return the number of calls completed
+	 */
+	public synchronized long getCompleted() {
+		return completed;
+	}
+	/**
+	 * @return the number of calls rejected
+	 */
+	public synchronized long getRejected() {
+		return rejected;
+	}
+	/**
+	 * @return the baseline latency in milliseconds; 0 until enough calls have completed
+	 */
+	public synchronized double getBaselineMillis() {
+		return baseline / 1000000.0;
+	}
+	/**
+	 * @return the smoothed latency of the latest calls in milliseconds
+	 */
+	public synchronized double getSmoothedMillis() {
+		return smoothed / 1000000.0;
+	}
+
+	public synchronized String toString() {
+		return String.format("bulkhead %s limit=%d inFlight=%d queued=%d completed=%d rejected=%d baseline=%.2fms smoothed=%.2fms",
+				env, (int) limit, inFlight, queue.size(), completed, rejected, baseline / 1000000.0, smoothed / 1000000.0);
+	}
+
+	// Called with the lock held
+	private DirectoryOverloadedException reject(String reason) {
+		rejected++;
+		String message = "The directory " + env + " is overloaded: " + reason + ".";
+		logger.warn(message);
+		return new DirectoryOverloadedException(message);
+	}
+
+	private synchronized void release(long latency, boolean sample) {
+		completed++;
+		if (sample) {
+			long now = System.nanoTime();
+			samples++;
+			smoothed = samples == 1 ? latency : smoothed + SMOOTHING * (latency - smoothed);
+			if (now - windowStart > WINDOW) {
+				previousMin = windowMin;
+				windowMin = 0;
+				windowStart = now;
+			}
+			if (samples >= WARMUP_SAMPLES && (windowMin == 0 || smoothed < windowMin)) {
+				windowMin = (long) smoothed;
+			}
+			baseline = previousMin == 0 ? windowMin : windowMin == 0 ? previousMin : Math.min(previousMin, windowMin);
+			if (baseline > 0 && smoothed > baseline * tolerance) {
+				if (now - lastDecrease > smoothed) {
+					limit = Math.max(minLimit, limit * BACKOFF);
+					lastDecrease = now;
+					logger.debug("Limit of " + env + " down to " + (int) limit + " at a smoothed latency of " + (long) (smoothed / 1000000) + " ms.");
+				}
+			} else if (inFlight * 2 >= limit) {
+				limit = Math.min(maxLimit, limit + 1.0 / limit);
+			}
+		}
+		inFlight--;
+		grant();
+	}
+
+	// Called with the lock held; hands the free permits to the calls that wait, in order
+	private void grant() {
+		boolean granted = false;
+		while (!queue.isEmpty() && inFlight < (int) limit) {
+			queue.removeFirst().granted = true;
+			inFlight++;
+			granted = true;
+		}
+		if (granted) {
+			notifyAll();
+		}
+	}
+
+	// A call waiting for a permit; guarded by the bulkhead
+	private static class Waiter {
+		private boolean granted = false;
+	}
+
+	private static String setting(Properties props, String env, String name, String defaultValue) {
+		return props.getProperty(env + "_" + name, props.getProperty(name, defaultValue)).trim();
+	}
+
+	// A numeric setting; an invalid value is logged and replaced by the default, so that a typo
+	// does not fail every call to the environment
+	private static double number(Properties props, String env, String name, double defaultValue) {
+		String value = setting(props, env, name, "");
+		if (value.isEmpty()) {
+			return defaultValue;
+		}
+		try {
+			return Double.parseDouble(value);
+		} catch (NumberFormatException ex) {
+			logger.warn("Invalid " + name + " value for " + env + ": " + value + "; using " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * The right to make one call to the directory.
+	 */
+	public static class Permit {
+		/** The permit of an environment without a bulkhead */
+		public static final Permit NONE = new Permit(null);
+
+		private final DirectoryBulkhead bulkhead;
+		private final long start = System.nanoTime();
+		private boolean sample = true;
+		private boolean released = false;
+
+		Permit(DirectoryBulkhead bulkhead) {
+			this.bulkhead = bulkhead;
+		}
+		/**
+		 * Keeps the latency of the call out of the limit; for calls whose length depends
+		 * on the caller, such as the paged searches.
+		 *
+		 * @return the permit
+		 */
+		public Permit withoutSample() {
+			if (bulkhead != null) {
+				sample = false;
+			}
+			return this;
+		}
+		/**
+		 * Keeps the latency of a failed call out of the limit; call it before the release.
+		 */
+		public void failed() {
+			if (bulkhead != null) {
+				sample = false;
+			}
+		}
+		/**
+		 * Gives the permit back, and adapts the limit to the latency of the call.
+		 */
+		public void release() {
+			if (bulkhead != null && !released) {
+				released = true;
+				bulkhead.release(System.nanoTime() - start, sample);
+			}
+		}
+	}
+}
@@ -0,0 +1,472 @@
+package org.fasttrack.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+/**
+ * A stream of the changes made to the entries of an LDAP directory, so caches of
+ * directory data can drop exactly the entries that changed instead of expiring on a timer.
+ * <p>
+ * Two modes are supported for Active Directory:
+ * <ul>
+ * <li><b>DIRSYNC</b> - The DirSync control (1.2.840.113556.1.4.841). The directory returns
+ * the entries changed since an opaque cookie. Any domain controller can be used. The
+ * service account needs the read permission on the entries it watches.
+ * <li><b>USN</b> - Polls for entries with a uSNChanged above the highest one already seen.
+ * The update sequence numbers are local to a domain controller, so the entries and the
+ * highestCommittedUSN are read on the same connection to the domain controller, never from
+ * the Global Catalog, and the environment must always point to the same domain controller.
+ * </ul>
+ * The cookie or the highest uSNChanged is saved in a local state file after each batch,
+ * so a restart resumes where it stopped. On the first run, without a state file, the
+ * current state of the directory is taken as the starting point and no change is reported.
+ * <p>
+ * Listeners receive the changes of each poll in a single batch, on the polling thread.
+ * The state is saved only after all the listeners took the batch; if a listener fails, or
+ * the process stops in between, the position is kept and the batch is delivered again to
+ * all the listeners by the next poll, so a listener must accept a batch twice.
+ * <p>
+ * Deleted entries are not reported unless the service account can read the Deleted
+ * Objects container.
+ *
+ * @author      Lester Rivera
+ * @version     %I%, %G%
+ * @since       CA Identity Manager 12.0 CR7
+ * @see org.fasttrack.util.LDAPUtils
+ */
+public class DirectoryChangeStream {
+	private static final Log logger = LogFactory.getLog(DirectoryChangeStream.class);
+
+	/** Mode using the Active Directory DirSync control */
+	public static final String DIRSYNC = "DIRSYNC";
+	/** Mode polling the uSNChanged attribute */
+	public static final String USN = "USN";
+
+	private static final String DIRSYNC_OID = "1.2.840.113556.1.4.841";
+	private static final int DIRSYNC_OBJECT_SECURITY = 0x00000001;
+	private static final int DIRSYNC_MAX_BYTES = 1048576;
+	private static final int PAGESIZE = 500;
+
+	private final String env;
+	private final String mode;
+	private final String filter;
+	private final String[] attributes;
+	private final File stateFile;
+	private final List<ChangeListener> listeners = new CopyOnWriteArrayList<ChangeListener>();
+	private ScheduledExecutorService scheduler = null;
+
+	// The position in the stream; guarded by this
+	private byte[] cookie = null;
+	private long highestUSN = -1;
+	private boolean loaded = false;
+	/**
+	 * Receives the changes of the directory.
+	 */
+	public interface ChangeListener {
+		/**
+		 * @param changes	the entries changed since the previous batch; never empty
+		 */
+		void onChanges(List<Change> changes);
+	}
+	/**
+	 * Creates a change stream; call {@link #start(long)} or {@link #poll()} to read the changes.
+	 *
+	 * @param env			the LDAP environment, configured in the ldap-target.properties file
+	 * @param mode			{@link #DIRSYNC} or {@link #USN}
+	 * @param filter		the LDAP filter of the entries to watch; for example, (objectClass=user)
+	 * @param attributes	the attributes to return with each change
+	 * @param stateFile		the file where the position in the stream is saved
+	 */
+	public DirectoryChangeStream(String env, String mode, String filter, String[] attributes, File stateFile) {
+		if (!DIRSYNC.equals(mode) && !USN.equals(mode)) {
+			throw new IllegalArgumentException("Unknown change stream mode: " + mode);
+		}
+		this.env = env;
+		this.mode = mode;
+		this.filter = filter;
+		this.attributes = attributes;
+		this.stateFile = stateFile;
+	}
+	/**
+	 * Registers a listener for the changes.
+	 */
+	public void addListener(ChangeListener listener) {
+		listeners.add(listener);
+	}
+	/**
+	 * Removes a listener.
+	 */
+	public void removeListener(ChangeListener listener) {
+		listeners.remove(listener);
+	}
+	/**
+	 * Starts polling the directory on a background thread.
+	 *
+	 * @param interval	the time between polls in milliseconds
+	 */
+	public synchronized void start(long interval) {
+		if (scheduler != null) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "DirectoryChangeStream-" + env);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					poll();
+				} catch (Exception ex) {
+					logger.error("Unable to read the changes of " + env + ": " + ex.getMessage());
+				}
+			}
+		}, 0, interval, TimeUnit.MILLISECONDS);
+		logger.info("Watching " + env + " for changes every " + interval + " ms in " + mode + " mode.");
+	}
+	/**
+	 * Stops polling the directory.
+	 */
+	public synchronized void stop() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+	/**
+	 * Reads the changes since the previous poll, delivers them to the listeners and
+	 * saves the new position in the stream.
+	 *
+	 * @return the number of changes delivered
+	 * @throws NamingException if the directory cannot be read
+	 * @throws IOException if the state file cannot be read or written
+	 */
+	public synchronized int poll() throws NamingException, IOException {
+		if (!loaded) {
+			loadState();
+			loaded = true;
+		}
+		boolean baseline = DIRSYNC.equals(mode) ? cookie == null : highestUSN < 0;
+		List<Change> changes = new ArrayList<Change>();
+		// The new position is only kept once the changes up to it were delivered, so a read
+		// that fails half way, or a listener that fails, never skips changes
+		byte[] nextCookie = cookie;
+		long nextUSN = highestUSN;
+		LdapContext ctx = new LDAPUtils().getContext(env);
+		try {
+			if (DIRSYNC.equals(mode)) {
+				nextCookie = readDirSync(ctx, baseline ? null : changes);
+			} else if (baseline) {
+				Attributes rootDSE = ctx.getAttributes("", new String[]{"highestCommittedUSN"});
+				nextUSN = Long.parseLong(rootDSE.get("highestCommittedUSN").get().toString());
+			} else {
+				nextUSN = readUSN(ctx, changes);
+			}
+		} finally {
+			ctx.close();
+		}
+
+		if (baseline) {
+			logger.info("Change stream of " + env + " starts from the current state of the directory.");
+		} else if (!changes.isEmpty()) {
+			logger.debug("Delivering " + changes.size() + " changes of " + env);
+			List<Change> batch = Collections.unmodifiableList(changes);
+			boolean failed = false;
+			for (ChangeListener listener : listeners) {
+				try {
+					listener.onChanges(batch);
+				} catch (RuntimeException ex) {
+					logger.error("Change listener failed for " + env + ": " + ex.getMessage());
+					failed = true;
+				}
+			}
+			if (failed) {
+				logger.warn("Keeping the position of the change stream of " + env + "; the batch is delivered again by the next poll.");
+				return 0;
+			}
+		}
+		cookie = nextCookie;
+		highestUSN = nextUSN;
+		saveState();
+		return baseline ? 0 : changes.size();
+	}
+
+	// Reads the DirSync results until the directory has no more; collects them if changes is not null.
+	// Returns the cookie after the results.
+	private byte[] readDirSync(LdapContext ctx, List<Change> changes) throws NamingException {
+		SearchControls searchCtls = new SearchControls();
+		searchCtls.setReturningAttributes(attributes);
+		searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+		String rootDN = new LDAPUtils().getPropertyValue(env + "_rootDN");
+		byte[] next = cookie;
+		boolean more;
+		do {
+			ctx.setRequestControls(new Control[]{new DirSyncControl(next)});
+			NamingEnumeration<SearchResult> answer = ctx.search(rootDN, filter, searchCtls);
+			while (answer.hasMore()) {
+				SearchResult sr = answer.next();
+				if (changes != null) {
+					changes.add(new Change(sr.getNameInNamespace(), sr.getAttributes()));
+				}
+			}
+			more = false;
+			Control[] controls = ctx.getResponseControls();
+			if (controls != null) {
+				for (Control control : controls) {
+					if (DIRSYNC_OID.equals(control.getID())) {
+						BerReader ber = new BerReader(control.getEncodedValue());
+						ber.sequence();
+						more = ber.integer() != 0;
+						ber.integer();
+						next = ber.octets();
+					}
+				}
+			}
+		} while (more);
+		return next;
+	}
+
+	// Reads the entries with a uSNChanged above the highest one seen, on the connection to the
+	// domain controller of the highestCommittedUSN; returns the highest uSNChanged read
+	private long readUSN(LdapContext ctx, final List<Change> changes) throws NamingException {
+		String[] attrList = new String[attributes.length + 2];
+		System.arraycopy(attributes, 0, attrList, 0, attributes.length);
+		attrList[attributes.length] = "distinguishedName";
+		attrList[attributes.length + 1] = "uSNChanged";
+		String usnFilter = "(&" + filter + "(uSNChanged>=" + (highestUSN + 1) + "))";
+		final long[] highest = {highestUSN};
+		new LDAPUtils().QueryPages(ctx, env, usnFilter, attrList, PAGESIZE, new LDAPUtils.PageHandler() {
+			public void page(List<SearchResult> entries) throws NamingException {
+				for (SearchResult entry : entries) {
+					Attributes attrs = entry.getAttributes();
+					Attribute dn = attrs.get("distinguishedName");
+					Attribute usn = attrs.get("uSNChanged");
+					if (usn != null) {
+						highest[0] = Math.max(highest[0], Long.parseLong(usn.get().toString()));
+					}
+					changes.add(new Change(dn == null ? null : dn.get().toString(), attrs));
+				}
+			}
+		});
+		return highest[0];
+	}
+
+	private void loadState() throws IOException {
+		if (!stateFile.exists()) {
+			return;
+		}
+		Properties state = new Properties();
+		InputStream in = new FileInputStream(stateFile);
+		try {
+			state.load(in);
+		} finally {
+			in.close();
+		}
+		if (!mode.equals(state.getProperty("mode")) || !env.equals(state.getProperty("environment"))) {
+			logger.warn("Ignoring change stream state of another environment or mode in " + stateFile.getPath());
+			return;
+		}
+		String savedCookie = state.getProperty("cookie");
+		if (savedCookie != null && !savedCookie.isEmpty()) {
+			cookie = fromHex(savedCookie);
+		}
+		highestUSN = Long.parseLong(state.getProperty("usn", "-1"));
+		logger.debug("Change stream of " + env + " resumes from " + stateFile.getPath());
+	}
+
+	// Writes a new file and renames it, so a crash never leaves a partial state
+	private void saveState() throws IOException {
+		Properties state = new Properties();
+		state.setProperty("environment", env);
+		state.setProperty("mode", mode);
+		state.setProperty("cookie", cookie == null ? "" : toHex(cookie));
+		state.setProperty("usn", String.valueOf(highestUSN));
+		File temp = new File(stateFile.getPath() + ".tmp");
+		OutputStream out = new FileOutputStream(temp);
+		try {
+			state.store(out, "Change stream state of " + env);
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(stateFile)) {
+			stateFile.delete();
+			if (!temp.renameTo(stateFile)) {
+				throw new IOException("Unable to save the change stream state to " + stateFile.getPath());
+			}
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
+	}
+
+	private static byte[] fromHex(String hex) {
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+		}
+		return bytes;
+	}
+
+	/**
+	 * An entry of the directory that was added or modified.
+	 */
+	public static class Change {
+		private final String dn;
+		private final Attributes attributes;
+
+		Change(String dn, Attributes attributes) {
+			this.dn = dn;
+			this.attributes = attributes;
+		}
+		/** @return the distinguished name of the entry */
+		public String getDN() { return dn; }
+		/** @return the requested attributes of the entry; only the changed ones in DIRSYNC mode */
+		public Attributes getAttributes() { return attributes; }
+		/** @return true if the entry was deleted */
+		public boolean isDeleted() {
+			Attribute deleted = attributes == null ? null : attributes.get("isDeleted");
+			try {
+				return deleted != null && "TRUE".equalsIgnoreCase(deleted.get().toString());
+			} catch (NamingException ex) {
+				return false;
+			}
+		}
+	}
+
+	// The request value of DirSync: SEQUENCE { flags INTEGER, maxBytes INTEGER, cookie OCTET STRING }
+	private static class DirSyncControl implements Control {
+		private static final long serialVersionUID = 1L;
+		private final byte[] value;
+
+		DirSyncControl(byte[] cookie) {
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			writeTLV(content, 0x02, integer(DIRSYNC_OBJECT_SECURITY));
+			writeTLV(content, 0x02, integer(DIRSYNC_MAX_BYTES));
+			writeTLV(content, 0x04, cookie == null ? new byte[0] : cookie);
+			ByteArrayOutputStream sequence = new ByteArrayOutputStream();
+			writeTLV(sequence, 0x30, content.toByteArray());
+			value = sequence.toByteArray();
+		}
+
+		public String getID() { return DIRSYNC_OID; }
+		public boolean isCritical() { return Control.CRITICAL; }
+		public byte[] getEncodedValue() { return value; }
+
+		private static byte[] integer(int value) {
+			if (value >= -128 && value < 128) {
+				return new byte[]{(byte) value};
+			} else if (value >= -32768 && value < 32768) {
+				return new byte[]{(byte) (value >> 8), (byte) value};
+			} else if (value >= -8388608 && value < 8388608) {
+				return new byte[]{(byte) (value >> 16), (byte) (value >> 8), (byte) value};
+			}
+			return new byte[]{(byte) (value >> 24), (byte) (value >> 16), (byte) (value >> 8), (byte) value};
+		}
+
+		private static void writeTLV(ByteArrayOutputStream out, int tag, byte[] content) {
+			out.write(tag);
+			int length = content.length;
+			if (length < 128) {
+				out.write(length);
+			} else if (length < 256) {
+				out.write(0x81);
+				out.write(length);
+			} else if (length < 65536) {
+				out.write(0x82);
+				out.write(length >> 8);
+				out.write(length);
+			} else {
+				out.write(0x83);
+				out.write(length >> 16);
+				out.write(length >> 8);
+				out.write(length);
+			}
+			out.write(content, 0, content.length);
+		}
+	}
+
+	// Reads the response value of DirSync: SEQUENCE { more INTEGER, unused INTEGER, cookie OCTET STRING }
+	private static class BerReader {
+		private final byte[] data;
+		private int pos = 0;
+
+		BerReader(byte[] data) {
+			this.data = data;
+		}
+
+		void sequence() throws NamingException {
+			expect(0x30);
+			length();
+		}
+
+		long integer() throws NamingException {
+			expect(0x02);
+			int length = length();
+			long value = data[pos] < 0 ? -1 : 0;
+			for (int i = 0; i < length; i++) {
+				value = (value << 8) | (data[pos++] & 0xFF);
+			}
+			return value;
+		}
+
+		byte[] octets() throws NamingException {
+			expect(0x04);
+			int length = length();
+			byte[] value = new byte[length];
+			System.arraycopy(data, pos, value, 0, length);
+			pos += length;
+			return value;
+		}
+
+		private void expect(int tag) throws NamingException {
+			if (pos >= data.length || (data[pos] & 0xFF) != tag) {
+				throw new NamingException("Unexpected DirSync response control value.");
+			}
+			pos++;
+		}
+
+		private int length() {
+			int first = data[pos++] & 0xFF;
+			if (first < 128) {
+				return first;
+			}
+			int length = 0;
+			for (int i = 0; i < (first & 0x7F); i++) {
+				length = (length << 8) | (data[pos++] & 0xFF);
+			}
+			return length;
+		}
+	}
+}
@@ -0,0 +1,17 @@
+package org.fasttrack.util;
+/**
+ * Thrown by a directory call that cannot be answered, such as after a read timeout or a
+ * lost connection, where an empty result would pass for "not found".
+ *
+ * @author      Lester Rivera
+ * @version     %I%, %G%
+ * @since       CA Identity Manager 12.0 CR7
+ * @see org.fasttrack.util.LDAPUtils
+ */
+public class DirectoryException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	public DirectoryException(String message, Throwable cause) {
+		super(message, cause);
+	}
+}
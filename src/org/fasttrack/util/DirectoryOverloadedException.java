@@ -0,0 +1,17 @@
+package org.fasttrack.util;
+/**
+ * Thrown by a directory call when the bulkhead of its LDAP environment is full, instead
+ * of sending one more request to a directory that is already slowing down.
+ *
+ * @author      Lester Rivera
+ * @version     %I%, %G%
+ * @since       CA Identity Manager 12.0 CR7
+ * @see org.fasttrack.util.DirectoryBulkhead
+ */
+public class DirectoryOverloadedException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	public DirectoryOverloadedException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,214 @@
+package org.fasttrack.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.naming.NamingException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.fasttrack.util.Tracer.Span;
+/**
+ * A utility class to verify that an ID is not used in any of a set of LDAP directories;
+ * for example, a LANID that becomes the account name in several Active Directory forests
+ * and in the Provisioning Directory.
+ * <p>
+ * The directories are searched in parallel, so the time to verify an ID is that of the
+ * slowest directory rather than the sum of all of them. The verification stops as soon as
+ * one directory reports the ID as taken, and fails if all the directories did not answer
+ * within a combined timeout, itself bounded by the {@link Deadline} of the calling thread.
+ * The time taken by each directory is logged and returned. Each directory is asked for a
+ * single matching entry, without attributes.
+ * <p>
+ * The searches run on a fixed number of daemon threads, by default four per directory, so a
+ * burst of checks queues instead of opening a thread and a connection per search. A search
+ * that is abandoned after a conflict or the timeout cannot be interrupted while it waits for
+ * the directory; its thread returns to the pool when the read timeout of the connection
+ * expires, which is bounded by the same deadline.
+ * <p>
+ * Each directory is given as <code>environment</code> or <code>environment:attribute</code>,
+ * where the environment is configured in the ldap-target.properties file and the attribute
+ * is the one holding the ID in that directory.
+ *
+ * @author      Lester Rivera
+ * @version     %I%, %G%
+ * @since       CA Identity Manager 12.0 CR7
+ * @see org.fasttrack.blth.GenerateLANID
+ */
+public class DirectoryUniquenessChecker {
+	private static final Log logger = LogFactory.getLog(DirectoryUniquenessChecker.class);
+
+	private final String[] environments;
+	private final String[] attributes;
+	private final long timeout;
+	private final LDAPUtils ldap = new LDAPUtils();
+	private final ExecutorService executor;
+	/** The default number of searches per directory run at the same time */
+	public static final int DEFAULT_THREADS_PER_DIRECTORY = 4;
+	/**
+	 * Creates a checker with the default number of threads.
+	 *
+	 * @param directories		comma-delimited list of environment or environment:attribute entries
+	 * @param defaultAttribute	the attribute for the entries without one
+	 * @param timeout			the time in milliseconds allowed for all the directories together
+	 */
+	public DirectoryUniquenessChecker(String directories, String defaultAttribute, long timeout) {
+		this(directories, defaultAttribute, timeout, DEFAULT_THREADS_PER_DIRECTORY);
+	}
+	/**
+	 * Creates a checker.
+	 *
+	 * @param directories		comma-delimited list of environment or environment:attribute entries
+	 * @param defaultAttribute	the attribute for the entries without one
+	 * @param timeout			the time in milliseconds allowed for all the directories together
+	 * @param threadsPerDirectory	the number of searches per directory run at the same time
+	 */
+	public DirectoryUniquenessChecker(String directories, String defaultAttribute, long timeout, int threadsPerDirectory) {
+		String[] entries = directories.split(",");
+		List<String> envs = new ArrayList<String>();
+		List<String> attrs = new ArrayList<String>();
+		for (String entry : entries) {
+			if (entry.trim().isEmpty()) {
+				continue;
+			}
+			int idx = entry.indexOf(':');
+			envs.add((idx < 0 ? entry : entry.substring(0, idx)).trim());
+			attrs.add((idx < 0 ? defaultAttribute : entry.substring(idx + 1)).trim());
+		}
+		this.environments = envs.toArray(new String[envs.size()]);
+		this.attributes = attrs.toArray(new String[attrs.size()]);
+		this.timeout = timeout;
+		final AtomicInteger count = new AtomicInteger();
+		int threads = Math.max(environments.length * Math.max(threadsPerDirectory, 1), 1);
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "DirectoryUniquenessChecker-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		// Idle threads end, so a checker used rarely holds no threads
+		pool.allowCoreThreadTimeOut(true);
+		this.executor = pool;
+	}
+	/**
+	 * Stops the threads of the checker.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+	/**
+	 * Verifies that the ID is not used in any of the directories.
+	 *
+	 * @param id	the ID to verify
+	 * @return the result of the verification
+	 * @throws Exception if a directory cannot be searched, or the directories did not all
+	 * answer within the timeout; the ID cannot be assumed unique in that case
+	 */
+	public Result check(final String id) throws Exception {
+		final long start = System.currentTimeMillis();
+		final Map<String, Long> latencies = new LinkedHashMap<String, Long>();
+		CompletionService<String> completion = new ExecutorCompletionService<String>(executor);
+		List<Future<String>> futures = new ArrayList<Future<String>>();
+		// The searches are traced as children of the span of the calling thread
+		final Span parent = Tracer.current();
+		// and bound by the deadline of the calling thread
+		final Deadline deadline = Deadline.current();
+		final long budget = Deadline.timeout("unique.check", timeout);
+		for (int i = 0; i < environments.length; i++) {
+			final String env = environments[i];
+			final String attr = attributes[i];
+			futures.add(completion.submit(new Callable<String>() {
+				public String call() throws NamingException {
+					long begin = System.currentTimeMillis();
+					Span span = Tracer.startSpan("unique.check", parent).setAttribute("ldap.environment", env);
+					Deadline searchDeadline = Deadline.start("unique.check", budget, deadline);
+					try {
+						boolean taken = ldap.exists(env, "(" + attr + "=" + id + ")");
+						span.setAttribute("unique.taken", taken);
+						return taken ? env : null;
+					} catch (NamingException ex) {
+						span.setError(ex);
+						throw ex;
+					} finally {
+						searchDeadline.end();
+						span.end();
+						long elapsed = System.currentTimeMillis() - begin;
+						synchronized (latencies) {
+							latencies.put(env, elapsed);
+						}
+						logger.debug("Searched " + env + " for " + id + " in " + elapsed + " ms.");
+					}
+				}
+			}));
+		}
+
+		String conflict = null;
+		try {
+			for (int i = 0; i < futures.size() && conflict == null; i++) {
+				long remaining = budget - (System.currentTimeMillis() - start);
+				Future<String> done = completion.poll(Math.max(remaining, 0), TimeUnit.MILLISECONDS);
+				if (done == null) {
+					throw new TimeoutException("The directories did not answer within " + budget + " ms.");
+				}
+				try {
+					conflict = done.get();
+				} catch (ExecutionException ex) {
+					throw new Exception("Unable to search a directory for " + id + ": " + ex.getCause().getMessage(), ex.getCause());
+				}
+			}
+		} finally {
+			// Stop the searches still running after a conflict, an error or the timeout
+			for (Future<String> future : futures) {
+				future.cancel(true);
+			}
+		}
+
+		Map<String, Long> snapshot;
+		synchronized (latencies) {
+			snapshot = new LinkedHashMap<String, Long>(latencies);
+		}
+		Result result = new Result(conflict, snapshot, System.currentTimeMillis() - start);
+		logger.info("Uniqueness of " + id + " verified in " + result.getElapsedMillis() + " ms. Taken in: "
+				+ (conflict == null ? "none" : conflict) + ". Latency per directory: " + snapshot);
+		return result;
+	}
+
+	/**
+	 * The result of a verification.
+	 */
+	public static class Result {
+		private final String conflict;
+		private final Map<String, Long> latencies;
+		private final long elapsed;
+
+		Result(String conflict, Map<String, Long> latencies, long elapsed) {
+			this.conflict = conflict;
+			this.latencies = latencies;
+			this.elapsed = elapsed;
+		}
+		/** @return true if the ID is not used in any directory */
+		public boolean isUnique() { return conflict == null; }
+		/** @return the environment where the ID was found, or null */
+		public String getConflict() { return conflict; }
+		/** @return the time in milliseconds taken by each directory that answered */
+		public Map<String, Long> getLatencies() { return latencies; }
+		/** @return the total time taken in milliseconds */
+		public long getElapsedMillis() { return elapsed; }
+	}
+}
@@ -0,0 +1,829 @@
+package org.fasttrack.util;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TimeZone;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.LdapContext;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+/**
+ * An index of the IDs used in an LDAP directory, such as the sAMAccountName of all the
+ * accounts of a forest or the CID of all the contractors, so the ID generators can tell
+ * a taken value without searching the directory.
+ * <p>
+ * The index is kept in a file, sorted and front-coded in blocks of 16 IDs, and memory-mapped
+ * read-only, so a large index lives mostly outside of the heap and is usable as soon as the
+ * file is mapped. IDs found in the directory since the file was written are kept in memory
+ * and appended to a journal file next to it. A restart maps the file, replays the journal,
+ * and only reads the entries changed since the last high-water mark; the directory is read
+ * in full only the first time. When the journal grows, the IDs are merged in a new file.
+ * <p>
+ * A mapped file is never replaced, since some platforms cannot delete or rename it while it
+ * is mapped. Each new file is a generation, named after the index file with a .1, .2, ...
+ * suffix; the index switches to the new generation, and the older ones are deleted once the
+ * platform allows it. A restart maps the latest generation.
+ * <p>
+ * The high-water mark is the highest value of a change attribute seen in the directory:
+ * <ul>
+ * <li><b>USN</b> - uSNChanged, for Active Directory. The update sequence numbers are local to
+ * a domain controller, so the mark and the entries are read on one connection to the domain
+ * controller, never from the Global Catalog, and the environment must always point to the
+ * same domain controller. A USN index therefore covers the domain of that domain controller.
+ * <li><b>TIMESTAMP</b> - modifyTimestamp, for other directories such as the Provisioning Directory.
+ * </ul>
+ * <p>
+ * The index only grows: IDs of deleted entries are kept, which suits IDs that must never be
+ * reused. IDs assigned by this node but not yet in the directory can be added with
+ * {@link #add(String)}; they are kept in memory only, until a refresh finds them in the
+ * directory or for a limited time, in case the task that was to create them failed. IDs
+ * are compared in upper case.
+ * <h3>System Properties</h3>
+ * <ul>
+ * <li><b>fasttrack.idindex.local.ttl</b> - Milliseconds an ID added by this node is kept when
+ * it does not appear in the directory. Default is 3600000.
+ * <li><b>fasttrack.idindex.local.max</b> - Maximum number of IDs added by this node and kept.
+ * Default is 10000.
+ * </ul>
+ * <p>
+ * An ID missing from the index may still have been created in the directory since the last
+ * refresh, so a generator should confirm the value it picks with the directory; the index
+ * saves the searches for all the values it knows are taken.
+ *
+ * @author      Lester Rivera
+ * @version     %I%, %G%
+ * @since       CA Identity Manager 12.0 CR7
+ * @see org.fasttrack.util.LDAPUtils
+ */
+public class IDIndex {
+	private static final Log logger = LogFactory.getLog(IDIndex.class);
+
+	/** Mode following uSNChanged, for Active Directory */
+	public static final String USN = "USN";
+	/** Mode following modifyTimestamp */
+	public static final String TIMESTAMP = "TIMESTAMP";
+
+	private static final int MAGIC = 0x46544958; // FTIX
+	private static final int VERSION = 1;
+	private static final int BLOCKSIZE = 16;
+	private static final int PAGESIZE = 1000;
+	private static final int COMPACT_THRESHOLD = 10000;
+	// Timestamps are read again from a little before the high-water mark, for clock skew
+	private static final long TIMESTAMP_OVERLAP = 5 * 60 * 1000L;
+	private static final String UTF8 = "UTF-8";
+
+	/** The time an ID added by this node is kept, in milliseconds */
+	public static final long LOCAL_TTL = Long.getLong("fasttrack.idindex.local.ttl", 3600000L);
+	/** The maximum number of IDs added by this node that are kept */
+	public static final int LOCAL_MAX = Integer.getInteger("fasttrack.idindex.local.max", 10000);
+
+	private static final Map<String, IDIndex> indexes = new HashMap<String, IDIndex>();
+
+	private final String env;
+	private final String filter;
+	private final String attribute;
+	private final String changeAttribute;
+	private final boolean usn;
+	private final File file;
+	private final File journalFile;
+
+	private volatile Snapshot snapshot = Snapshot.EMPTY;
+	// IDs found in the directory since the snapshot, also in the journal
+	private final ConcurrentSkipListSet<String> recent = new ConcurrentSkipListSet<String>();
+	// IDs assigned by this node, not persisted; by the time they were added
+	private final ConcurrentSkipListMap<String, Long> local = new ConcurrentSkipListMap<String, Long>();
+	private volatile boolean ready = false;
+	// Guarded by this
+	private int generation = -1;
+	private String highWaterMark = null;
+	private int journalSize = 0;
+	private ScheduledExecutorService scheduler = null;
+	/**
+	 * Creates an index; call {@link #load()} and {@link #refresh()}, or {@link #start(long)}.
+	 *
+	 * @param env		the LDAP environment, configured in the ldap-target.properties file
+	 * @param filter	the LDAP filter of the entries holding the IDs; for example, (objectClass=user)
+	 * @param attribute	the attribute holding the ID; for example, sAMAccountName
+	 * @param mode		{@link #USN} or {@link #TIMESTAMP}
+	 * @param file		the file of the index; the generations and the journal are the same file
+	 * with a .&lt;generation&gt; and a .journal suffix
+	 */
+	public IDIndex(String env, String filter, String attribute, String mode, File file) {
+		if (!USN.equals(mode) && !TIMESTAMP.equals(mode)) {
+			throw new IllegalArgumentException("Unknown ID index mode: " + mode);
+		}
+		this.env = env;
+		this.filter = filter;
+		this.attribute = attribute;
+		this.usn = USN.equals(mode);
+		this.changeAttribute = usn ? "uSNChanged" : "modifyTimestamp";
+		this.file = file;
+		this.journalFile = new File(file.getPath() + ".journal");
+	}
+	/**
+	 * The index kept in a file, shared by all the BLTHs of the process; created, loaded
+	 * and refreshed in the background on first use.
+	 *
+	 * @param env		the LDAP environment
+	 * @param filter	the LDAP filter of the entries holding the IDs
+	 * @param attribute	the attribute holding the ID
+	 * @param mode		{@link #USN} or {@link #TIMESTAMP}
+	 * @param path		the file of the index
+	 * @param interval	the time between refreshes in milliseconds
+	 * @return the index, which may not be ready yet
+	 */
+	public static IDIndex shared(String env, String filter, String attribute, String mode, String path, long interval) {
+		File file = new File(path).getAbsoluteFile();
+		synchronized (indexes) {
+			IDIndex index = indexes.get(file.getPath());
+			if (index == null) {
+				index = new IDIndex(env, filter, attribute, mode, file);
+				index.start(interval);
+				indexes.put(file.getPath(), index);
+			}
+			return index;
+		}
+	}
+	/**
+	 * Loads the index and refreshes it on a background thread.
+	 *
+	 * @param interval	the time between refreshes in milliseconds
+	 */
+	public synchronized void start(long interval) {
+		if (scheduler != null) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "IDIndex-" + file.getName());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		scheduler.execute(new Runnable() {
+			public void run() {
+				try {
+					load();
+				} catch (IOException ex) {
+					logger.warn("Unable to load the ID index " + file + "; it is built again: " + ex.getMessage());
+				}
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					refresh();
+				} catch (Exception ex) {
+					logger.error("Unable to refresh the ID index " + file + ": " + ex.getMessage());
+				}
+			}
+		}, 0, interval, TimeUnit.MILLISECONDS);
+	}
+	/**
+	 * Stops refreshing the index.
+	 */
+	public synchronized void stop() {
+		if (scheduler != null) {
+			scheduler.shutdown();
+			scheduler = null;
+		}
+	}
+	/**
+	 * Maps the file of the index and replays its journal.
+	 *
+	 * @throws IOException if the file or the journal cannot be read
+	 */
+	public synchronized void load() throws IOException {
+		int latest = latestGeneration();
+		if (latest < 0) {
+			logger.info("No ID index file " + file + "; the directory is read in full on the first refresh.");
+			return;
+		}
+		long start = System.currentTimeMillis();
+		File current = generationFile(latest);
+		Snapshot loaded = Snapshot.map(current);
+		String mark = loaded.highWaterMark;
+		int replayed = 0;
+		if (journalFile.exists()) {
+			BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), UTF8));
+			try {
+				String line;
+				while ((line = in.readLine()) != null) {
+					if (line.startsWith("+")) {
+						recent.add(line.substring(1));
+						replayed++;
+					} else if (line.startsWith("@")) {
+						mark = line.substring(1);
+					}
+				}
+			} finally {
+				in.close();
+			}
+		}
+		snapshot = loaded;
+		generation = latest;
+		highWaterMark = mark;
+		journalSize = replayed;
+		ready = true;
+		deleteOldGenerations();
+		logger.info("Loaded ID index " + current + " with " + loaded.count + " IDs and " + replayed
+				+ " journal entries in " + (System.currentTimeMillis() - start) + " ms; high-water mark " + mark);
+	}
+	/**
+	 * Reads the IDs changed in the directory since the high-water mark, or the whole directory
+	 * the first time, and merges the journal into a new file when it grew too large.
+	 *
+	 * @return the number of entries read
+	 * @throws NamingException if the directory cannot be read
+	 * @throws IOException if the index cannot be written
+	 */
+	public synchronized int refresh() throws NamingException, IOException {
+		if (highWaterMark == null) {
+			return build();
+		}
+		long start = System.currentTimeMillis();
+		final String[] mark = {highWaterMark};
+		final List<String> found = new java.util.ArrayList<String>();
+		final List<String> seen = new java.util.ArrayList<String>();
+		LDAPUtils ldap = new LDAPUtils();
+		LdapContext ctx = usn ? ldap.getContext(env) : null;
+		int count;
+		try {
+			count = ldap.QueryPages(ctx, env, "(&" + filter + "(" + changeAttribute + ">=" + since(highWaterMark) + "))",
+					new String[]{attribute, changeAttribute}, PAGESIZE, new LDAPUtils.PageHandler() {
+				public void page(List<SearchResult> entries) throws NamingException {
+					for (SearchResult entry : entries) {
+						String id = value(entry.getAttributes(), attribute);
+						if (id != null) {
+							// The IDs added by this node are journaled as well once they are found
+							String key = normalize(id);
+							seen.add(key);
+							if (!recent.contains(key) && !snapshot.contains(key)) {
+								found.add(key);
+							}
+						}
+						mark[0] = highest(mark[0], value(entry.getAttributes(), changeAttribute));
+					}
+				}
+			});
+		} finally {
+			if (ctx != null) {
+				ctx.close();
+			}
+		}
+		// Journal first, so the high-water mark never passes IDs that are not saved
+		Writer out = new OutputStreamWriter(new FileOutputStream(journalFile, true), UTF8);
+		try {
+			for (String id : found) {
+				out.write("+" + id + "\n");
+			}
+			out.write("@" + mark[0] + "\n");
+		} finally {
+			out.close();
+		}
+		recent.addAll(found);
+		// Found in the directory; no longer needed in memory
+		for (String id : seen) {
+			local.remove(id);
+		}
+		expireLocal(false);
+		highWaterMark = mark[0];
+		journalSize += found.size();
+		if (!found.isEmpty()) {
+			logger.info("Added " + found.size() + " IDs to the ID index " + file + " from " + count + " changed entries in "
+					+ (System.currentTimeMillis() - start) + " ms.");
+		}
+		if (journalSize >= COMPACT_THRESHOLD) {
+			compact();
+		}
+		return count;
+	}
+	/**
+	 * Writes all the IDs found in the directory to a new generation, maps it, and empties the journal.
+	 *
+	 * @throws IOException if the file cannot be written
+	 */
+	public synchronized void compact() throws IOException {
+		long start = System.currentTimeMillis();
+		SortedSet<String> merged = new TreeSet<String>(recent);
+		Iterator<String> it = snapshot.iterator();
+		while (it.hasNext()) {
+			merged.add(it.next());
+		}
+		install(merged, highWaterMark);
+		logger.info("Compacted ID index " + file + " to " + merged.size() + " IDs in " + (System.currentTimeMillis() - start) + " ms.");
+	}
+	/**
+	 * @param id	an ID
+	 * @return true if the ID is taken in the directory, as of the last refresh, or was added
+	 */
+	public boolean contains(String id) {
+		String key = normalize(id);
+		return local.containsKey(key) || recent.contains(key) || snapshot.contains(key);
+	}
+	/**
+	 * @param prefix	the start of the IDs
+	 * @return the IDs starting with the prefix, in upper case
+	 */
+	public Set<String> startingWith(String prefix) {
+		String key = normalize(prefix);
+		Set<String> ids = new TreeSet<String>(snapshot.startingWith(key));
+		ids.addAll(tail(recent, key));
+		ids.addAll(tail(local.navigableKeySet(), key));
+		return ids;
+	}
+	/**
+	 * Adds an ID assigned by this node, before it is created in the directory.
+	 * The ID is not persisted; the directory brings it back after a restart. It is kept
+	 * until a refresh finds it in the directory, or for {@link #LOCAL_TTL} at most.
+	 *
+	 * @param id	the ID
+	 */
+	public void add(String id) {
+		if (local.size() >= LOCAL_MAX) {
+			expireLocal(true);
+		}
+		local.put(normalize(id), Long.valueOf(System.currentTimeMillis()));
+	}
+	/**
+	 * @return true once the index holds all the IDs of the directory, as of a recent refresh
+	 */
+	public boolean isReady() {
+		return ready;
+	}
+	/**
+	 * @return the number of IDs in the index
+	 */
+	public int size() {
+		return snapshot.count + recent.size() + local.size();
+	}
+
+	// Reads all the IDs of the directory into a new file
+	private int build() throws NamingException, IOException {
+		long start = System.currentTimeMillis();
+		final SortedSet<String> ids = new TreeSet<String>();
+		LDAPUtils ldap = new LDAPUtils();
+		// In USN mode, the mark and the entries come from the same domain controller
+		LdapContext ctx = usn ? ldap.getContext(env) : null;
+		String mark;
+		int count;
+		try {
+			// Taken before the search, so the changes made during the search are read again
+			mark = usn ? highestCommittedUSN(ctx) : timestamp(new Date());
+			count = ldap.QueryPages(ctx, env, filter, new String[]{attribute}, PAGESIZE, new LDAPUtils.PageHandler() {
+				public void page(List<SearchResult> entries) throws NamingException {
+					for (SearchResult entry : entries) {
+						String id = value(entry.getAttributes(), attribute);
+						if (id != null) {
+							ids.add(normalize(id));
+						}
+					}
+				}
+			});
+		} finally {
+			if (ctx != null) {
+				ctx.close();
+			}
+		}
+		install(ids, mark);
+		recent.clear();
+		ready = true;
+		logger.info("Built ID index " + file + " with " + ids.size() + " IDs from " + count + " entries in "
+				+ (System.currentTimeMillis() - start) + " ms; high-water mark " + mark);
+		return count;
+	}
+
+	// Writes the IDs to a new generation and maps it; then empties the journal. The mapped
+	// file of the previous generation is left alone until it can be deleted.
+	private void install(SortedSet<String> ids, String mark) throws IOException {
+		// Generation 0 is the file of an index written before the generations
+		int next = Math.max(Math.max(generation, latestGeneration()) + 1, 1);
+		File target = generationFile(next);
+		File tmp = new File(file.getPath() + ".tmp");
+		Snapshot.write(tmp, ids, mark);
+		if (!tmp.renameTo(target)) {
+			throw new IOException("Unable to rename " + tmp + " to " + target);
+		}
+		snapshot = Snapshot.map(target);
+		generation = next;
+		highWaterMark = mark;
+		// The IDs of the journal are in the file now; replaying it again is harmless
+		new FileOutputStream(journalFile).close();
+		recent.removeAll(ids);
+		journalSize = 0;
+		deleteOldGenerations();
+	}
+
+	// The file of a generation; generation 0 is the file itself
+	private File generationFile(int gen) {
+		return gen == 0 ? file : new File(file.getPath() + "." + gen);
+	}
+
+	// The latest generation on disk, or -1 if there is none
+	private int latestGeneration() {
+		int latest = -1;
+		for (int gen : generations()) {
+			latest = Math.max(latest, gen);
+		}
+		return latest;
+	}
+
+	// Deletes the generations before the current one; a file still mapped on a platform that
+	// does not allow it is tried again after the next generation
+	private void deleteOldGenerations() {
+		for (int gen : generations()) {
+			File old = generationFile(gen);
+			if (gen < generation && !old.delete()) {
+				logger.debug("Unable to delete the ID index file " + old + " yet; it may still be mapped.");
+			}
+		}
+	}
+
+	// The generations on disk
+	private List<Integer> generations() {
+		List<Integer> found = new java.util.ArrayList<Integer>();
+		if (file.exists()) {
+			found.add(Integer.valueOf(0));
+		}
+		File dir = file.getAbsoluteFile().getParentFile();
+		String[] names = dir == null ? null : dir.list();
+		if (names != null) {
+			String prefix = file.getName() + ".";
+			for (String name : names) {
+				String suffix = name.startsWith(prefix) ? name.substring(prefix.length()) : "";
+				if (suffix.matches("[1-9][0-9]{0,8}")) {
+					found.add(Integer.valueOf(suffix));
+				}
+			}
+		}
+		return found;
+	}
+
+	// Forgets the IDs added by this node too long ago; or all of them if forced and none expired
+	private void expireLocal(boolean force) {
+		long oldest = System.currentTimeMillis() - LOCAL_TTL;
+		for (Iterator<Long> it = local.values().iterator(); it.hasNext(); ) {
+			if (it.next().longValue() < oldest) {
+				it.remove();
+			}
+		}
+		if (force && local.size() >= LOCAL_MAX) {
+			local.clear();
+		}
+	}
+
+	// The highest USN of the domain controller of the connection; without it, no refresh
+	// could tell the changes made since the build
+	private String highestCommittedUSN(LdapContext ctx) throws NamingException {
+		String mark = value(ctx.getAttributes("", new String[]{"highestCommittedUSN"}), "highestCommittedUSN");
+		if (mark == null) {
+			throw new NamingException("The rootDSE of " + env + " has no highestCommittedUSN; use the TIMESTAMP mode for this directory.");
+		}
+		return mark;
+	}
+
+	// The lower bound of the next refresh
+	private String since(String mark) {
+		if (usn) {
+			return mark;
+		}
+		try {
+			return timestamp(new Date(format().parse(mark.substring(0, 14)).getTime() - TIMESTAMP_OVERLAP));
+		} catch (Exception ex) {
+			return mark;
+		}
+	}
+
+	private String highest(String mark, String value) {
+		if (value == null) {
+			return mark;
+		}
+		if (usn) {
+			return Long.parseLong(value) > Long.parseLong(mark) ? value : mark;
+		}
+		return value.compareTo(mark) > 0 ? value : mark;
+	}
+
+	private static SimpleDateFormat format() {
+		SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss", Locale.ENGLISH);
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return format;
+	}
+
+	private static String timestamp(Date date) {
+		return format().format(date) + "Z";
+	}
+
+	private static NavigableSet<String> tail(NavigableSet<String> ids, String prefix) {
+		NavigableSet<String> tail = ids.tailSet(prefix, true);
+		TreeSet<String> matches = new TreeSet<String>();
+		for (String id : tail) {
+			if (!id.startsWith(prefix)) {
+				break;
+			}
+			matches.add(id);
+		}
+		return matches;
+	}
+
+	private static String normalize(String id) {
+		return id.trim().toUpperCase(Locale.ENGLISH);
+	}
+
+	private static String value(Attributes attrs, String name) throws NamingException {
+		Attribute attr = attrs.get(name);
+		return attr == null || attr.get() == null ? null : attr.get().toString();
+	}
+
+	/**
+	 * A read-only, memory-mapped file of sorted IDs. After a header with the number of IDs,
+	 * the high-water mark and the offset of each block, each block holds its first ID in full,
+	 * then each following ID as the length of the prefix shared with the previous ID and the
+	 * rest of its bytes.
+	 */
+	private static class Snapshot {
+		static final Snapshot EMPTY = new Snapshot(null, 0, 0, null, new int[0], 0);
+
+		final ByteBuffer data;
+		final int count;
+		final int blockSize;
+		final String highWaterMark;
+		final int[] blocks;
+		final int dataStart;
+
+		Snapshot(ByteBuffer data, int count, int blockSize, String highWaterMark, int[] blocks, int dataStart) {
+			this.data = data;
+			this.count = count;
+			this.blockSize = blockSize;
+			this.highWaterMark = highWaterMark;
+			this.blocks = blocks;
+			this.dataStart = dataStart;
+		}
+
+		static void write(File target, SortedSet<String> ids, String mark) throws IOException {
+			int blockCount = (ids.size() + BLOCKSIZE - 1) / BLOCKSIZE;
+			ByteArrayOutputStream header = new ByteArrayOutputStream();
+			DataOutputStream h = new DataOutputStream(header);
+			h.writeInt(MAGIC);
+			h.writeInt(VERSION);
+			h.writeInt(ids.size());
+			h.writeInt(BLOCKSIZE);
+			h.writeUTF(mark);
+			h.writeInt(blockCount);
+			int headerSize = header.size() + blockCount * 4;
+			int[] offsets = new int[blockCount];
+
+			RandomAccessFile out = new RandomAccessFile(target, "rw");
+			try {
+				out.setLength(0);
+				out.seek(headerSize);
+				DataOutputStream d = new DataOutputStream(new java.io.BufferedOutputStream(new FileOutputStream(out.getFD())));
+				int position = 0;
+				int i = 0;
+				byte[] previous = new byte[0];
+				for (String id : ids) {
+					byte[] bytes = id.getBytes(UTF8);
+					int shared = 0;
+					if (i % BLOCKSIZE == 0) {
+						offsets[i / BLOCKSIZE] = position;
+					} else {
+						int max = Math.min(previous.length, bytes.length);
+						while (shared < max && previous[shared] == bytes[shared]) {
+							shared++;
+						}
+					}
+					position += writeVInt(d, shared);
+					position += writeVInt(d, bytes.length - shared);
+					d.write(bytes, shared, bytes.length - shared);
+					position += bytes.length - shared;
+					previous = bytes;
+					i++;
+				}
+				d.flush();
+				out.seek(0);
+				out.write(header.toByteArray());
+				for (int offset : offsets) {
+					out.writeInt(offset);
+				}
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+		}
+
+		static Snapshot map(File source) throws IOException {
+			RandomAccessFile in = new RandomAccessFile(source, "r");
+			try {
+				MappedByteBuffer buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+				if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+					throw new IOException("Not an ID index file: " + source);
+				}
+				int count = buffer.getInt(8);
+				int blockSize = buffer.getInt(12);
+				int markLength = buffer.getShort(16) & 0xFFFF;
+				byte[] markBytes = new byte[2 + markLength];
+				ByteBuffer dup = buffer.duplicate();
+				dup.position(16);
+				dup.get(markBytes);
+				String mark = new DataInputStream(new ByteArrayInputStream(markBytes)).readUTF();
+				int position = 18 + markLength;
+				int blockCount = buffer.getInt(position);
+				position += 4;
+				int[] blocks = new int[blockCount];
+				for (int i = 0; i < blockCount; i++) {
+					blocks[i] = buffer.getInt(position);
+					position += 4;
+				}
+				// The mapping stays valid after the file is closed
+				return new Snapshot(buffer, count, blockSize, mark, blocks, position);
+			} finally {
+				in.close();
+			}
+		}
+
+		boolean contains(String id) {
+			int block = findBlock(id);
+			if (block < 0) {
+				return false;
+			}
+			Cursor cursor = new Cursor(block);
+			while (cursor.next()) {
+				int cmp = cursor.current().compareTo(id);
+				if (cmp == 0) {
+					return true;
+				}
+				if (cmp > 0) {
+					return false;
+				}
+			}
+			return false;
+		}
+
+		Set<String> startingWith(String prefix) {
+			if (count == 0) {
+				return Collections.emptySet();
+			}
+			Set<String> ids = new TreeSet<String>();
+			Cursor cursor = new Cursor(Math.max(findBlock(prefix), 0));
+			while (cursor.next()) {
+				String id = cursor.current();
+				if (id.startsWith(prefix)) {
+					ids.add(id);
+				} else if (id.compareTo(prefix) > 0) {
+					break;
+				}
+			}
+			return ids;
+		}
+
+		Iterator<String> iterator() {
+			final Cursor cursor = new Cursor(0);
+			return new Iterator<String>() {
+				private boolean fetched = false;
+				private boolean more = false;
+
+				public boolean hasNext() {
+					if (!fetched) {
+						more = cursor.next();
+						fetched = true;
+					}
+					return more;
+				}
+
+				public String next() {
+					if (!hasNext()) {
+						throw new java.util.NoSuchElementException();
+					}
+					fetched = false;
+					return cursor.current();
+				}
+
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+
+		// The last block whose first ID is not after the ID; -1 if the ID is before all
+		private int findBlock(String id) {
+			int low = 0;
+			int high = blocks.length - 1;
+			int found = -1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				if (new Cursor(mid).first().compareTo(id) <= 0) {
+					found = mid;
+					low = mid + 1;
+				} else {
+					high = mid - 1;
+				}
+			}
+			return found;
+		}
+
+		// Decodes the IDs from a block to the end of the file
+		private class Cursor {
+			private final ByteBuffer buffer = data == null ? null : data.duplicate();
+			private int index;
+			private byte[] key = new byte[64];
+			private int length = 0;
+
+			Cursor(int block) {
+				index = block * blockSize;
+				if (buffer != null && block < blocks.length) {
+					buffer.position(dataStart + blocks[block]);
+				}
+			}
+
+			String first() {
+				next();
+				return current();
+			}
+
+			boolean next() {
+				if (index >= count) {
+					return false;
+				}
+				int shared = readVInt(buffer);
+				int suffix = readVInt(buffer);
+				if (shared + suffix > key.length) {
+					byte[] bigger = new byte[Math.max(key.length * 2, shared + suffix)];
+					System.arraycopy(key, 0, bigger, 0, shared);
+					key = bigger;
+				}
+				buffer.get(key, shared, suffix);
+				length = shared + suffix;
+				index++;
+				return true;
+			}
+
+			String current() {
+				try {
+					return new String(key, 0, length, UTF8);
+				} catch (java.io.UnsupportedEncodingException ex) {
+					throw new IllegalStateException(ex);
+				}
+			}
+		}
+
+		private static int writeVInt(DataOutputStream out, int value) throws IOException {
+			int written = 1;
+			while ((value & ~0x7F) != 0) {
+				out.writeByte((value & 0x7F) | 0x80);
+				value >>>= 7;
+				written++;
+			}
+			out.writeByte(value);
+			return written;
+		}
+
+		private static int readVInt(ByteBuffer in) {
+			int value = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = in.get();
+				value |= (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			return value;
+		}
+	}
+}
@@ -0,0 +1,247 @@
+package org.fasttrack.util;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.InitialContext;
+import javax.sql.DataSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+/**
+ * A counter stored in a relational database, which allocates numbers in ACID
+ * transactions.
+ * <p>
+ * The counter allocates a range (block) of numbers at a time and hands them out from
+ * memory, so only one in every block size calls goes to the database. Two ways of
+ * allocating a range are supported:
+ * <ul>
+ * <li><b>Sequence</b> - A query on a database sequence, such as
+ * <code>SELECT NEXT VALUE FOR CID_SEQ</code> or <code>SELECT CID_SEQ.NEXTVAL FROM DUAL</code>.
+ * Each value of the sequence stands for one block: the value <i>n</i> allocates the numbers
+ * from <i>n</i> &times; block size to (<i>n</i> + 1) &times; block size - 1. The sequence is
+ * best created with an increment of 1; a sequence created with a larger increment still never
+ * gives the same number twice, only wider gaps. The block size may be raised later, but never
+ * lowered, or the new blocks would overlap numbers already handed out.
+ * <li><b>Row</b> - A row in a counter table, locked with <code>SELECT ... FOR UPDATE</code>,
+ * read, and moved forward by the block size in the same transaction. The table must have
+ * the columns COUNTER_NAME and COUNTER_VALUE; COUNTER_VALUE holds the last number allocated.
+ * </ul>
+ * Numbers of a range that is not used up before CA Identity Manager is restarted are lost,
+ * so the counter can have gaps, but never repeats a number.
+ * <p>
+ * The numbers of the current range are handed out without a lock. Only the calls that find
+ * the range used up wait for the database, while one of them allocates the next range.
+ * <p>
+ * Connections come from a JNDI DataSource of the application server when one is configured.
+ * Otherwise they are opened with the JDBC driver and kept in a small pool of idle connections.
+ *
+ * @author      Lester Rivera
+ * @version     %I%, %G%
+ * @since       CA Identity Manager 12.0 CR7
+ * @see org.fasttrack.blth.GenerateCID
+ */
+public class JDBCCounterStore implements CounterStore {
+	private static final Log logger = LogFactory.getLog(JDBCCounterStore.class);
+
+	private final DataSource dataSource;
+	private final String url;
+	private final String username;
+	private final String password;
+	private final BlockingQueue<Connection> idle;
+	private volatile boolean closed = false;
+	private final String sequenceQuery;
+	private final String counterTable;
+	private final String counterName;
+	private final int blockSize;
+
+	private final Object allocating = new Object();
+	private volatile Range range = new Range(0, -1);
+	/**
+	 * Creates a counter that uses connections from a JNDI DataSource.
+	 *
+	 * @param dataSourceName	the JNDI name of the DataSource
+	 * @param sequenceQuery		the query returning the next value of the sequence; if null,
+	 * the counter table is used instead
+	 * @param counterTable		the name of the counter table
+	 * @param counterName		the COUNTER_NAME of the row in the counter table
+	 * @param blockSize			the number of values allocated at a time
+	 */
+	public JDBCCounterStore(String dataSourceName, String sequenceQuery, String counterTable, String counterName, int blockSize) throws Exception {
+		this((DataSource) new InitialContext().lookup(dataSourceName), null, null, null, 0,
+				sequenceQuery, counterTable, counterName, blockSize);
+	}
+	/**
+	 * Creates a counter that opens its own connections.
+	 *
+	 * @param driver			the class name of the JDBC driver; may be null for JDBC 4 drivers
+	 * @param url				the JDBC URL of the database
+	 * @param username			the database user
+	 * @param password			the password of the database user
+	 * @param poolSize			the maximum number of idle connections to keep open
+	 * @param sequenceQuery		the query returning the next value of the sequence; if null,
+	 * the counter table is used instead
+	 * @param counterTable		the name of the counter table
+	 * @param counterName		the COUNTER_NAME of the row in the counter table
+	 * @param blockSize			the number of values allocated at a time
+	 */
+	public JDBCCounterStore(String driver, String url, String username, String password, int poolSize,
+			String sequenceQuery, String counterTable, String counterName, int blockSize) throws Exception {
+		this((DataSource) null, url, username, password, poolSize, sequenceQuery, counterTable, counterName, blockSize);
+		if (driver != null && !driver.isEmpty()) {
+			Class.forName(driver);
+		}
+	}
+
+	private JDBCCounterStore(DataSource dataSource, String url, String username, String password, int poolSize,
+			String sequenceQuery, String counterTable, String counterName, int blockSize) {
+		if (blockSize < 1) {
+			throw new IllegalArgumentException("Block size must be at least 1: " + blockSize);
+		}
+		if ((sequenceQuery == null || sequenceQuery.isEmpty()) && (counterTable == null || counterTable.isEmpty())) {
+			throw new IllegalArgumentException("Either a sequence query or a counter table is required.");
+		}
+		this.dataSource = dataSource;
+		this.url = url;
+		this.username = username;
+		this.password = password;
+		this.idle = new ArrayBlockingQueue<Connection>(Math.max(poolSize, 1));
+		this.sequenceQuery = sequenceQuery == null || sequenceQuery.isEmpty() ? null : sequenceQuery;
+		this.counterTable = counterTable;
+		this.counterName = counterName;
+		this.blockSize = blockSize;
+	}
+
+	public long nextValue() throws Exception {
+		while (true) {
+			Range current = range;
+			long value = current.next.getAndIncrement();
+			if (value <= current.last) {
+				return value;
+			}
+			synchronized (allocating) {
+				// Another thread may have allocated the next range while this one waited
+				if (range == current) {
+					long first = allocate();
+					range = new Range(first, first + blockSize - 1);
+					logger.debug("Allocated counter range " + first + " to " + range.last);
+				}
+			}
+		}
+	}
+
+	// Allocate a new range of numbers and return the first one
+	private long allocate() throws SQLException {
+		Connection conn = borrow();
+		boolean ok = false;
+		try {
+			long first = sequenceQuery != null ? allocateFromSequence(conn) : allocateFromRow(conn);
+			ok = true;
+			return first;
+		} finally {
+			release(conn, ok);
+		}
+	}
+
+	private long allocateFromSequence(Connection conn) throws SQLException {
+		PreparedStatement stmt = conn.prepareStatement(sequenceQuery);
+		try {
+			ResultSet rs = stmt.executeQuery();
+			if (!rs.next()) {
+				throw new SQLException("The sequence query returned no value.");
+			}
+			// The value is the number of the block, not its first number
+			return rs.getLong(1) * blockSize;
+		} finally {
+			stmt.close();
+		}
+	}
+
+	private long allocateFromRow(Connection conn) throws SQLException {
+		boolean autoCommit = conn.getAutoCommit();
+		conn.setAutoCommit(false);
+		PreparedStatement select = null;
+		PreparedStatement update = null;
+		try {
+			select = conn.prepareStatement("SELECT COUNTER_VALUE FROM " + counterTable + " WHERE COUNTER_NAME = ? FOR UPDATE");
+			select.setString(1, counterName);
+			ResultSet rs = select.executeQuery();
+			if (!rs.next()) {
+				throw new SQLException("No counter " + counterName + " in table " + counterTable + ".");
+			}
+			long current = rs.getLong(1);
+			update = conn.prepareStatement("UPDATE " + counterTable + " SET COUNTER_VALUE = ? WHERE COUNTER_NAME = ?");
+			update.setLong(1, current + blockSize);
+			update.setString(2, counterName);
+			update.executeUpdate();
+			conn.commit();
+			return current + 1;
+		} catch (SQLException ex) {
+			conn.rollback();
+			throw ex;
+		} finally {
+			if (select != null) select.close();
+			if (update != null) update.close();
+			conn.setAutoCommit(autoCommit);
+		}
+	}
+
+	private Connection borrow() throws SQLException {
+		if (dataSource != null) {
+			return dataSource.getConnection();
+		}
+		Connection conn;
+		while ((conn = idle.poll()) != null) {
+			if (conn.isValid(5)) {
+				return conn;
+			}
+			close(conn);
+		}
+		return DriverManager.getConnection(url, username, password);
+	}
+
+	private void release(Connection conn, boolean ok) {
+		// Connections from a DataSource go back to the pool of the application server;
+		// connections that failed are not reused
+		if (dataSource != null || !ok || closed || !idle.offer(conn)) {
+			close(conn);
+		}
+	}
+
+	/**
+	 * Closes the idle connections of the pool. Connections in use when it is called are closed
+	 * when they are returned, so a replaced store does not hold database sessions open.
+	 */
+	public void close() {
+		closed = true;
+		Connection conn;
+		while ((conn = idle.poll()) != null) {
+			close(conn);
+		}
+	}
+
+	private static void close(Connection conn) {
+		try {
+			conn.close();
+		} catch (SQLException ex) {
+			logger.debug("Error closing connection: " + ex.getMessage());
+		}
+	}
+
+	// A range of allocated numbers and the next one to hand out
+	private static class Range {
+		private final AtomicLong next;
+		private final long last;
+
+		Range(long first, long last) {
+			this.next = new AtomicLong(first);
+			this.last = last;
+		}
+	}
+}
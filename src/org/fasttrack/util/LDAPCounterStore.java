@@ -0,0 +1,46 @@
+package org.fasttrack.util;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+/**
+ * A counter stored as the value of an attribute of an LDAP object.
+ * <p>
+ * The counter is retrieved, incremented, and returned to the LDAP object; however, the
+ * transaction is not strictly atomic and - in high-usage situation - collisions can occur.
+ *
+ * @author      Lester Rivera
+ * @version     %I%, %G%
+ * @since       CA Identity Manager 12.0 CR7
+ * @see org.fasttrack.util.LDAPUtils
+ */
+public class LDAPCounterStore implements CounterStore {
+	private static final Log logger = LogFactory.getLog(LDAPCounterStore.class);
+
+	private final String counterObj;
+	private final String counterAttr;
+	private final String counterEnv;
+	/**
+	 * @param counterObj	DN (distinguishedName) of the LDAP object used to store the counter
+	 * @param counterAttr	name of the attribute in the LDAP object used as a counter
+	 * @param counterEnv	the LDAP environment configured in the ldap-target.properties file
+	 */
+	public LDAPCounterStore(String counterObj, String counterAttr, String counterEnv) {
+		this.counterObj = counterObj;
+		this.counterAttr = counterAttr;
+		this.counterEnv = counterEnv;
+	}
+
+	public long nextValue() throws Exception {
+		// Create the initial context
+		LDAPUtils counter = new LDAPUtils();
+		String tempID = counter.getAttributeValue(counterObj, counterAttr, counterEnv);
+		logger.debug("Retrieved value " + counterAttr + " for " + counterObj + " is " + tempID + "");
+
+		int tempInt = Integer.parseInt(tempID);
+		tempInt = tempInt + 1;
+
+		counter.replaceAttributeValue(counterObj, counterAttr, Integer.toString(tempInt), counterEnv);
+		logger.debug("Set value " + counterAttr + " for " + counterObj + " to " + Integer.toString(tempInt) + "");
+		return tempInt;
+	}
+}
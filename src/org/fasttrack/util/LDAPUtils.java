@@ -5,23 +5,33 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.naming.Context;
+import javax.naming.AuthenticationException;
+import javax.naming.NameNotFoundException;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
+import javax.naming.SizeLimitExceededException;
 import javax.naming.directory.Attributes;
 import javax.naming.directory.BasicAttributes;
 import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
 import javax.naming.ldap.InitialLdapContext;
 import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
 import javax.naming.directory.*;
 import com.netegrity.rtl.jce.JSafeTools;
 
 
 import org.apache.commons.logging.Log; 
 import org.apache.commons.logging.LogFactory;
+import org.fasttrack.util.Tracer.Span;
 
 import java.util.Properties;
 /**
@@ -29,6 +39,41 @@ import java.util.Properties;
  * <p>
  * A known issue is that the LDAP connection is always
  * set to a secure LDAPS/SSL option. 
+ * <p>
+ * The connection settings of an environment are read for each call and kept
+ * on the stack, so an instance may be shared by concurrent threads.
+ * <p>
+ * Every connection has a connect and a read timeout, bounded by the time left to the
+ * {@link Deadline} of the calling thread, if any. Once the deadline is spent, the calls
+ * throw a {@link DeadlineExceededException} instead of connecting. A Query that fails,
+ * such as after a read timeout, throws a {@link DirectoryException} rather than returning
+ * an empty result that would pass for "not found".
+ * <p>
+ * In a multi-domain Active Directory forest, the read-only lookups of an environment
+ * (authentication, Query and the paged queries) can go to the Global Catalog, which
+ * answers for the whole forest with one indexed search instead of a search per domain
+ * or slow referrals. Set ENVIRON_gc to true in the ldap-target.properties file. Only the
+ * attributes of the partial attribute set replicated to the Global Catalog are returned.
+ * The reads by DN and the writes, such as the counter of GenerateCID, always go to the
+ * domain controller, as does {@link #getContext(String)}.
+ * <p>
+ * With connection_pool set to true, the connections of the service accounts are kept
+ * open in the JNDI connection pool and reused by the next calls, instead of paying for
+ * the TLS handshake and the bind on each call. {@link #warmUp(String, int)} opens the
+ * first connections ahead of the requests. The connections that authenticate users are
+ * never pooled, so each authentication binds with the password it checks. JNDI keeps the
+ * timeouts a pooled connection was opened with, so only the calls with the configured
+ * timeouts are pooled; a call whose deadline leaves less time opens a connection of its
+ * own. The pool itself is configured by the com.sun.jndi.ldap.connect.pool system
+ * properties, which must be set in the JVM options of the application server, as SSL
+ * connections are only pooled with com.sun.jndi.ldap.connect.pool.protocol set to "plain ssl".
+ * <p>
+ * With bulkhead set to true, the calls to each environment go through a
+ * {@link DirectoryBulkhead}, which limits the calls in flight to what the directory
+ * answers without slowing down. A call over the limit waits briefly, or fails with a
+ * {@link DirectoryOverloadedException}, which, like the deadline, is never taken for
+ * an empty result. A failed call holds its permit, but its latency is left out of the
+ * limit. The connections handed out by {@link #getContext(String)} are not counted.
  * 
  * @author      Lester Rivera
  * @version     %I%, %G%
@@ -39,14 +84,13 @@ public class LDAPUtils {
     private static final Log logger = LogFactory.getLog(LDAPUtils.class);
     private Properties props = new Properties();
     static String ATTRIBUTE_FOR_USER = "sAMAccountName";
-    private String _host = null;
-    private String _port = null;
-    private String _domain = null;
-    private String _rootDN = null;
-    private String _authType = null;
-    private String _protocol = null;
-    private String _username = null;
-    private String _password = null;
+    // Number of LDAP operations sent by all the instances, for load reports
+    private static final AtomicLong operations = new AtomicLong();
+    // Authentication decisions shared by all the instances; created on first use if configured
+    private static AuthenticationCache authCache = null;
+    private static boolean authCacheLoaded = false;
+    // The pool settings are JVM options, checked once
+    private static boolean poolChecked = false;
     /** 
      * Constructor will load LDAP server connection information from the
      * ldap-target.properties file.
@@ -74,6 +118,31 @@ public class LDAPUtils {
         // the keystore that holds trusted root certificates
         System.setProperty("javax.net.ssl.trustStore", this.props.getProperty("certificate_store"));
         //System.setProperty("javax.net.debug", "all");
+        this.checkPool();
+    }
+    /**
+     * Warns once when the connection_pool setting is on but the JVM options of the JNDI
+     * connection pool do not pool the SSL connections. The options are only read by JNDI
+     * when it starts, and apply to every LDAP client of the JVM, so they are not set here.
+     */
+    private void checkPool() {
+        synchronized (LDAPUtils.class) {
+            if (poolChecked || !this.isPooled()) {
+                return;
+            }
+            poolChecked = true;
+            String protocols = System.getProperty("com.sun.jndi.ldap.connect.pool.protocol", "plain");
+            if (!protocols.contains("ssl")) {
+                logger.warn("connection_pool is true, but the LDAPS connections are not pooled; add "
+                        + "-Dcom.sun.jndi.ldap.connect.pool.protocol=\"plain ssl\" to the JVM options.");
+            } else {
+                logger.info("LDAP connection pool enabled.");
+            }
+        }
+    }
+    private boolean isPooled() {
+        String pool = this.props.getProperty("connection_pool");
+        return pool != null && pool.trim().equalsIgnoreCase("true");
     }
 
     /**
@@ -86,22 +155,33 @@ public class LDAPUtils {
      * @return true, if authentication is successful; false, if the authentication failed. 
      */
     public boolean authenticateUser(String username, String password, String env) {
+        return Boolean.TRUE.equals(this.authenticate(username, password, env));
+    }
+    /**
+     * Authenticates a user to an LDAP environment.
+     * 
+     * @return TRUE, if authentication is successful; FALSE, if the directory rejected the
+     * credentials (LDAP error 49) or has no such user; null, if the directory could not
+     * answer, such as after a timeout.
+     */
+    private Boolean authenticate(String username, String password, String env) {
 
         //_provider = this.props.getProperty(env + "_provider");
-        _host = this.props.getProperty(env + "_host");
-        _port = this.props.getProperty(env + "_port");
-        _domain = this.props.getProperty(env + "_domain");
-        _rootDN = this.props.getProperty(env + "_rootDN");
-        _authType = this.props.getProperty(env + "_authType");
-        _protocol = this.props.getProperty(env + "_protocol");
+        boolean gc = this.useGlobalCatalog(env);
+        String host = this.host(env, gc);
+        String port = this.port(env, gc);
+        String domain = this.props.getProperty(env + "_domain");
+        String rootDN = this.searchBase(env, gc);
+        String authType = this.props.getProperty(env + "_authType");
+        String protocol = this.props.getProperty(env + "_protocol");
 
         logger.debug("environment: " + env);
-        logger.debug("host: " + _host);
-        logger.debug("port: " + _port);
-        logger.debug("domain: " + _domain);
-        logger.debug("rootDN: " + _rootDN);
-        logger.debug("authType: " + _authType);
-        logger.debug("protocol: " + _protocol);
+        logger.debug("host: " + host);
+        logger.debug("port: " + port);
+        logger.debug("domain: " + domain);
+        logger.debug("rootDN: " + rootDN);
+        logger.debug("authType: " + authType);
+        logger.debug("protocol: " + protocol);
 
         String returnedAtts[] = {"cn", "givenName", "mail"};
         String searchFilter = "(&(objectClass=user)(" + ATTRIBUTE_FOR_USER + "=" + username + "))";
@@ -112,17 +192,14 @@ public class LDAPUtils {
         // Specify the search scope
 
         searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
-        String searchBase = _rootDN;
-        Hashtable<String, String> environment = new Hashtable<String, String>();
-        environment.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
-        environment.put(Context.PROVIDER_URL, "ldap://" + _host + ":" + _port);
-        environment.put(Context.SECURITY_AUTHENTICATION, _authType);
-        environment.put(Context.SECURITY_PRINCIPAL, username + "@" + _domain);
-        environment.put(Context.SECURITY_CREDENTIALS, password);
-        environment.put(Context.SECURITY_PROTOCOL, _protocol);
+        String searchBase = rootDN;
         LdapContext ctxGC = null;
+        DirectoryBulkhead.Permit permit = this.acquire(env, "ldap.authenticate");
+        Span span = Tracer.startSpan("ldap.authenticate").setAttribute("ldap.environment", env).setAttribute("ldap.gc", gc);
+        operations.incrementAndGet();
         try {
-            ctxGC = new InitialLdapContext(environment, null);
+            // Never pooled: a pooled connection would skip the bind that checks the password
+            ctxGC = this.bind(env, gc, username + "@" + domain, password, false, "ldap.authenticate");
             // Search for objects in the GC using the filter
 
             NamingEnumeration<?> answer = ctxGC.search(searchBase, searchFilter, searchCtls);
@@ -130,20 +207,45 @@ public class LDAPUtils {
                 SearchResult sr = (SearchResult) answer.next();
                 Attributes attrs = sr.getAttributes();
                 if (attrs != null) {
-                    logger.info("User " + username + " has been authenticated by " + _host);
-                    return true;
+                    logger.info("User " + username + " has been authenticated by " + host);
+                    return Boolean.TRUE;
                 }
             }
 
+        } catch (AuthenticationException e) {
+            // LDAP error 49; the credentials are wrong, the only failure worth remembering
+            span.setError(e);
+            permit.failed();
+            logger.error("User " + username + " has NOT been authenticated by " + host + ": " + e.getMessage());
+            return Boolean.FALSE;
         } catch (NamingException e) {
+            span.setError(e);
+            permit.failed();
             logger.error("An error occured connecting to LDAP server.");
             logger.error(e.getMessage());
+            // A timeout because the deadline is spent is not a failed authentication
+            Deadline.check("ldap.authenticate");
+            logger.error("User " + username + " could not be authenticated by " + host);
+            return null;
+        } catch (DeadlineExceededException ex) {
+            // Neither the deadline nor the bulkhead is a directory failure; the caller handles them
+            throw ex;
+        } catch (DirectoryOverloadedException ex) {
+            throw ex;
         } catch (Exception ex) {
+            span.setError(ex);
+            permit.failed();
             logger.error("A general error occured connecting to LDAP server.");
             logger.error(ex.getMessage());
+            logger.error("User " + username + " could not be authenticated by " + host);
+            return null;
+        } finally {
+            close(ctxGC);
+            permit.release();
+            span.end();
         }
-        logger.error("User " + username + " has NOT been authenticated by " + _host);
-        return false;
+        logger.error("User " + username + " has NOT been authenticated by " + host);
+        return Boolean.FALSE;
     }
 
     /**
@@ -159,17 +261,81 @@ public class LDAPUtils {
     public boolean authenticateUser(String username, String password) {
         String[] environ = null;
 
+        AuthenticationCache cache = this.getAuthenticationCache();
+        if (cache != null) {
+            Boolean cached = cache.lookup(username, password);
+            if (cached != null) {
+                return cached.booleanValue();
+            }
+        }
         environ = this.props.getProperty("environments").split(",");
         logger.debug("LDAP Authentication for " + environ.length + " environments.");
-        LDAPUtils ldap = new LDAPUtils();
-        for (int i = 0; i < environ.length; i++) {
+        boolean authenticated = false;
+        // A failure is only kept if every environment rejected the credentials;
+        // one that could not answer might have accepted them
+        boolean rejected = true;
+        for (int i = 0; i < environ.length && !authenticated; i++) {
             String attempted = environ[i].trim();
             logger.debug("Attempting LDAP Authentication to " + attempted + " environment.");
-            if (ldap.authenticateUser(username, password, attempted)) {
-                return true;
+            Boolean result = this.authenticate(username, password, attempted);
+            authenticated = Boolean.TRUE.equals(result);
+            rejected = rejected && result != null;
+        }
+        if (cache != null && (authenticated || rejected)) {
+            cache.put(username, password, authenticated);
+        }
+        return authenticated;
+    }
+    /**
+     * Forgets the cached authentication decisions for a user, such as after a
+     * password change or when the account is disabled.
+     * <p>
+     * With auth_cache_ttl set, the code that changes a password or disables an account in
+     * the directories, such as a password reset page or an Event Listener on the password
+     * change and disable events, must call this method. Otherwise the old password keeps
+     * authenticating the user until auth_cache_ttl runs out. A failed attempt of the new
+     * password is forgotten after auth_cache_negative_ttl at most.
+     * 
+     * @param username	The UserID of the user.
+     */
+    public static void invalidateAuthentication(String username) {
+        AuthenticationCache cache;
+        synchronized (LDAPUtils.class) {
+            cache = authCache;
+        }
+        if (cache != null) {
+            cache.invalidate(username);
+        }
+    }
+    /**
+     * The user ID in a DN of the Corporate Directory; that is, the value of the first RDN
+     * without the uid= prefix. For example, the LANID of a manager selected on a task form.
+     * 
+     * @param dn	the DN; for example, uid=JSMITH,ou=People,o=Company
+     * @return the user ID; for example, JSMITH
+     */
+    public static String getUID(String dn) {
+        String[] tempArr = dn.split(",");
+        return tempArr[0].replaceAll("uid=", "");
+    }
+    /**
+     * The cache of authentication decisions, from the auth_cache settings in the
+     * ldap-target.properties file; null if the cache is not enabled.
+     */
+    private AuthenticationCache getAuthenticationCache() {
+        synchronized (LDAPUtils.class) {
+            if (!authCacheLoaded) {
+                long ttl = Long.parseLong(this.props.getProperty("auth_cache_ttl", "0").trim());
+                if (ttl > 0) {
+                    long negativeTtl = Long.parseLong(this.props.getProperty("auth_cache_negative_ttl", "5").trim());
+                    int size = Integer.parseInt(this.props.getProperty("auth_cache_size", "1000").trim());
+                    authCache = new AuthenticationCache(ttl * 1000, negativeTtl * 1000, size);
+                    logger.info("Authentication cache enabled; ttl " + ttl + " s, negative ttl " + negativeTtl + " s, size " + size);
+                }
+                authCacheLoaded = true;
             }
+            return authCache;
         }
-        return false;
     }
     /**
      * This method submits a query to the LDAP environment.
@@ -179,12 +345,14 @@ public class LDAPUtils {
      * @param filter	The LDAP Filter Query to search with.
      * @param attrList	The LDAP attributes to return.
      * @return List of attributes the results of the query.
+     * @throws DirectoryException if the directory cannot be searched, such as after a read
+     * timeout; an error is never returned as an empty result.
      */
     public Attributes Query(String env, String filter, String[] attrList) {
         logger.debug("Setting up LDAP Query for " + env + " environment only.");
-        _username = this.props.getProperty(env + "_username");
-        _password = this.props.getProperty(env + "_encrypted");
-        return this.Query(_username, _password, env, filter, attrList);
+        String username = this.props.getProperty(env + "_username");
+        String password = this.props.getProperty(env + "_encrypted");
+        return this.Query(username, password, env, filter, attrList);
     }
     /**
      * This method submits a query to the LDAP environment.
@@ -196,28 +364,27 @@ public class LDAPUtils {
      * @param filter	The LDAP Filter Query to search with.
      * @param attrList	The LDAP attributes to return.
      * @return List of attributes the results of the query.
+     * @throws DirectoryException if the directory cannot be searched, such as after a read
+     * timeout; an error is never returned as an empty result.
      */
     public Attributes Query(String username, String encryptedpassword, String env, String filter, String[] attrList) {
-        //char [] tmpPassword = null;
-        String tmpPassword = "";
         logger.debug("LDAP Query for " + env + " environment only.");
         //_provider = this.props.getProperty(env + "_provider");
-        _host = this.props.getProperty(env + "_host");
-        _port = this.props.getProperty(env + "_port");
-        _domain = this.props.getProperty(env + "_domain");
-        _rootDN = this.props.getProperty(env + "_rootDN");
-        _authType = this.props.getProperty(env + "_authType");
-        _protocol = this.props.getProperty(env + "_protocol");
-        if (!encryptedpassword.isEmpty())
-            tmpPassword = JSafeTools.decryptText(encryptedpassword).toString();
+        boolean gc = this.useGlobalCatalog(env);
+        String host = this.host(env, gc);
+        String port = this.port(env, gc);
+        String domain = this.props.getProperty(env + "_domain");
+        String rootDN = this.searchBase(env, gc);
+        String authType = this.props.getProperty(env + "_authType");
+        String protocol = this.props.getProperty(env + "_protocol");
         
         logger.debug("environment: " + env);
-        logger.debug("host: " + _host);
-        logger.debug("port: " + _port);
-        logger.debug("domain: " + _domain);
-        logger.debug("rootDN: " + _rootDN);
-        logger.debug("authType: " + _authType);
-        logger.debug("protocol: " + _protocol);
+        logger.debug("host: " + host);
+        logger.debug("port: " + port);
+        logger.debug("domain: " + domain);
+        logger.debug("rootDN: " + rootDN);
+        logger.debug("authType: " + authType);
+        logger.debug("protocol: " + protocol);
         logger.debug("username: " + username);
         //logger.debug("Password: " + tmpPassword);
 
@@ -231,17 +398,13 @@ public class LDAPUtils {
         // Specify the search scope
 
         searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
-        String searchBase = _rootDN;
-        Hashtable<String, String> environment = new Hashtable<String, String>();
-        environment.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
-        environment.put(Context.PROVIDER_URL, "ldap://" + _host + ":" + _port);
-        environment.put(Context.SECURITY_AUTHENTICATION, _authType);
-        environment.put(Context.SECURITY_PRINCIPAL, username + "@" + _domain);
-        environment.put(Context.SECURITY_CREDENTIALS, tmpPassword);
-        environment.put(Context.SECURITY_PROTOCOL, _protocol);
+        String searchBase = rootDN;
         LdapContext ctxGC = null;
+        DirectoryBulkhead.Permit permit = this.acquire(env, "ldap.search");
+        Span span = Tracer.startSpan("ldap.search").setAttribute("ldap.environment", env).setAttribute("ldap.filter", filter).setAttribute("ldap.gc", gc);
+        operations.incrementAndGet();
         try {
-            ctxGC = new InitialLdapContext(environment, null);
+            ctxGC = this.connect(env, gc, username, encryptedpassword, "ldap.search");
             // Search for objects in the GC using the filter
 
             NamingEnumeration<?> answer = ctxGC.search(searchBase, searchFilter, searchCtls);
@@ -250,15 +413,426 @@ public class LDAPUtils {
                 attrs = sr.getAttributes();
                 return attrs;
             }
+        } catch (NameNotFoundException e) {
+            // The search base does not exist, so neither does the entry
+            logger.debug("LDAP search base not found: " + e.getMessage());
         } catch (NamingException e) {
+            span.setError(e);
+            permit.failed();
             logger.error("An error occured connecting to LDAP server.");
             logger.error(e.getMessage());
+            // An empty result would pass for "not found" when the search failed
+            Deadline.check("ldap.search");
+            throw new DirectoryException("LDAP search of " + env + " failed: " + e.getMessage(), e);
+        } catch (DeadlineExceededException ex) {
+            throw ex;
+        } catch (DirectoryOverloadedException ex) {
+            throw ex;
         } catch (Exception ex){
+            span.setError(ex);
+            permit.failed();
             logger.error("A general error occured connecting to LDAP server.");
             logger.error(ex.getMessage());
+            throw new DirectoryException("LDAP search of " + env + " failed: " + ex.getMessage(), ex);
         } finally {
-            return attrs;
+            close(ctxGC);
+            permit.release();
+            span.end();
         }
+        return attrs;
+    }
+    /**
+     * This method submits a query to the LDAP environment and returns all the
+     * matching entries, not only the first one. The results are retrieved in pages,
+     * so the query is not cut off by the size limit of the server (1000 entries
+     * for Active Directory).
+     * 
+     * @param env		The LDAP environment being accessed. Must be configured in the 
+     * ldap-target.properties file.
+     * @param filter	The LDAP Filter Query to search with.
+     * @param attrList	The LDAP attributes to return.
+     * @param pageSize	The number of entries to retrieve per page.
+     * @return List of the attributes of each entry found.
+     * @throws NamingException if the query fails; unlike Query, a partial result is not returned.
+     */
+    public List<Attributes> QueryAll(String env, String filter, String[] attrList, int pageSize) throws NamingException {
+        final List<Attributes> results = new ArrayList<Attributes>();
+        this.QueryPages(env, filter, attrList, pageSize, new PageHandler() {
+            public void page(List<SearchResult> entries) {
+                for (SearchResult entry : entries) {
+                    results.add(entry.getAttributes());
+                }
+            }
+        });
+        return results;
+    }
+    /**
+     * This method tells whether any entry of the LDAP environment matches the filter.
+     * The search asks the server for a single entry and no attributes, so the answer
+     * costs one round trip however many entries match.
+     * 
+     * @param env		The LDAP environment being accessed. Must be configured in the 
+     * ldap-target.properties file.
+     * @param filter	The LDAP Filter Query to search with.
+     * @return true, if at least one entry matches; false, if none does.
+     * @throws NamingException if the query fails; an error is never taken for "not found".
+     */
+    public boolean exists(String env, String filter) throws NamingException {
+        logger.debug("LDAP existence query for " + env + " environment only.");
+        SearchControls searchCtls = new SearchControls();
+        searchCtls.setReturningAttributes(new String[0]);
+        searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        searchCtls.setCountLimit(1);
+
+        LdapContext ctx = null;
+        boolean gc = this.useGlobalCatalog(env);
+        DirectoryBulkhead.Permit permit = this.acquire(env, "ldap.search.exists");
+        Span span = Tracer.startSpan("ldap.search.exists").setAttribute("ldap.environment", env).setAttribute("ldap.filter", filter).setAttribute("ldap.gc", gc);
+        operations.incrementAndGet();
+        try {
+            ctx = this.connect(env, gc);
+            NamingEnumeration<SearchResult> answer = ctx.search(this.searchBase(env, gc), filter, searchCtls);
+            boolean found;
+            try {
+                found = answer.hasMore();
+            } catch (SizeLimitExceededException ex) {
+                // More entries match than the one asked for
+                found = true;
+            }
+            span.setAttribute("ldap.found", found);
+            return found;
+        } catch (NamingException ex) {
+            span.setError(ex);
+            permit.failed();
+            throw ex;
+        } finally {
+            if (ctx != null) {
+                ctx.close();
+            }
+            permit.release();
+            span.end();
+        }
+    }
+    /**
+     * The receiver of the pages of a paged query.
+     */
+    public interface PageHandler {
+        /**
+         * @param entries	The entries of one page, with their names and attributes.
+         * @throws NamingException to stop the query.
+         */
+        void page(List<SearchResult> entries) throws NamingException;
+    }
+    /**
+     * This method submits a query to the LDAP environment and hands the matching
+     * entries to the handler one page at a time, so all the entries of a large
+     * directory need not be held in memory. The handler runs on the calling thread,
+     * while the connection is open.
+     * 
+     * @param env		The LDAP environment being accessed. Must be configured in the 
+     * ldap-target.properties file.
+     * @param filter	The LDAP Filter Query to search with.
+     * @param attrList	The LDAP attributes to return.
+     * @param pageSize	The number of entries to retrieve per page.
+     * @param handler	The receiver of each page.
+     * @return the number of entries found.
+     * @throws NamingException if the query or the handler fails.
+     */
+    public int QueryPages(String env, String filter, String[] attrList, int pageSize, PageHandler handler) throws NamingException {
+        return this.QueryPages(null, env, filter, attrList, pageSize, handler);
+    }
+    /**
+     * This method submits a paged query on a connection opened by {@link #getContext(String)},
+     * so the entries come from the domain controller of the other reads made on it, even when
+     * the environment searches the Global Catalog or its host name points to several domain
+     * controllers; for example, to compare their uSNChanged with the highestCommittedUSN of
+     * that domain controller. The connection is left open.
+     * 
+     * @param ctx		The connection to the domain controller; null to open one as
+     * {@link #QueryPages(String, String, String[], int, PageHandler)} does.
+     * @param env		The LDAP environment being accessed. Must be configured in the 
+     * ldap-target.properties file.
+     * @param filter	The LDAP Filter Query to search with.
+     * @param attrList	The LDAP attributes to return.
+     * @param pageSize	The number of entries to retrieve per page.
+     * @param handler	The receiver of each page.
+     * @return the number of entries found.
+     * @throws NamingException if the query or the handler fails.
+     */
+    public int QueryPages(LdapContext ctx, String env, String filter, String[] attrList, int pageSize, PageHandler handler) throws NamingException {
+        logger.debug("LDAP paged query for " + env + " environment only.");
+        SearchControls searchCtls = new SearchControls();
+        searchCtls.setReturningAttributes(attrList);
+        searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+
+        int count = 0;
+        boolean own = ctx == null;
+        boolean gc = own && this.useGlobalCatalog(env);
+        DirectoryBulkhead.Permit permit = this.acquire(env, "ldap.search.paged").withoutSample();
+        Span span = Tracer.startSpan("ldap.search.paged").setAttribute("ldap.environment", env).setAttribute("ldap.filter", filter).setAttribute("ldap.gc", gc);
+        operations.incrementAndGet();
+        try {
+            if (own) {
+                ctx = this.connect(env, gc);
+            }
+            byte[] cookie = null;
+            do {
+                ctx.setRequestControls(new Control[]{new PagedResultsControl(pageSize, cookie, Control.CRITICAL)});
+                NamingEnumeration<SearchResult> answer = ctx.search(this.searchBase(env, gc), filter, searchCtls);
+                List<SearchResult> entries = new ArrayList<SearchResult>(pageSize);
+                while (answer.hasMore()) {
+                    entries.add(answer.next());
+                }
+                cookie = null;
+                Control[] controls = ctx.getResponseControls();
+                if (controls != null) {
+                    for (Control control : controls) {
+                        if (control instanceof PagedResultsResponseControl) {
+                            cookie = ((PagedResultsResponseControl) control).getCookie();
+                        }
+                    }
+                }
+                count += entries.size();
+                handler.page(entries);
+            } while (cookie != null && cookie.length > 0);
+            span.setAttribute("ldap.entries", count);
+        } catch (NamingException ex) {
+            span.setError(ex);
+            permit.failed();
+            throw ex;
+        } catch (java.io.IOException ex) {
+            span.setError(ex);
+            permit.failed();
+            throw new NamingException("Unable to create the paged results control: " + ex.getMessage());
+        } finally {
+            if (own) {
+                close(ctx);
+            } else {
+                // The next calls on the caller's connection are not paged
+                try {
+                    ctx.setRequestControls(null);
+                } catch (NamingException ex) {
+                    logger.debug("Unable to clear the paged results control: " + ex.getMessage());
+                }
+            }
+            permit.release();
+            span.end();
+        }
+        logger.debug("LDAP paged query returned " + count + " entries.");
+        return count;
+    }
+    /**
+     * This method connects to the LDAP environment with the service account
+     * configured for it. The caller must close the context.
+     * 
+     * @param env		The LDAP environment being accessed. Must be configured in the 
+     * ldap-target.properties file.
+     * @return the connection to the LDAP environment.
+     * @throws NamingException if the connection or the bind fails.
+     */
+    public LdapContext getContext(String env) throws NamingException {
+        return this.connect(env, false);
+    }
+    /**
+     * Connects to the domain controller of the environment, or to its Global Catalog.
+     */
+    private LdapContext connect(String env, boolean gc) throws NamingException {
+        return this.connect(env, gc, this.props.getProperty(env + "_username"),
+                this.props.getProperty(env + "_encrypted"), "ldap.connect");
+    }
+    /**
+     * Connects with a service account, given its user name and its encrypted password.
+     * All the service account connections are made here, so they share the pool.
+     */
+    private LdapContext connect(String env, boolean gc, String username, String encryptedpassword, String operation) throws NamingException {
+        String tmpPassword = "";
+        if (encryptedpassword != null && !encryptedpassword.isEmpty())
+            tmpPassword = JSafeTools.decryptText(encryptedpassword).toString();
+        return this.bind(env, gc, principal(username, this.props.getProperty(env + "_domain")), tmpPassword, this.isPooled(), operation);
+    }
+    /**
+     * Opens a connection to the environment and binds with the principal. Only the
+     * service account connections may be pooled.
+     */
+    private LdapContext bind(String env, boolean gc, String principal, String password, boolean pooled, String operation) throws NamingException {
+        Hashtable<String, String> environment = new Hashtable<String, String>();
+        environment.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
+        environment.put(Context.PROVIDER_URL, "ldap://" + this.host(env, gc) + ":" + this.port(env, gc));
+        environment.put(Context.SECURITY_AUTHENTICATION, this.props.getProperty(env + "_authType"));
+        environment.put(Context.SECURITY_PRINCIPAL, principal);
+        environment.put(Context.SECURITY_CREDENTIALS, password);
+        environment.put(Context.SECURITY_PROTOCOL, this.props.getProperty(env + "_protocol"));
+        // JNDI reuses a pooled connection with the timeouts it was opened with, so a
+        // connection bound by the shorter timeouts of a deadline is not shared
+        if (this.putTimeouts(environment, env, operation) && pooled) {
+            environment.put("com.sun.jndi.ldap.connect.pool", "true");
+        }
+        return new InitialLdapContext(environment, null);
+    }
+    // Closes a connection, or returns it to the pool; a failure to close is only logged
+    private static void close(Context ctx) {
+        if (ctx != null) {
+            try {
+                ctx.close();
+            } catch (NamingException ex) {
+                logger.debug("Unable to close the LDAP connection: " + ex.getMessage());
+            }
+        }
+    }
+    /**
+     * The LDAP environments configured in the ldap-target.properties file;
+     * that is, the prefixes of the ENVIRON_host settings.
+     * 
+     * @return the names of the environments, sorted.
+     */
+    public List<String> getEnvironments() {
+        List<String> envs = new ArrayList<String>();
+        for (String key : this.props.stringPropertyNames()) {
+            if (key.endsWith("_host") && !key.endsWith("_gc_host")) {
+                envs.add(key.substring(0, key.length() - "_host".length()));
+            }
+        }
+        java.util.Collections.sort(envs);
+        return envs;
+    }
+    /**
+     * Pays the cost of the first connection to an environment ahead of the requests:
+     * reading the settings, decrypting the password, the TLS handshake and the bind.
+     * The connections are opened together and closed, so with connection_pool they
+     * stay open in the pool. An environment without a service account, such as one
+     * only used to authenticate users, is connected to anonymously.
+     * 
+     * @param env			The LDAP environment. Must be configured in the 
+     * ldap-target.properties file.
+     * @param connections	The number of connections to open.
+     * @return the number of connections opened.
+     * @throws NamingException if no connection can be opened.
+     */
+    public int warmUp(String env, int connections) throws NamingException {
+        String username = this.props.getProperty(env + "_username");
+        boolean gc = this.useGlobalCatalog(env);
+        List<LdapContext> opened = new ArrayList<LdapContext>();
+        Span span = Tracer.startSpan("ldap.warmup").setAttribute("ldap.environment", env).setAttribute("ldap.gc", gc);
+        try {
+            if (username == null || username.trim().isEmpty()) {
+                Hashtable<String, String> environment = new Hashtable<String, String>();
+                environment.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
+                environment.put(Context.PROVIDER_URL, "ldap://" + this.host(env, gc) + ":" + this.port(env, gc));
+                environment.put(Context.SECURITY_AUTHENTICATION, "none");
+                String protocol = this.props.getProperty(env + "_protocol");
+                if (protocol != null && !protocol.trim().isEmpty()) {
+                    environment.put(Context.SECURITY_PROTOCOL, protocol.trim());
+                }
+                this.putTimeouts(environment, env, "ldap.warmup");
+                operations.incrementAndGet();
+                LdapContext ctx = new InitialLdapContext(environment, null);
+                opened.add(ctx);
+                ctx.getAttributes("", new String[]{"namingContexts"});
+            } else {
+                for (int i = 0; i < connections; i++) {
+                    operations.incrementAndGet();
+                    opened.add(this.connect(env, false));
+                }
+                if (gc) {
+                    operations.incrementAndGet();
+                    opened.add(this.connect(env, true));
+                }
+            }
+            span.setAttribute("ldap.connections", opened.size());
+            return opened.size();
+        } catch (NamingException ex) {
+            span.setError(ex);
+            if (opened.isEmpty()) {
+                throw ex;
+            }
+            logger.warn("Opened " + opened.size() + " of the connections to " + env + ": " + ex.getMessage());
+            return opened.size();
+        } finally {
+            for (LdapContext ctx : opened) {
+                ctx.close();
+            }
+            span.end();
+        }
+    }
+    /**
+     * Waits for a permit to call the environment, when its calls are limited by a
+     * bulkhead (see {@link DirectoryBulkhead}).
+     * 
+     * @throws DirectoryOverloadedException if the environment has too many calls already.
+     */
+    private DirectoryBulkhead.Permit acquire(String env, String operation) {
+        DirectoryBulkhead bulkhead = DirectoryBulkhead.forEnvironment(env, this.props);
+        return bulkhead == null ? DirectoryBulkhead.Permit.NONE : bulkhead.acquire(operation);
+    }
+    /**
+     * Sets the connect and read timeouts of a connection from the settings of the
+     * environment, bounded by the time left to the deadline of the thread.
+     * 
+     * @return true if the timeouts are the configured ones; false if the deadline shortened them.
+     * @throws DeadlineExceededException if the deadline of the thread is spent.
+     */
+    private boolean putTimeouts(Hashtable<String, String> environment, String env, String operation) {
+        long connect = Long.parseLong(this.props.getProperty(env + "_connect_timeout", this.props.getProperty("connect_timeout", "5000")).trim());
+        long read = Long.parseLong(this.props.getProperty(env + "_read_timeout", this.props.getProperty("read_timeout", "30000")).trim());
+        long connectTimeout = Deadline.timeout(operation, connect);
+        long readTimeout = Deadline.timeout(operation, read);
+        environment.put("com.sun.jndi.ldap.connect.timeout", String.valueOf(connectTimeout));
+        environment.put("com.sun.jndi.ldap.read.timeout", String.valueOf(readTimeout));
+        return connectTimeout == connect && readTimeout == read;
+    }
+    /**
+     * Whether the read-only lookups of the environment go to the Global Catalog;
+     * that is, ENVIRON_gc is true.
+     */
+    private boolean useGlobalCatalog(String env) {
+        String gc = this.props.getProperty(env + "_gc");
+        return gc != null && gc.trim().equalsIgnoreCase("true");
+    }
+    /**
+     * The host of the domain controller, or of the Global Catalog (ENVIRON_gc_host,
+     * by default the domain controller).
+     */
+    private String host(String env, boolean gc) {
+        String host = gc ? this.props.getProperty(env + "_gc_host") : null;
+        return host == null || host.trim().isEmpty() ? this.props.getProperty(env + "_host") : host.trim();
+    }
+    /**
+     * The port of the domain controller, or of the Global Catalog (ENVIRON_gc_port,
+     * by default 3269 over SSL and 3268 otherwise).
+     */
+    private String port(String env, boolean gc) {
+        if (!gc) {
+            return this.props.getProperty(env + "_port");
+        }
+        String port = this.props.getProperty(env + "_gc_port");
+        if (port != null && !port.trim().isEmpty()) {
+            return port.trim();
+        }
+        String protocol = this.props.getProperty(env + "_protocol");
+        return protocol != null && protocol.trim().equalsIgnoreCase("ssl") ? "3269" : "3268";
+    }
+    /**
+     * The base of the searches; for the Global Catalog, ENVIRON_gc_rootDN, by default
+     * empty to search the whole forest.
+     */
+    private String searchBase(String env, boolean gc) {
+        if (!gc) {
+            return this.props.getProperty(env + "_rootDN");
+        }
+        String rootDN = this.props.getProperty(env + "_gc_rootDN");
+        return rootDN == null ? "" : rootDN.trim();
+    }
+    /**
+     * The principal to bind with; user@domain for Active Directory, or the
+     * username as is when the environment has no domain or the username is
+     * already a DN, a user principal name or a DOMAIN\\user name.
+     */
+    private static String principal(String username, String domain) {
+        if (domain == null || domain.trim().isEmpty() || username == null
+                || username.indexOf('=') >= 0 || username.indexOf('@') >= 0 || username.indexOf('\\') >= 0) {
+            return username;
+        }
+        return username + "@" + domain;
     }
      /**
      * This method retrieves a value from the properties file.
@@ -280,45 +854,48 @@ public class LDAPUtils {
      * @return String of the value.
      */
     public String getAttributeValue(String ldapObject, String ldapAttribute, String env){
-        String tmpPassword = "";
         //String env = "";
         String tempVal = "";
         logger.debug("LDAP getAttribute for " + env + " environment only.");
-        _username = this.props.getProperty(env + "_username");
-        _password = this.props.getProperty(env + "_encrypted");
-        _host = this.props.getProperty(env + "_host");
-        _port = this.props.getProperty(env + "_port");
-        _domain = this.props.getProperty(env + "_domain");
-        _rootDN = this.props.getProperty(env + "_rootDN");
-        _authType = this.props.getProperty(env + "_authType");
-        _protocol = this.props.getProperty(env + "_protocol");
-        if (!_password.isEmpty())
-            tmpPassword = JSafeTools.decryptText(_password).toString();
+        String username = this.props.getProperty(env + "_username");
+        String password = this.props.getProperty(env + "_encrypted");
+        String host = this.props.getProperty(env + "_host");
+        String port = this.props.getProperty(env + "_port");
+        String domain = this.props.getProperty(env + "_domain");
+        String rootDN = this.props.getProperty(env + "_rootDN");
+        String authType = this.props.getProperty(env + "_authType");
+        String protocol = this.props.getProperty(env + "_protocol");
         
         logger.debug("environment: " + env);
-        logger.debug("host: " + _host);
-        logger.debug("port: " + _port);
-        logger.debug("domain: " + _domain);
-        logger.debug("rootDN: " + _rootDN);
-        logger.debug("authType: " + _authType);
-        logger.debug("protocol: " + _protocol);
-        logger.debug("username: " + _username);       
-        
-        Hashtable<String, String> environment = new Hashtable<String, String>();
-        environment.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
-        environment.put(Context.PROVIDER_URL, "ldap://" + _host + ":" + _port);
-        environment.put(Context.SECURITY_AUTHENTICATION, _authType);
-        environment.put(Context.SECURITY_PRINCIPAL, _username);
-        environment.put(Context.SECURITY_CREDENTIALS, tmpPassword);
-        environment.put(Context.SECURITY_PROTOCOL, _protocol);
+        logger.debug("host: " + host);
+        logger.debug("port: " + port);
+        logger.debug("domain: " + domain);
+        logger.debug("rootDN: " + rootDN);
+        logger.debug("authType: " + authType);
+        logger.debug("protocol: " + protocol);
+        logger.debug("username: " + username);       
         
+        DirContext ctx = null;
+        DirectoryBulkhead.Permit permit = this.acquire(env, "ldap.read");
+        Span span = Tracer.startSpan("ldap.read").setAttribute("ldap.environment", env).setAttribute("ldap.attribute", ldapAttribute);
+        operations.incrementAndGet();
         try{
-            DirContext ctx = new InitialDirContext(environment);
+            ctx = this.connect(env, false, username, password, "ldap.read");
             Attributes orig = ctx.getAttributes(ldapObject,new String[]{ldapAttribute});    
             tempVal = orig.get(ldapAttribute).get().toString();            
-            ctx.close();
+        } catch (DeadlineExceededException ex) {
+            throw ex;
+        } catch (DirectoryOverloadedException ex) {
+            throw ex;
         } catch (Exception ex) {
+            span.setError(ex);
+            permit.failed();
             logger.error("General exception occurred connecting to LDAP: " + ex.getMessage());
+            Deadline.check("ldap.read");
+        } finally {
+            close(ctx);
+            permit.release();
+            span.end();
         }
         return tempVal;
     }
@@ -371,50 +948,42 @@ public class LDAPUtils {
      * @return boolean. Success or failed.
      */
     private boolean setAttributeValue(String ldapObject, String ldapAttribute, int ldapAction, String ldapValue, String env){
-        String tmpPassword = "";
         //String env = "";
         boolean tempVal = true;
         logger.debug("LDAP getAttribute for " + env + " environment only.");
-        _username = this.props.getProperty(env + "_username");
-        _password = this.props.getProperty(env + "_encrypted");
-        _host = this.props.getProperty(env + "_host");
-        _port = this.props.getProperty(env + "_port");
-        _domain = this.props.getProperty(env + "_domain");
-        _rootDN = this.props.getProperty(env + "_rootDN");
-        _authType = this.props.getProperty(env + "_authType");
-        _protocol = this.props.getProperty(env + "_protocol");
-        if (!_password.isEmpty())
-            tmpPassword = JSafeTools.decryptText(_password).toString();
+        String username = this.props.getProperty(env + "_username");
+        String password = this.props.getProperty(env + "_encrypted");
+        String host = this.props.getProperty(env + "_host");
+        String port = this.props.getProperty(env + "_port");
+        String domain = this.props.getProperty(env + "_domain");
+        String rootDN = this.props.getProperty(env + "_rootDN");
+        String authType = this.props.getProperty(env + "_authType");
+        String protocol = this.props.getProperty(env + "_protocol");
         
         logger.debug("environment: " + env);
-        logger.debug("host: " + _host);
-        logger.debug("port: " + _port);
-        logger.debug("domain: " + _domain);
-        logger.debug("rootDN: " + _rootDN);
-        logger.debug("authType: " + _authType);
-        logger.debug("protocol: " + _protocol);
-        logger.debug("username: " + _username);   
+        logger.debug("host: " + host);
+        logger.debug("port: " + port);
+        logger.debug("domain: " + domain);
+        logger.debug("rootDN: " + rootDN);
+        logger.debug("authType: " + authType);
+        logger.debug("protocol: " + protocol);
+        logger.debug("username: " + username);   
         
         logger.debug("Object: " + ldapObject);
         logger.debug("Attribute: " + ldapAttribute);
         logger.debug("Value: " + ldapValue); 
         logger.debug("Action: " + ldapAction);
         
-        Hashtable<String, String> environment = new Hashtable<String, String>();
-        environment.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
-        environment.put(Context.PROVIDER_URL, "ldap://" + _host + ":" + _port);
-        environment.put(Context.SECURITY_AUTHENTICATION, _authType);
-        environment.put(Context.SECURITY_PRINCIPAL, _username);
-        environment.put(Context.SECURITY_CREDENTIALS, tmpPassword);
-        environment.put(Context.SECURITY_PROTOCOL, _protocol);
-        
         DirContext ctx = null;
+        DirectoryBulkhead.Permit permit = this.acquire(env, "ldap.modify");
+        Span span = Tracer.startSpan("ldap.modify").setAttribute("ldap.environment", env).setAttribute("ldap.attribute", ldapAttribute);
+        operations.incrementAndGet();
         try{
-            ctx = new InitialDirContext(environment); 
+            ctx = this.connect(env, false, username, password, "ldap.modify");
             // Specify the changes to make
 	    ModificationItem[] mods = new ModificationItem[1];
-            // Replace the attribute with a new value
-            if (ldapAction != DirContext.REMOVE_ATTRIBUTE){
+            // Add, replace or remove the value; without a value, remove the whole attribute
+            if (ldapAction != DirContext.REMOVE_ATTRIBUTE || !ldapValue.isEmpty()){
                 mods[0] = new ModificationItem(ldapAction,new BasicAttribute(ldapAttribute, ldapValue));
                 logger.debug("We are adding or modifying the attribute.");
             } else {
@@ -424,14 +993,31 @@ public class LDAPUtils {
 	    // Perform the requested modifications on the named object
 	    ctx.modifyAttributes(ldapObject, mods);
             logger.debug("Modify completed.");
-            ctx.close();
+        } catch (DeadlineExceededException ex) {
+            throw ex;
+        } catch (DirectoryOverloadedException ex) {
+            throw ex;
         } catch (Exception ex) {
+            span.setError(ex);
+            permit.failed();
             logger.error("General exception occurred connecting to LDAP: " + ex.getMessage());
             tempVal = false;
+            Deadline.check("ldap.modify");
+        } finally {
+            close(ctx);
+            permit.release();
+            span.end();
         }
 
         return tempVal;
     }
+    /**
+     * @return the number of LDAP operations sent since the class was loaded,
+     * by all the instances together.
+     */
+    public static long getOperationCount() {
+        return operations.get();
+    }
     /**
     * This main class exist for testing purposes only.
     */
@@ -0,0 +1,237 @@
+package org.fasttrack.util;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.SearchResult;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+/**
+ * A batch job that recomputes the manager attributes set by the SetManagerAttributes BLTH
+ * for all the users; for example, after a reorganization.
+ * <ul>
+ * <li>eTCustomField69 - The UserID for the manager in LANID format
+ * <li>eTCustomField22 - The Active Directory ADSPath for the manager
+ * </ul>
+ * The users are read twice with paged searches. The first pass collects the distinct
+ * managers. Their Active Directory accounts are then read together, many per search,
+ * into a map. The second pass computes the attributes of each user from the map, without
+ * any further directory call, and only the users whose values changed are updated.
+ * <p>
+ * Like the BLTH, the ADSPath is left as is when the account of the manager is not found
+ * in Active Directory.
+ * <h3>Settings</h3>
+ * <ul>
+ * <li><b>USER_ENVIRONMENT</b> - The LDAP environment of the users, configured in the
+ * ldap-target.properties file.
+ * <li><b>LDAP_ENVIRONMENT</b> - The LDAP environment of Active Directory, as for the BLTH.
+ * <li><b>USER_FILTER</b> - Optional. Default is (manager=*).
+ * <li><b>MANAGER_ATTRIBUTE</b> - Optional. Attribute with the DN of the manager. Default is manager.
+ * <li><b>LANID_ATTRIBUTE</b> - Optional. Default is eTCustomField69.
+ * <li><b>ADSPATH_ATTRIBUTE</b> - Optional. Default is eTCustomField22.
+ * <li><b>PAGE_SIZE</b> - Optional. Entries read per page. Default is 500.
+ * <li><b>MANAGERS_PER_SEARCH</b> - Optional. Managers looked up in each Active Directory search. Default is 100.
+ * </ul>
+ *
+ * @author      Lester Rivera
+ * @version     %I%, %G%
+ * @since       CA Identity Manager 12.0 CR7
+ * @see org.fasttrack.blth.SetManagerAttributes
+ */
+public class ManagerAttributesBatch {
+	private static final Log logger = LogFactory.getLog(ManagerAttributesBatch.class);
+
+	private final String userEnv;
+	private final String adEnv;
+	private final String userFilter;
+	private final String managerAttr;
+	private final String lanidAttr;
+	private final String adsPathAttr;
+	private final int pageSize;
+	private final int managersPerSearch;
+	/**
+	 * Creates a batch job from its settings.
+	 *
+	 * @param settings	the settings listed in the class description
+	 */
+	public ManagerAttributesBatch(Properties settings) {
+		userEnv = settings.getProperty("USER_ENVIRONMENT");
+		adEnv = settings.getProperty("LDAP_ENVIRONMENT");
+		if (userEnv == null || userEnv.trim().isEmpty() || adEnv == null || adEnv.trim().isEmpty()) {
+			throw new IllegalArgumentException("The USER_ENVIRONMENT and LDAP_ENVIRONMENT settings are required.");
+		}
+		userFilter = settings.getProperty("USER_FILTER", "(manager=*)");
+		managerAttr = settings.getProperty("MANAGER_ATTRIBUTE", "manager");
+		lanidAttr = settings.getProperty("LANID_ATTRIBUTE", "eTCustomField69");
+		adsPathAttr = settings.getProperty("ADSPATH_ATTRIBUTE", "eTCustomField22");
+		pageSize = Integer.parseInt(settings.getProperty("PAGE_SIZE", "500").trim());
+		managersPerSearch = Integer.parseInt(settings.getProperty("MANAGERS_PER_SEARCH", "100").trim());
+	}
+	/**
+	 * Recomputes the manager attributes of all the users and writes a report line for each
+	 * user whose values changed.
+	 *
+	 * @param report	where to write the changes
+	 * @param apply		true to update the users; false to only report the changes
+	 * @return the number of users whose values changed
+	 * @throws NamingException if a directory cannot be read
+	 */
+	public int run(PrintWriter report, boolean apply) throws NamingException {
+		long start = System.currentTimeMillis();
+		final LDAPUtils ldap = new LDAPUtils();
+		String[] userAttrs = new String[]{managerAttr, lanidAttr, adsPathAttr};
+
+		// 1. The distinct managers
+		final Set<String> managers = new LinkedHashSet<String>();
+		int users = ldap.QueryPages(userEnv, userFilter, userAttrs, pageSize, new LDAPUtils.PageHandler() {
+			public void page(List<SearchResult> entries) throws NamingException {
+				for (SearchResult entry : entries) {
+					String managerDN = value(entry.getAttributes(), managerAttr);
+					if (managerDN != null && !managerDN.isEmpty()) {
+						managers.add(LDAPUtils.getUID(managerDN).toUpperCase(Locale.ENGLISH));
+					}
+				}
+			}
+		});
+		logger.info("Found " + managers.size() + " distinct managers for " + users + " users.");
+
+		// 2. The ADSPath of each manager, many managers per search
+		Map<String, String> adsPaths = loadADSPaths(ldap, new ArrayList<String>(managers));
+		logger.info("Found " + adsPaths.size() + " of " + managers.size() + " managers in " + adEnv);
+
+		// 3. The users whose values changed
+		final List<String[]> updates = new ArrayList<String[]>();
+		final Map<String, String> paths = adsPaths;
+		ldap.QueryPages(userEnv, userFilter, userAttrs, pageSize, new LDAPUtils.PageHandler() {
+			public void page(List<SearchResult> entries) throws NamingException {
+				for (SearchResult entry : entries) {
+					Attributes attrs = entry.getAttributes();
+					String managerDN = value(attrs, managerAttr);
+					if (managerDN == null || managerDN.isEmpty()) {
+						continue;
+					}
+					String lanid = LDAPUtils.getUID(managerDN);
+					String adsPath = paths.get(lanid.toUpperCase(Locale.ENGLISH));
+					String currentLanid = value(attrs, lanidAttr);
+					String currentPath = value(attrs, adsPathAttr);
+					boolean lanidChanged = !lanid.equals(currentLanid);
+					boolean pathChanged = adsPath != null && !adsPath.equals(currentPath);
+					if (lanidChanged || pathChanged) {
+						updates.add(new String[]{entry.getNameInNamespace(),
+								lanidChanged ? lanid : null, pathChanged ? adsPath : null});
+					}
+				}
+			}
+		});
+
+		int failed = 0;
+		for (String[] update : updates) {
+			report.println(update[0] + "\t" + lanidAttr + "=" + (update[1] == null ? "(unchanged)" : update[1])
+					+ "\t" + adsPathAttr + "=" + (update[2] == null ? "(unchanged)" : update[2]));
+			if (apply) {
+				boolean done = true;
+				if (update[1] != null) {
+					done = ldap.replaceAttributeValue(update[0], lanidAttr, update[1], userEnv);
+				}
+				if (update[2] != null) {
+					done = ldap.replaceAttributeValue(update[0], adsPathAttr, update[2], userEnv) && done;
+				}
+				if (!done) {
+					failed++;
+					report.println(update[0] + "\tFAILED");
+				}
+			}
+		}
+		report.flush();
+		logger.info("Recomputed the manager attributes of " + users + " users in " + (System.currentTimeMillis() - start)
+				+ " ms; " + updates.size() + " changed" + (apply ? ", " + failed + " updates failed." : "."));
+		return updates.size();
+	}
+
+	// The distinguishedName of each manager account, by upper case sAMAccountName
+	private Map<String, String> loadADSPaths(LDAPUtils ldap, List<String> managers) throws NamingException {
+		final Map<String, String> adsPaths = new HashMap<String, String>();
+		for (int i = 0; i < managers.size(); i += managersPerSearch) {
+			StringBuilder filter = new StringBuilder("(&(objectClass=user)(|");
+			for (String manager : managers.subList(i, Math.min(i + managersPerSearch, managers.size()))) {
+				filter.append("(sAMAccountName=").append(escape(manager)).append(')');
+			}
+			filter.append("))");
+			ldap.QueryPages(adEnv, filter.toString(), new String[]{"distinguishedName", "sAMAccountName"}, pageSize,
+					new LDAPUtils.PageHandler() {
+				public void page(List<SearchResult> entries) throws NamingException {
+					for (SearchResult entry : entries) {
+						String account = value(entry.getAttributes(), "sAMAccountName");
+						String dn = value(entry.getAttributes(), "distinguishedName");
+						if (account != null && dn != null) {
+							adsPaths.put(account.toUpperCase(Locale.ENGLISH), dn);
+						}
+					}
+				}
+			});
+		}
+		return adsPaths;
+	}
+
+	private static String value(Attributes attrs, String name) throws NamingException {
+		Attribute attr = attrs.get(name);
+		return attr == null || attr.get() == null ? null : attr.get().toString();
+	}
+
+	// Escapes the special characters of an LDAP filter value (RFC 4515)
+	private static String escape(String value) {
+		StringBuilder sb = new StringBuilder(value.length());
+		for (char c : value.toCharArray()) {
+			switch (c) {
+				case '\\': sb.append("\\5c"); break;
+				case '*': sb.append("\\2a"); break;
+				case '(': sb.append("\\28"); break;
+				case ')': sb.append("\\29"); break;
+				case '\0': sb.append("\\00"); break;
+				default: sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Runs the batch job from the command line.
+	 * Arguments: settings file, report file, and optionally "apply".
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("Usage: ManagerAttributesBatch <settings file> <report file> [apply]");
+			System.exit(1);
+		}
+		Properties settings = new Properties();
+		InputStream in = new FileInputStream(args[0]);
+		try {
+			settings.load(in);
+		} finally {
+			in.close();
+		}
+		boolean apply = args.length > 2 && args[2].equalsIgnoreCase("apply");
+		PrintWriter report = new PrintWriter(new OutputStreamWriter(new FileOutputStream(args[1]), "UTF-8"));
+		try {
+			int changed = new ManagerAttributesBatch(settings).run(report, apply);
+			System.out.println(changed + " users with changed manager attributes.");
+		} finally {
+			report.close();
+		}
+	}
+}
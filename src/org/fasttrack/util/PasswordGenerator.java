@@ -0,0 +1,156 @@
+package org.fasttrack.util;
+
+import java.security.SecureRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+/**
+ * A utility class to generate random passwords that comply with a password policy.
+ * <p>
+ * The policy is made of a length, a minimum number of upper case letters, lower case
+ * letters, digits and special characters, and a set of characters that are never used.
+ * The policy is compiled into character tables once, when the generator is created, and
+ * each password is built from a SecureRandom: the minimum number of characters of each
+ * class are drawn first, the rest is drawn from all allowed characters, and the result is
+ * shuffled.
+ * <p>
+ * An optional pool keeps passwords generated ahead of time. A background daemon thread
+ * tops up the pool whenever a password is taken, so a bulk load of users takes passwords
+ * without waiting. When the pool is empty, the password is generated on the calling thread.
+ * Call {@link #shutdown()} to stop the thread when the generator is no longer used.
+ *
+ * @author      Lester Rivera
+ * @version     %I%, %G%
+ * @since       CA Identity Manager 12.0 CR7
+ * @see org.fasttrack.blth.GeneratePassword
+ */
+public class PasswordGenerator {
+	private static final Log logger = LogFactory.getLog(PasswordGenerator.class);
+
+	private static final String UPPER = "ABCDEFGHIJKLMNOPQRSTUVWXYZ";
+	private static final String LOWER = "abcdefghijklmnopqrstuvwxyz";
+	private static final String DIGITS = "0123456789";
+	private static final String SPECIAL = "!#$%&*+-=?@^_";
+
+	private final SecureRandom random = new SecureRandom();
+	private final int length;
+	private final char[][] classes;
+	private final int[] minimums;
+	private final char[] allowed;
+	private final BlockingQueue<String> pool;
+	private final Thread filler;
+	/**
+	 * Compiles the password policy.
+	 *
+	 * @param length		the length of the passwords
+	 * @param minUpper		the minimum number of upper case letters
+	 * @param minLower		the minimum number of lower case letters
+	 * @param minDigits		the minimum number of digits
+	 * @param minSpecial	the minimum number of special characters
+	 * @param exclude		characters never used in a password, such as look-alikes; may be null
+	 * @param poolSize		the number of passwords to keep generated ahead of time; 0 disables the pool
+	 * @throws IllegalArgumentException if no password can satisfy the policy
+	 */
+	public PasswordGenerator(int length, int minUpper, int minLower, int minDigits, int minSpecial, String exclude, int poolSize) {
+		String excluded = exclude == null ? "" : exclude;
+		this.length = length;
+		this.classes = new char[][] {
+				strip(UPPER, excluded), strip(LOWER, excluded), strip(DIGITS, excluded), strip(SPECIAL, excluded)};
+		this.minimums = new int[] {minUpper, minLower, minDigits, minSpecial};
+		this.allowed = strip(UPPER + LOWER + DIGITS + SPECIAL, excluded);
+
+		int required = 0;
+		for (int i = 0; i < classes.length; i++) {
+			if (minimums[i] > 0 && classes[i].length == 0) {
+				throw new IllegalArgumentException("The password policy requires a character class that is fully excluded.");
+			}
+			required += Math.max(minimums[i], 0);
+		}
+		if (length <= 0 || required > length || allowed.length == 0) {
+			throw new IllegalArgumentException("The password policy cannot be satisfied with a length of " + length + ".");
+		}
+
+		if (poolSize > 0) {
+			pool = new ArrayBlockingQueue<String>(poolSize);
+			filler = new Thread(new Runnable() {
+				public void run() {
+					try {
+						while (true) {
+							pool.put(generate());
+						}
+					} catch (InterruptedException ex) {
+						logger.debug("Password pool stopped.");
+					}
+				}
+			}, "PasswordGenerator-pool");
+			filler.setDaemon(true);
+			filler.start();
+		} else {
+			pool = null;
+			filler = null;
+		}
+	}
+	/**
+	 * Stops the thread that fills the pool, and empties the pool. Passwords are still
+	 * generated on the calling thread afterwards.
+	 */
+	public void shutdown() {
+		if (filler != null) {
+			filler.interrupt();
+			pool.clear();
+		}
+	}
+	/**
+	 * Returns a password from the pool, or a newly generated password if the pool is empty
+	 * or disabled. Never waits for the pool.
+	 *
+	 * @return a password that complies with the policy
+	 */
+	public String nextPassword() {
+		if (pool != null) {
+			String password = pool.poll();
+			if (password != null) {
+				return password;
+			}
+			logger.debug("Password pool is empty. Generating password.");
+		}
+		return generate();
+	}
+	/**
+	 * Generates a new password.
+	 *
+	 * @return a password that complies with the policy
+	 */
+	public String generate() {
+		char[] password = new char[length];
+		int pos = 0;
+		for (int i = 0; i < classes.length; i++) {
+			for (int n = 0; n < minimums[i]; n++) {
+				password[pos++] = classes[i][random.nextInt(classes[i].length)];
+			}
+		}
+		while (pos < length) {
+			password[pos++] = allowed[random.nextInt(allowed.length)];
+		}
+		// Shuffle so the required characters are not always first
+		for (int i = length - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			char tmp = password[i];
+			password[i] = password[j];
+			password[j] = tmp;
+		}
+		return new String(password);
+	}
+
+	private static char[] strip(String chars, String excluded) {
+		StringBuilder sb = new StringBuilder(chars.length());
+		for (char c : chars.toCharArray()) {
+			if (excluded.indexOf(c) < 0) {
+				sb.append(c);
+			}
+		}
+		return sb.toString().toCharArray();
+	}
+}
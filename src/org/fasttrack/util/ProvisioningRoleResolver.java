@@ -0,0 +1,222 @@
+package org.fasttrack.util;
+
+import com.netegrity.llsdk6.imsapi.managedobject.ProvisioningRole;
+import com.netegrity.llsdk6.imsapi.provider.ProvisioningRoleProvider;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.fasttrack.util.Tracer.Span;
+/**
+ * ProvisioningRoleResolver is a utility class which looks up a list of
+ * Provisioning Roles by name.
+ * <p>
+ * Each lookup is a findProvisioningRole() and exists() call to the CA Identity
+ * Manager object store. When the resolver is created with more than one thread,
+ * the lookups for a list of roles run in parallel on a shared pool of daemon
+ * threads, so the time to resolve the list is close to the slowest lookup rather
+ * than the sum of all lookups. The results are always returned in the order of
+ * the requested names, and a failed lookup never stops the others. When the calling
+ * thread has a {@link Deadline}, the lookups not done in time fail with a
+ * {@link DeadlineExceededException}.
+ * <p>
+ * The parallel lookups call the Provisioning Role provider of the event or task from the
+ * threads of the pool. CA Identity Manager does not document its providers as safe to
+ * call from several threads, so the default is {@link #DEFAULT_THREADS}, one lookup at a
+ * time on the calling thread, and more threads are opt-in.
+ * <p>
+ * The class also parses the list of Functional Roles kept in the eTCustomField52
+ * attribute, which may be separated by commas or, when submitted from the userform,
+ * by line breaks.
+ *
+ * @author      Lester Rivera
+ * @version     %I%, %G%
+ * @since       CA Identity Manager 12.0 CR7
+ * @see org.fasttrack.blth.AssignProvisioningRole
+ */
+public class ProvisioningRoleResolver {
+	private static final Log logger = LogFactory.getLog(ProvisioningRoleResolver.class);
+
+	/** The default number of lookups run in parallel; that is, one at a time */
+	public static final int DEFAULT_THREADS = 1;
+
+	private final ExecutorService _executor;
+    /**
+     * Creates a resolver.
+     *
+     * @param threads	the number of lookups to run in parallel; 1 or less resolves the
+     * roles one at a time on the calling thread
+     */
+	public ProvisioningRoleResolver(int threads) {
+		if (threads > 1) {
+			final AtomicInteger count = new AtomicInteger();
+			_executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "ProvisioningRoleResolver-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		} else {
+			_executor = null;
+		}
+	}
+	/**
+	 * Reads the ROLE_LOOKUP_THREADS property of a BLTH or Event Listener.
+	 *
+	 * @param value	the property value; may be null
+	 * @return the number of lookups to run in parallel, or DEFAULT_THREADS if not set or invalid
+	 */
+	public static int parseThreads(String value) {
+		if (value == null || value.trim().isEmpty()) {
+			return DEFAULT_THREADS;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException ex) {
+			logger.warn("Invalid ROLE_LOOKUP_THREADS value: " + value);
+			return DEFAULT_THREADS;
+		}
+	}
+	/**
+	 * Splits a list of role names separated by commas or line breaks. Names are
+	 * trimmed, blank names are skipped and duplicates are removed, keeping the
+	 * order of the first occurrence.
+	 *
+	 * @param value	the list of role names; may be null
+	 * @return the list of distinct role names
+	 */
+	public static List<String> parseRoleNames(String value) {
+		Set<String> names = new LinkedHashSet<String>();
+		if (value != null) {
+			// FIX: If submitted from the userform, we may get control characters
+			String cleaned = value.replaceAll("(\r\n|\r|\n|\n\r|\u001F\u001F)", ",");
+			for (String name : cleaned.split(",")) {
+				if (!name.trim().isEmpty()) {
+					names.add(name.trim());
+				}
+			}
+		}
+		return new ArrayList<String>(names);
+	}
+	/**
+	 * Looks up each of the Provisioning Roles.
+	 *
+	 * @param provider	the Provisioning Role provider of the task or event
+	 * @param names		the names of the Provisioning Roles
+	 * @return the result of each lookup, in the order of the names
+	 */
+	public List<Resolution> resolve(final ProvisioningRoleProvider provider, List<String> names) throws InterruptedException {
+		if (names.isEmpty()) {
+			return Collections.emptyList();
+		}
+		List<Resolution> results = new ArrayList<Resolution>(names.size());
+		// The lookups are traced as children of the span of the calling thread
+		final Span parent = Tracer.current();
+		// and stop once the deadline of the calling thread is spent
+		final Deadline deadline = Deadline.current();
+		if (_executor == null || names.size() == 1) {
+			for (String name : names) {
+				results.add(lookup(provider, name, parent, deadline));
+			}
+			return results;
+		}
+
+		List<Callable<Resolution>> lookups = new ArrayList<Callable<Resolution>>(names.size());
+		for (final String name : names) {
+			lookups.add(new Callable<Resolution>() {
+				public Resolution call() {
+					return lookup(provider, name, parent, deadline);
+				}
+			});
+		}
+		List<Future<Resolution>> futures = deadline == null ? _executor.invokeAll(lookups)
+				: _executor.invokeAll(lookups, Math.max(deadline.remaining(), 0), TimeUnit.MILLISECONDS);
+		for (int i = 0; i < futures.size(); i++) {
+			try {
+				results.add(futures.get(i).get());
+			} catch (ExecutionException ex) {
+				results.add(new Resolution(names.get(i), null, false, ex.getCause(), 0));
+			} catch (CancellationException ex) {
+				results.add(new Resolution(names.get(i), null, false,
+						new DeadlineExceededException("role.lookup of " + names.get(i) + " did not complete before the deadline."), 0));
+			}
+		}
+		return results;
+	}
+	/**
+	 * Stops the threads of the resolver.
+	 */
+	public void shutdown() {
+		if (_executor != null) {
+			_executor.shutdown();
+		}
+	}
+
+	private static Resolution lookup(ProvisioningRoleProvider provider, String name, Span parent, Deadline deadline) {
+		long start = System.currentTimeMillis();
+		ProvisioningRole role = null;
+		Span span = Tracer.startSpan("role.lookup", parent).setAttribute("role.name", name);
+		try {
+			if (deadline != null && deadline.isExpired()) {
+				throw new DeadlineExceededException("role.lookup of " + name + " not attempted; the deadline expired.");
+			}
+			role = provider.findProvisioningRole(name);
+			boolean found = role != null && role.exists();
+			long elapsed = System.currentTimeMillis() - start;
+			logger.debug("Resolved Provisioning Role " + name + " in " + elapsed + " ms. Found: " + found);
+			span.setAttribute("role.found", found);
+			return new Resolution(name, role, found, null, elapsed);
+		} catch (Exception ex) {
+			long elapsed = System.currentTimeMillis() - start;
+			logger.debug("Error resolving Provisioning Role " + name + " in " + elapsed + " ms: " + ex.getMessage());
+			span.setError(ex);
+			return new Resolution(name, role, false, ex, elapsed);
+		} finally {
+			span.end();
+		}
+	}
+
+	/**
+	 * The result of looking up a single Provisioning Role.
+	 */
+	public static class Resolution {
+		private final String _name;
+		private final ProvisioningRole _role;
+		private final boolean _found;
+		private final Throwable _error;
+		private final long _elapsed;
+
+		Resolution(String name, ProvisioningRole role, boolean found, Throwable error, long elapsed) {
+			_name = name;
+			_role = role;
+			_found = found;
+			_error = error;
+			_elapsed = elapsed;
+		}
+		/** @return the requested role name */
+		public String getName() { return _name; }
+		/** @return the Provisioning Role, or null if the lookup failed */
+		public ProvisioningRole getRole() { return _role; }
+		/** @return true if the Provisioning Role exists */
+		public boolean isFound() { return _found; }
+		/** @return the error raised by the lookup, or null; a NoSuchObjectException means the role does not exist */
+		public Throwable getError() { return _error; }
+		/** @return the time taken by the lookup in milliseconds */
+		public long getElapsedMillis() { return _elapsed; }
+	}
+}
@@ -3,13 +3,20 @@ package org.fasttrack.util;
 import com.netegrity.llsdk6.imsapi.managedobject.ProvisioningRole;
 import com.netegrity.llsdk6.imsapi.managedobject.Role.CustomFieldId;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Vector;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.logging.Log; 
 import org.apache.commons.logging.LogFactory;
 /**
- * ProvisioningRoleType is a utility class which takes a vector of 
+ * ProvisioningRoleType is a utility class which takes a collection of
  * ProvisioningRole objects and classifies each object according
  * to the following custom types of Provisioning Roles:
  * <ul>
@@ -32,6 +39,22 @@ import org.apache.commons.logging.LogFactory;
  * If other values are used, or if left blank, the Provisioning Roles is 
  * set to No Type.
  * <p>
+ * The classification is an immutable snapshot taken when the object is
+ * constructed. The lists returned by the getters cannot be modified, and
+ * an index of role name to role type answers the contains and type queries
+ * without walking the lists. The role type of each role is cached by role
+ * name across instances, so classifying the same catalog of roles again only
+ * costs a map lookup per role instead of the exists() and CustomField01 calls
+ * to the object store. A cached role type expires after a while, so a role that
+ * is deleted or given another CustomField01 value is classified again without a
+ * restart; call {@link #invalidateRoleType(String)} or {@link #clearRoleTypeCache()}
+ * to see the change at once.
+ * <h3>System Properties</h3>
+ * <ul>
+ * <li><b>fasttrack.roletype.ttl</b> - Milliseconds a cached role type is used. Default is 600000.
+ * <li><b>fasttrack.roletype.max</b> - Maximum number of cached role types. Default is 5000.
+ * </ul>
+ * <p>
  * The utility class is designed to function with the AssignProvisioningRole
  * Event Listener.
  * 
@@ -43,66 +66,155 @@ import org.apache.commons.logging.LogFactory;
 public class ProvisioningRolesType {
 	private static final Log logger = LogFactory.getLog(ProvisioningRolesType.class);
 	
-	private Vector<ProvisioningRole> _applicationRoles = new Vector<ProvisioningRole>();
-	private Vector<ProvisioningRole> _functionalRoles = new Vector<ProvisioningRole>();
-	private Vector<ProvisioningRole> _baseRoles = new Vector<ProvisioningRole>();
-	private Vector<ProvisioningRole> _noTypeRoles = new Vector<ProvisioningRole>();
+	/**
+	 * The custom types of Provisioning Roles, as set by the CustomField01 attribute.
+	 */
+	public enum RoleType {
+		BASE, FUNCTIONAL, APPLICATION, NOTYPE;
+
+		/**
+		 * Translates the CustomField01 value of a Provisioning Role into a role type.
+		 * @param customField	the CustomField01 value; may be null or blank
+		 * @return	the matching role type, or NOTYPE for any other value
+		 */
+		public static RoleType fromCustomField(String customField) {
+			if (customField != null) {
+				String value = customField.trim();
+				if (value.equalsIgnoreCase("BASE")) {
+					return BASE;
+				} else if (value.equalsIgnoreCase("FUNCTIONAL")) {
+					return FUNCTIONAL;
+				} else if (value.equalsIgnoreCase("APPLICATION")) {
+					return APPLICATION;
+				}
+			}
+			return NOTYPE;
+		}
+	}
+
+	/** The time a cached role type is used, in milliseconds */
+	public static final long CACHE_TTL = Long.getLong("fasttrack.roletype.ttl", 600000L);
+	/** The maximum number of cached role types */
+	public static final int CACHE_MAX = Integer.getInteger("fasttrack.roletype.max", 5000);
+
+	// Role type by role name, shared by all instances; only roles that exist are cached
+	private static final ConcurrentHashMap<String, CachedType> _roleTypeCache = new ConcurrentHashMap<String, CachedType>();
+
+	private final Map<RoleType, List<ProvisioningRole>> _rolesByType;
+	private final Map<String, RoleType> _typeByName;
     /** 
-     * Processes the vector list of Provisioning Roles to classify according to the 
+     * Processes the collection of Provisioning Roles to classify according to the
      * defined business rules.
      *
-     * @param ListOfRoles	the vector of Provisioning Role objects
+     * @param ListOfRoles	the collection of Provisioning Role objects
      */
-	public ProvisioningRolesType(Vector<ProvisioningRole> ListOfRoles) throws Exception {
-        if (ListOfRoles.size() > 0) {
+	public ProvisioningRolesType(Collection<ProvisioningRole> ListOfRoles) throws Exception {
+		EnumMap<RoleType, List<ProvisioningRole>> rolesByType = new EnumMap<RoleType, List<ProvisioningRole>>(RoleType.class);
+		for (RoleType type : RoleType.values()) {
+			rolesByType.put(type, new ArrayList<ProvisioningRole>());
+		}
+		Map<String, RoleType> typeByName = new HashMap<String, RoleType>();
+
+        if (ListOfRoles != null && ListOfRoles.size() > 0) {
         	logger.debug("Number of Provisoning Roles: " + ListOfRoles.size());
-        	Iterator<?> vItr = ListOfRoles.iterator(); 
-        	ProvisioningRole checkRole = null;
         	String findRole = null;
-        	while(vItr.hasNext()){
+        	for (ProvisioningRole checkRole : ListOfRoles) {
         		try{
-	        		checkRole = (ProvisioningRole) vItr.next();
         			findRole = checkRole.getFriendlyName();
-	        		// Make sure you have an object to process
-	                if (checkRole.exists()) {
-	                	logger.debug("Processing Provisioning Role: " + checkRole.getFriendlyName());
-	                	String roleType = null;
-	                	// Fix: LJR 01-28-2010 - the call to customfield1 was retrieving null
-	                	roleType = checkRole.getCustomField(CustomFieldId.CUSTOM01); //Type of Provisioning Role from CustomField01
-	                	// Check if value is blank
-	                	if (roleType.length() > 0) {
-	                		logger.debug("Role Type (customfield1): " + roleType);
-		                	if (roleType.equalsIgnoreCase("BASE")){
-		                		_baseRoles.addElement(checkRole); 					// Add to list of base roles
-		                	} else if (roleType.equalsIgnoreCase("FUNCTIONAL")){
-		                		_functionalRoles.addElement(checkRole);				// Add to list of functional roles
-		                	} else if (roleType.equalsIgnoreCase("APPLICATION")){
-		                		_applicationRoles.addElement(checkRole);			// Add to list of application roles
-		                	} else {
-		                		_noTypeRoles.addElement(checkRole);					// Add to list of no type roles
-		                	}
-	                	} else {
-	                		logger.debug("Provisioning Role has no Role Type (customfield1) value: " + checkRole.getFriendlyName());
-	                		_noTypeRoles.addElement(checkRole);						// Add to list of no type roles
-	                	}
-	                } else {
-	                	logger.debug("Provisioning Role does not exist: " + findRole);
-	                } //if
+        			RoleType roleType = getRoleType(checkRole);
+        			if (roleType != null) {
+        				rolesByType.get(roleType).add(checkRole);
+        				typeByName.put(findRole, roleType);
+        			}
                 } catch(Exception ex){
                 	logger.debug("Error processing Provisioning Role " + findRole + ": " + ex.getMessage());
                 }
-        	} // while
+        	} // for
         } else {
         	logger.debug("Provisioning Roles list is empty.");
         }
+
+        for (RoleType type : RoleType.values()) {
+        	rolesByType.put(type, Collections.unmodifiableList(rolesByType.get(type)));
+        }
+        _rolesByType = Collections.unmodifiableMap(rolesByType);
+        _typeByName = Collections.unmodifiableMap(typeByName);
 	} // constructor
 	/**
+	 * Determines the role type of a Provisioning Role, using the shared cache
+	 * when the role was classified before.
+	 * @return	the role type, or null if the Provisioning Role does not exist
+	 */
+	private static RoleType getRoleType(ProvisioningRole checkRole) throws Exception {
+		String findRole = checkRole.getFriendlyName();
+		CachedType cached = _roleTypeCache.get(findRole);
+		if (cached != null) {
+			if (cached.expires > System.currentTimeMillis()) {
+				return cached.type;
+			}
+			_roleTypeCache.remove(findRole, cached);
+		}
+		// Make sure you have an object to process
+		if (!checkRole.exists()) {
+			logger.debug("Provisioning Role does not exist: " + findRole);
+			return null;
+		}
+		logger.debug("Processing Provisioning Role: " + findRole);
+		// Fix: LJR 01-28-2010 - the call to customfield1 was retrieving null
+		String customField = checkRole.getCustomField(CustomFieldId.CUSTOM01); //Type of Provisioning Role from CustomField01
+		if (customField == null || customField.length() == 0) {
+			logger.debug("Provisioning Role has no Role Type (customfield1) value: " + findRole);
+		} else {
+			logger.debug("Role Type (customfield1): " + customField);
+		}
+		RoleType roleType = RoleType.fromCustomField(customField);
+		if (CACHE_TTL > 0 && CACHE_MAX > 0) {
+			if (_roleTypeCache.size() >= CACHE_MAX) {
+				evictRoleTypes();
+			}
+			_roleTypeCache.put(findRole, new CachedType(roleType, System.currentTimeMillis() + CACHE_TTL));
+		}
+		return roleType;
+	}
+	/**
+	 * Makes room in the cache: removes the expired role types, or all of them if none expired.
+	 */
+	private static void evictRoleTypes() {
+		long now = System.currentTimeMillis();
+		int size = _roleTypeCache.size();
+		for (Iterator<CachedType> it = _roleTypeCache.values().iterator(); it.hasNext(); ) {
+			if (it.next().expires <= now) {
+				it.remove();
+			}
+		}
+		if (_roleTypeCache.size() >= CACHE_MAX) {
+			_roleTypeCache.clear();
+		}
+		logger.debug("Role type cache was full; " + (size - _roleTypeCache.size()) + " role types removed.");
+	}
+	/**
+	 * Removes all cached role types, forcing the next classification to read
+	 * CustomField01 from each Provisioning Role again.
+	 */
+	public static void clearRoleTypeCache() {
+		_roleTypeCache.clear();
+	}
+	/**
+	 * Removes the cached role type of a single Provisioning Role.
+	 * @param roleName	the name of the Provisioning Role
+	 */
+	public static void invalidateRoleType(String roleName) {
+		if (roleName != null) {
+			_roleTypeCache.remove(roleName);
+		}
+	}
+	/**
      * Determines if the list of Provisioning Roles contains Application Roles.
      * @return	true	if the list contains Application Roles 
      * @return	false	otherwise
      */
 	public boolean hasApplicationRoles(){
-		return (_applicationRoles.size() > 0);
+		return hasRoles(RoleType.APPLICATION);
 	}
 	/**
      * Determines if the list of Provisioning Roles contains Base Roles.
@@ -110,7 +222,7 @@ public class ProvisioningRolesType {
      * @return	false	otherwise
      */
 	public boolean hasBaseRoles(){
-		return (_baseRoles.size() > 0);
+		return hasRoles(RoleType.BASE);
 	}
 	/**
      * Determines if the list of Provisioning Roles contains Functional Roles.
@@ -118,7 +230,7 @@ public class ProvisioningRolesType {
      * @return	false	otherwise
      */
 	public boolean hasFunctionalRoles(){
-		return (_functionalRoles.size() > 0);
+		return hasRoles(RoleType.FUNCTIONAL);
 	}
 	/**
      * Determines if the list of Provisioning Roles contains roles of no type.
@@ -126,43 +238,97 @@ public class ProvisioningRolesType {
      * @return	false	otherwise
      */
 	public boolean hasNoTypeRoles(){
-		return (_noTypeRoles.size() > 0);
+		return hasRoles(RoleType.NOTYPE);
+	}
+	/**
+     * Determines if the list of Provisioning Roles contains roles of the given type.
+     * @param type	the role type
+     * @return	true	if the list contains roles of the type
+     * @return	false	otherwise
+     */
+	public boolean hasRoles(RoleType type){
+		return !_rolesByType.get(type).isEmpty();
 	}
 	/**
-     * Method returns a vector list of Provisioning Roles objects that are Application Roles
-     * for this ProvisioningRoleType object. The returned vector is a subset of the full 
-     * vector list of Provisioning Roles assigned to the ProvisioningRoleType object.
-     * @return	Vector of Provisioning Role objects
+     * Determines if a Provisioning Role of the given name was classified.
+     * @param roleName	the name of the Provisioning Role
+     * @return	true	if the role is in the list
+     * @return	false	otherwise
      */
-	public java.util.Vector<ProvisioningRole> getApplicationRoles(){
-		return _applicationRoles;
+	public boolean contains(String roleName){
+		return _typeByName.containsKey(roleName);
 	}
 	/**
-     * Method returns a vector list of Provisioning Roles objects that are Base Roles
-     * for this ProvisioningRoleType object. The returned vector is a subset of the full 
-     * vector list of Provisioning Roles assigned to the ProvisioningRoleType object.
-     * @return	Vector of Provisioning Role objects
+     * Determines if a Provisioning Role of the given name was classified with the given type.
+     * @param roleName	the name of the Provisioning Role
+     * @param type	the role type
+     * @return	true	if the role is in the list with the type
+     * @return	false	otherwise
      */
-	public java.util.Vector<ProvisioningRole> getBaseRoles(){
-		return _baseRoles;
+	public boolean contains(String roleName, RoleType type){
+		return type == _typeByName.get(roleName);
 	}
 	/**
-     * Method returns a vector list of Provisioning Roles objects that are Functional Roles
-     * for this ProvisioningRoleType object. The returned vector is a subset of the full 
-     * vector list of Provisioning Roles assigned to the ProvisioningRoleType object.
-     * @return	Vector of Provisioning Role objects
+     * Returns the role type of a Provisioning Role in the list.
+     * @param roleName	the name of the Provisioning Role
+     * @return	the role type, or null if the role is not in the list
      */
-	public java.util.Vector<ProvisioningRole> getFunctionalRoles(){
-		return _functionalRoles;
+	public RoleType getRoleType(String roleName){
+		return _typeByName.get(roleName);
 	}
 	/**
-     * Method returns a vector list of Provisioning Roles objects that are have no type
-     * for this ProvisioningRoleType object. The returned vector is a subset of the full 
-     * vector list of Provisioning Roles assigned to the ProvisioningRoleType object.
-     * @return	Vector of Provisioning Role objects
+     * Method returns a list of Provisioning Roles objects that are Application Roles
+     * for this ProvisioningRoleType object. The returned list is a read-only subset of
+     * the full list of Provisioning Roles assigned to the ProvisioningRoleType object.
+     * @return	List of Provisioning Role objects
      */
-	public java.util.Vector<ProvisioningRole> getNoTypeRoles(){
-		return _noTypeRoles;
+	public List<ProvisioningRole> getApplicationRoles(){
+		return getRoles(RoleType.APPLICATION);
 	}
-} // Class
+	/**
+     * Method returns a list of Provisioning Roles objects that are Base Roles
+     * for this ProvisioningRoleType object. The returned list is a read-only subset of
+     * the full list of Provisioning Roles assigned to the ProvisioningRoleType object.
+     * @return	List of Provisioning Role objects
+     */
+	public List<ProvisioningRole> getBaseRoles(){
+		return getRoles(RoleType.BASE);
+	}
+	/**
+     * Method returns a list of Provisioning Roles objects that are Functional Roles
+     * for this ProvisioningRoleType object. The returned list is a read-only subset of
+     * the full list of Provisioning Roles assigned to the ProvisioningRoleType object.
+     * @return	List of Provisioning Role objects
+     */
+	public List<ProvisioningRole> getFunctionalRoles(){
+		return getRoles(RoleType.FUNCTIONAL);
+	}
+	/**
+     * Method returns a list of Provisioning Roles objects that are have no type
+     * for this ProvisioningRoleType object. The returned list is a read-only subset of
+     * the full list of Provisioning Roles assigned to the ProvisioningRoleType object.
+     * @return	List of Provisioning Role objects
+     */
+	public List<ProvisioningRole> getNoTypeRoles(){
+		return getRoles(RoleType.NOTYPE);
+	}
+	/**
+     * Method returns a list of Provisioning Roles objects of the given type
+     * for this ProvisioningRoleType object. The returned list is read-only.
+     * @param type	the role type
+     * @return	List of Provisioning Role objects
+     */
+	public List<ProvisioningRole> getRoles(RoleType type){
+		return _rolesByType.get(type);
+	}
+
+	private static class CachedType {
+		final RoleType type;
+		final long expires;
 
+		CachedType(RoleType type, long expires) {
+			this.type = type;
+			this.expires = expires;
+		}
+	}
+} // Class
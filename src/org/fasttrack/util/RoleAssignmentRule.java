@@ -0,0 +1,92 @@
+package org.fasttrack.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.fasttrack.util.ProvisioningRolesType.RoleType;
+/**
+ * The rule that decides which Provisioning Roles are assigned to and revoked from a user
+ * for the list of Functional Roles in <b>eTCustomField52</b>. The AssignProvisioningRole
+ * Event Listener applies it on each event, and the RoleDriftReconciler reports the users
+ * it would change, so the two always agree.
+ * <p>
+ * The rule is:
+ * <ul>
+ * <li>The Base Role and each listed role that exists are assigned if the user is not a member,
+ * in the order of the list. Duplicates are assigned once.
+ * <li>When at least one listed role of type Functional (CustomField01) is newly assigned, the
+ * assigned roles of type Functional that are not listed are revoked. A user whose list did
+ * not bring a new Functional Role keeps the roles it has; for example, when a role was
+ * assigned within CA Identity Manager, or when the list names no role that exists.
+ * <li>Base, Application and untyped roles are never revoked, and nothing is revoked for a
+ * new user.
+ * </ul>
+ * The roles are given as keys of any type with a consistent equals(); for example, the unique
+ * names of the roles.
+ *
+ * @author      Lester Rivera
+ * @version     %I%, %G%
+ * @since       CA Identity Manager 12.0 CR7
+ * @see org.fasttrack.evt.AssignProvisioningRole
+ * @see org.fasttrack.util.RoleDriftReconciler
+ */
+public class RoleAssignmentRule {
+	private RoleAssignmentRule() {
+	}
+	/**
+	 * Decides the roles to assign and to revoke.
+	 *
+	 * @param baseRole	the Base Role, or null if none is configured or it does not exist
+	 * @param listed	the roles listed in eTCustomField52 that exist, in order
+	 * @param assigned	the roles assigned to the user
+	 * @param types		the role type of the listed and assigned roles; a missing role is untyped
+	 * @param create	true for a new user
+	 * @return the roles to assign and to revoke
+	 */
+	public static <R> Decision<R> decide(R baseRole, List<R> listed, Collection<R> assigned, Map<R, RoleType> types, boolean create) {
+		Set<R> assign = new LinkedHashSet<R>();
+		if (baseRole != null && !assigned.contains(baseRole)) {
+			assign.add(baseRole);
+		}
+		boolean newFunctional = false;
+		for (R role : listed) {
+			if (!assigned.contains(role)) {
+				assign.add(role);
+				newFunctional |= types.get(role) == RoleType.FUNCTIONAL;
+			}
+		}
+		List<R> revoke = new ArrayList<R>();
+		if (newFunctional && !create) {
+			for (R role : assigned) {
+				if (types.get(role) == RoleType.FUNCTIONAL && !listed.contains(role) && !role.equals(baseRole)) {
+					revoke.add(role);
+				}
+			}
+		}
+		return new Decision<R>(new ArrayList<R>(assign), revoke);
+	}
+
+	/**
+	 * The roles to assign to and revoke from a user.
+	 */
+	public static class Decision<R> {
+		private final List<R> assign;
+		private final List<R> revoke;
+
+		Decision(List<R> assign, List<R> revoke) {
+			this.assign = Collections.unmodifiableList(assign);
+			this.revoke = Collections.unmodifiableList(revoke);
+		}
+		/** @return the roles to assign, the Base Role first */
+		public List<R> getAssign() { return assign; }
+		/** @return the roles to revoke */
+		public List<R> getRevoke() { return revoke; }
+		/** @return true if nothing is to change */
+		public boolean isEmpty() { return assign.isEmpty() && revoke.isEmpty(); }
+	}
+}
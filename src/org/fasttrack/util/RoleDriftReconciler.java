@@ -0,0 +1,397 @@
+package org.fasttrack.util;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import javax.naming.InvalidNameException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.LdapName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.fasttrack.util.ProvisioningRolesType.RoleType;
+import org.fasttrack.util.RoleAssignmentRule.Decision;
+/**
+ * A batch job that finds the users whose Provisioning Roles drifted from their Functional
+ * Roles (eTCustomField52); for example, after a feed updated the attribute without raising
+ * the user events the AssignProvisioningRole Event Listener reacts to.
+ * <p>
+ * A user drifted when the Event Listener would assign or revoke roles on a ModifyUserEvent
+ * for the user. Both apply the same {@link RoleAssignmentRule}, so a user with Functional
+ * Roles that are not listed, but no new role to assign, is not reported: the listener would
+ * keep those roles as well.
+ * <p>
+ * The Provisioning Roles are read once. The users are then read one page at a time, and
+ * each page is classified in parallel on a fork-join pool, so memory is bounded by the
+ * page size. A report line is written for each role to add or remove.
+ * <h3>Correcting the drift</h3>
+ * The reconciler never changes the roles itself. A role assigned or revoked on the directory
+ * would skip the approvals, the workflow and the audit of CA Identity Manager, and the other
+ * listeners of the role events. Instead, a feed file can be written with one line for each
+ * drifted user: the user ID and the current value of eTCustomField52, under a header row of
+ * %USER_ID% and the attribute name. Load it with the Bulk Loader of CA Identity Manager, with
+ * a Modify User task the Event Listener is associated with; each user then gets a
+ * ModifyUserEvent, and the listener assigns and revokes the roles through the Assign and
+ * Revoke ProvisioningRoleEvents, at the pace of the Bulk Loader. Leave the COALESCE_WINDOW
+ * of the listener off, or run the load after the window, so the events are not skipped.
+ * <h3>Settings</h3>
+ * <ul>
+ * <li><b>ENVIRONMENT</b> - The LDAP environment of the Provisioning Server or Directory,
+ * configured in the ldap-target.properties file.
+ * <li><b>USER_FILTER</b> - Optional. Default is (objectClass=eTGlobalUser).
+ * <li><b>USER_NAME_ATTRIBUTE</b> - Optional. Default is eTGlobalUserName.
+ * <li><b>FUNCTIONAL_ROLE_ATTRIBUTE</b> - Optional. Default is eTCustomField52.
+ * <li><b>ROLE_MEMBER_ATTRIBUTE</b> - Optional. User attribute with the DN of each assigned role. Default is eTRoleDN.
+ * <li><b>ROLE_FILTER</b> - Optional. Default is (objectClass=eTRole).
+ * <li><b>ROLE_NAME_ATTRIBUTE</b> - Optional. Default is eTRoleName.
+ * <li><b>ROLE_TYPE_ATTRIBUTE</b> - Optional. Role attribute holding the CustomField01 type. Default is eTCustomField01.
+ * <li><b>BASE_ROLE</b> - Optional. Name of the Provisioning Role assigned to all users.
+ * <li><b>THREADS</b> - Optional. Parallelism of the classification. Default is the number of processors.
+ * <li><b>PAGE_SIZE</b> - Optional. Users read per page. Default is 500.
+ * </ul>
+ *
+ * @author      Lester Rivera
+ * @version     %I%, %G%
+ * @since       CA Identity Manager 12.0 CR7
+ * @see org.fasttrack.evt.AssignProvisioningRole
+ */
+public class RoleDriftReconciler {
+	private static final Log logger = LogFactory.getLog(RoleDriftReconciler.class);
+
+	private static final int THRESHOLD = 64;
+
+	private final String env;
+	private final String userFilter;
+	private final String userNameAttr;
+	private final String functionalAttr;
+	private final String memberAttr;
+	private final String roleFilter;
+	private final String roleNameAttr;
+	private final String roleTypeAttr;
+	private final String baseRole;
+	private final int pageSize;
+	private final ForkJoinPool pool;
+
+	// The Provisioning Role catalog, read once per run
+	private Map<String, RoleEntry> rolesByName;
+	private Map<LdapName, RoleEntry> rolesByDN;
+	/**
+	 * Creates a reconciler from its settings.
+	 *
+	 * @param settings	the settings listed in the class description
+	 */
+	public RoleDriftReconciler(Properties settings) {
+		env = settings.getProperty("ENVIRONMENT");
+		if (env == null || env.trim().isEmpty()) {
+			throw new IllegalArgumentException("The ENVIRONMENT setting is required.");
+		}
+		userFilter = settings.getProperty("USER_FILTER", "(objectClass=eTGlobalUser)");
+		userNameAttr = settings.getProperty("USER_NAME_ATTRIBUTE", "eTGlobalUserName");
+		functionalAttr = settings.getProperty("FUNCTIONAL_ROLE_ATTRIBUTE", "eTCustomField52");
+		memberAttr = settings.getProperty("ROLE_MEMBER_ATTRIBUTE", "eTRoleDN");
+		roleFilter = settings.getProperty("ROLE_FILTER", "(objectClass=eTRole)");
+		roleNameAttr = settings.getProperty("ROLE_NAME_ATTRIBUTE", "eTRoleName");
+		roleTypeAttr = settings.getProperty("ROLE_TYPE_ATTRIBUTE", "eTCustomField01");
+		baseRole = settings.getProperty("BASE_ROLE", "").trim();
+		pageSize = Integer.parseInt(settings.getProperty("PAGE_SIZE", "500").trim());
+		pool = new ForkJoinPool(Integer.parseInt(settings.getProperty("THREADS",
+				String.valueOf(Runtime.getRuntime().availableProcessors())).trim()));
+	}
+	/**
+	 * Finds the drift of all the users, and writes the report and the feed.
+	 *
+	 * @param report	where to write a line for each role to add or remove
+	 * @param feed		where to write the Bulk Loader feed of the drifted users; may be null
+	 * @return the totals of the run
+	 * @throws NamingException if the directory cannot be read
+	 */
+	public Summary run(final PrintWriter report, final PrintWriter feed) throws NamingException {
+		final long start = System.currentTimeMillis();
+		loadRoles();
+
+		// The users read and the users drifted
+		final int[] users = new int[2];
+		if (feed != null) {
+			feed.println("%USER_ID%," + functionalAttr);
+		}
+		new LDAPUtils().QueryPages(env, userFilter, new String[]{userNameAttr, functionalAttr, memberAttr}, pageSize,
+				new LDAPUtils.PageHandler() {
+			public void page(List<SearchResult> entries) {
+				Drift[] results = new Drift[entries.size()];
+				pool.invoke(new ClassifyTask(entries, results, 0, entries.size()));
+				for (Drift drift : results) {
+					if (drift != null) {
+						users[1]++;
+						for (RoleEntry role : drift.add) {
+							report.println(drift.userName + "\tADD\t" + role.name + "\t" + drift.dn);
+						}
+						for (RoleEntry role : drift.remove) {
+							report.println(drift.userName + "\tREMOVE\t" + role.name + "\t" + drift.dn);
+						}
+						if (feed != null) {
+							feed.println(csv(drift.userName) + "," + csv(drift.functionalRoles));
+						}
+					}
+				}
+				users[0] += entries.size();
+				logger.debug("Reconciled " + users[0] + " users; " + users[1] + " drifted so far.");
+			}
+		});
+		report.flush();
+		if (feed != null) {
+			feed.flush();
+		}
+
+		Summary summary = new Summary(users[0], users[1], System.currentTimeMillis() - start);
+		logger.info(summary);
+		return summary;
+	}
+	/**
+	 * Stops the threads of the reconciler.
+	 */
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	private void loadRoles() throws NamingException {
+		final Map<String, RoleEntry> byName = new HashMap<String, RoleEntry>();
+		final Map<LdapName, RoleEntry> byDN = new HashMap<LdapName, RoleEntry>();
+		new LDAPUtils().QueryPages(env, roleFilter, new String[]{roleNameAttr, roleTypeAttr}, pageSize,
+				new LDAPUtils.PageHandler() {
+			public void page(List<SearchResult> entries) throws NamingException {
+				for (SearchResult entry : entries) {
+					String name = value(entry.getAttributes(), roleNameAttr);
+					if (name == null) {
+						continue;
+					}
+					RoleEntry role = new RoleEntry(name, entry.getNameInNamespace(),
+							RoleType.fromCustomField(value(entry.getAttributes(), roleTypeAttr)));
+					byName.put(name.toLowerCase(Locale.ENGLISH), role);
+					byDN.put(new LdapName(role.dn), role);
+				}
+			}
+		});
+		rolesByName = byName;
+		rolesByDN = byDN;
+		logger.info("Loaded " + byName.size() + " Provisioning Roles from " + env);
+	}
+
+	// The drift of one user, or null if the roles are as expected
+	private Drift classify(SearchResult entry) throws NamingException {
+		Attributes attrs = entry.getAttributes();
+		Set<RoleEntry> assigned = new LinkedHashSet<RoleEntry>();
+		Attribute members = attrs.get(memberAttr);
+		if (members != null) {
+			NamingEnumeration<?> values = members.getAll();
+			while (values.hasMore()) {
+				try {
+					RoleEntry role = rolesByDN.get(new LdapName(values.next().toString()));
+					if (role != null) {
+						assigned.add(role);
+					}
+				} catch (InvalidNameException ex) {
+					logger.debug("Ignoring invalid role DN for " + entry.getNameInNamespace());
+				}
+			}
+		}
+
+		RoleEntry base = baseRole.isEmpty() ? null : rolesByName.get(baseRole.toLowerCase(Locale.ENGLISH));
+		String functionalRoles = value(attrs, functionalAttr);
+		List<RoleEntry> listed = new ArrayList<RoleEntry>();
+		for (String name : ProvisioningRoleResolver.parseRoleNames(functionalRoles)) {
+			RoleEntry role = rolesByName.get(name.toLowerCase(Locale.ENGLISH));
+			if (role != null) {
+				listed.add(role);
+			}
+		}
+		Map<RoleEntry, RoleType> types = new HashMap<RoleEntry, RoleType>();
+		for (RoleEntry role : assigned) {
+			types.put(role, role.type);
+		}
+		for (RoleEntry role : listed) {
+			types.put(role, role.type);
+		}
+
+		Decision<RoleEntry> decision = RoleAssignmentRule.decide(base, listed, assigned, types, false);
+		if (decision.isEmpty()) {
+			return null;
+		}
+		String userName = value(attrs, userNameAttr);
+		return new Drift(userName == null ? entry.getNameInNamespace() : userName, entry.getNameInNamespace(),
+				functionalRoles, decision.getAssign(), decision.getRevoke());
+	}
+
+	// A CSV field of the feed, quoted when needed
+	private static String csv(String value) {
+		if (value == null) {
+			return "";
+		}
+		if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+			return value;
+		}
+		return '"' + value.replace("\"", "\"\"") + '"';
+	}
+
+	private static String value(Attributes attrs, String name) throws NamingException {
+		Attribute attr = attrs.get(name);
+		return attr == null || attr.get() == null ? null : attr.get().toString();
+	}
+
+	// Classifies a range of a page, splitting it until it is small enough
+	private class ClassifyTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final List<SearchResult> entries;
+		private final Drift[] results;
+		private final int from;
+		private final int to;
+
+		ClassifyTask(List<SearchResult> entries, Drift[] results, int from, int to) {
+			this.entries = entries;
+			this.results = results;
+			this.from = from;
+			this.to = to;
+		}
+
+		protected void compute() {
+			if (to - from <= THRESHOLD) {
+				for (int i = from; i < to; i++) {
+					try {
+						results[i] = classify(entries.get(i));
+					} catch (NamingException ex) {
+						logger.warn("Unable to reconcile " + entries.get(i).getNameInNamespace() + ": " + ex.getMessage());
+					}
+				}
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new ClassifyTask(entries, results, from, middle), new ClassifyTask(entries, results, middle, to));
+		}
+	}
+
+	private static class RoleEntry {
+		final String name;
+		final String dn;
+		final RoleType type;
+
+		RoleEntry(String name, String dn, RoleType type) {
+			this.name = name;
+			this.dn = dn;
+			this.type = type;
+		}
+	}
+
+	/**
+	 * The roles of a user that differ from eTCustomField52.
+	 */
+	public static class Drift {
+		private final String userName;
+		private final String dn;
+		private final String functionalRoles;
+		private final List<RoleEntry> add;
+		private final List<RoleEntry> remove;
+
+		Drift(String userName, String dn, String functionalRoles, List<RoleEntry> add, List<RoleEntry> remove) {
+			this.userName = userName;
+			this.dn = dn;
+			this.functionalRoles = functionalRoles;
+			this.add = add;
+			this.remove = remove;
+		}
+		/** @return the name of the user */
+		public String getUserName() { return userName; }
+		/** @return the DN of the user */
+		public String getDN() { return dn; }
+		/** @return the value of eTCustomField52; may be null */
+		public String getFunctionalRoles() { return functionalRoles; }
+		/** @return the names of the Provisioning Roles to assign */
+		public List<String> getRolesToAdd() { return names(add); }
+		/** @return the names of the Provisioning Roles to remove */
+		public List<String> getRolesToRemove() { return names(remove); }
+
+		private static List<String> names(List<RoleEntry> roles) {
+			List<String> names = new ArrayList<String>(roles.size());
+			for (RoleEntry role : roles) {
+				names.add(role.name);
+			}
+			return Collections.unmodifiableList(names);
+		}
+	}
+
+	/**
+	 * The totals of a run.
+	 */
+	public static class Summary {
+		private final int users;
+		private final int drifted;
+		private final long elapsed;
+
+		Summary(int users, int drifted, long elapsed) {
+			this.users = users;
+			this.drifted = drifted;
+			this.elapsed = elapsed;
+		}
+		/** @return the number of users read */
+		public int getUsers() { return users; }
+		/** @return the number of users with drift */
+		public int getDrifted() { return drifted; }
+		/** @return the duration of the run in milliseconds */
+		public long getElapsedMillis() { return elapsed; }
+
+		public String toString() {
+			return "Reconciled " + users + " users in " + elapsed + " ms; " + drifted + " drifted.";
+		}
+	}
+
+	/**
+	 * Runs the reconciliation from the command line.
+	 * Arguments: settings file, report file, and optionally the feed file.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("Usage: RoleDriftReconciler <settings file> <report file> [feed file]");
+			System.exit(1);
+		}
+		Properties settings = new Properties();
+		InputStream in = new FileInputStream(args[0]);
+		try {
+			settings.load(in);
+		} finally {
+			in.close();
+		}
+		RoleDriftReconciler reconciler = new RoleDriftReconciler(settings);
+		Writer out = new OutputStreamWriter(new FileOutputStream(args[1]), "UTF-8");
+		PrintWriter report = new PrintWriter(out);
+		PrintWriter feed = null;
+		try {
+			if (args.length > 2) {
+				feed = new PrintWriter(new OutputStreamWriter(new FileOutputStream(args[2]), "UTF-8"));
+			}
+			System.out.println(reconciler.run(report, feed));
+		} finally {
+			report.close();
+			if (feed != null) {
+				feed.close();
+			}
+			reconciler.shutdown();
+		}
+	}
+}
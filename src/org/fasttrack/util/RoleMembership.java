@@ -0,0 +1,109 @@
+package org.fasttrack.util;
+
+import com.netegrity.llsdk6.imsapi.managedobject.ProvisioningRole;
+import com.netegrity.llsdk6.imsapi.managedobject.Role;
+import com.netegrity.llsdk6.imsapi.managedobject.User;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+/**
+ * RoleMembership is a snapshot of the Provisioning Roles assigned to a user.
+ * <p>
+ * Each call to isRoleMember() or getProvisioningRolesMember() on a User object
+ * can go to the CA Identity Manager object store. The snapshot fetches the
+ * membership of the user once, and answers all membership questions during
+ * the same event or task from a set of role names.
+ * <p>
+ * Roles are matched by their unique name. The snapshot is not updated when
+ * roles are assigned or revoked afterwards; fetch a new snapshot for that.
+ *
+ * @author      Lester Rivera
+ * @version     %I%, %G%
+ * @since       CA Identity Manager 12.0 CR7
+ * @see org.fasttrack.evt.AssignProvisioningRole
+ * @see org.fasttrack.blth.AssignProvisioningRole
+ */
+public class RoleMembership {
+	private static final Log logger = LogFactory.getLog(RoleMembership.class);
+
+	/**
+	 * An empty membership; for example, for users in a CreateUserEvent, where
+	 * isRoleMember() and getProvisioningRolesMember() fail.
+	 */
+	public static final RoleMembership EMPTY = new RoleMembership(Collections.<ProvisioningRole>emptyList());
+
+	private final List<ProvisioningRole> _roles;
+	private final Set<String> _roleNames;
+    /**
+     * Builds the membership from a list of Provisioning Roles.
+     *
+     * @param roles	the Provisioning Roles assigned to the user
+     */
+	public RoleMembership(Collection<ProvisioningRole> roles) {
+		List<ProvisioningRole> list = new ArrayList<ProvisioningRole>();
+		Set<String> names = new HashSet<String>();
+		if (roles != null) {
+			for (ProvisioningRole role : roles) {
+				try {
+					names.add(role.getUniqueName());
+					list.add(role);
+				} catch (Exception ex) {
+					logger.debug("Error reading assigned Provisioning Role: " + ex.getMessage());
+				}
+			}
+		}
+		_roles = Collections.unmodifiableList(list);
+		_roleNames = Collections.unmodifiableSet(names);
+	}
+	/**
+	 * Fetches the Provisioning Roles assigned to the user with a single call
+	 * to the object store.
+	 *
+	 * @param user	the user
+	 * @return the membership snapshot of the user
+	 */
+	public static RoleMembership fetch(User user) throws Exception {
+		RoleMembership membership = new RoleMembership(user.getProvisioningRolesMember());
+		logger.debug("Fetched " + membership.size() + " Provisioning Roles assigned to user " + user.getFriendlyName());
+		return membership;
+	}
+	/**
+	 * Determines if the user is a member of the role.
+	 * @param role	the role
+	 * @return	true	if the user is a member
+	 * @return	false	otherwise
+	 */
+	public boolean isMember(Role role) throws Exception {
+		return _roleNames.contains(role.getUniqueName());
+	}
+	/**
+	 * Determines if the user is a member of the role.
+	 * @param roleUniqueName	the unique name of the role
+	 * @return	true	if the user is a member
+	 * @return	false	otherwise
+	 */
+	public boolean isMember(String roleUniqueName) {
+		return _roleNames.contains(roleUniqueName);
+	}
+	/**
+	 * Returns the Provisioning Roles assigned to the user. The list is read-only.
+	 * @return	List of Provisioning Role objects
+	 */
+	public List<ProvisioningRole> getRoles() {
+		return _roles;
+	}
+	/**
+	 * Returns the number of Provisioning Roles assigned to the user.
+	 * @return	the number of roles
+	 */
+	public int size() {
+		return _roles.size();
+	}
+}
@@ -0,0 +1,364 @@
+package org.fasttrack.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+/**
+ * A lightweight tracing facility to find where the time of a task submission is spent.
+ * <p>
+ * Each Business Logic Task Handler (BLTH) and Event Listener starts a trace span for its
+ * work, and the calls it makes to LDAP directories, the SMTP server and the Provisioning
+ * Role provider are recorded as child spans. The spans of a BLTH carry a trace ID derived
+ * from the task session ID, so all the handlers of the same submission share the same
+ * trace ID and can be correlated.
+ * <p>
+ * Spans are written, one JSON object per line, to a local file in the span format of the
+ * OpenTelemetry protocol (OTLP/JSON); traceId, spanId, parentSpanId, name, startTimeUnixNano,
+ * endTimeUnixNano, attributes and status. A background thread writes the file, and rolls
+ * it over when it reaches the maximum size. If the writer falls behind, spans are dropped
+ * rather than slowing down the task, and the number dropped is logged once a minute at most.
+ * When the file cannot be written, the writer drops the span, waits a few seconds and opens
+ * the file again.
+ * <p>
+ * Tracing is disabled unless a file is configured. Only a sample of the traces is recorded;
+ * the sampling decision is taken from the trace ID, so all the spans of a submission are
+ * either recorded or not. Spans that are not recorded cost almost nothing.
+ * <h3>System Properties</h3>
+ * <ul>
+ * <li><b>fasttrack.trace.file</b> - File to write the spans to. Tracing is disabled if not set.
+ * <li><b>fasttrack.trace.sampleRate</b> - Fraction of the traces to record, from 0.0 to 1.0. Default is 0.01.
+ * <li><b>fasttrack.trace.maxFileSize</b> - Size in bytes at which the file is rolled over. Default is 10485760.
+ * <li><b>fasttrack.trace.maxFiles</b> - Number of rolled over files to keep. Default is 5.
+ * </ul>
+ * A malformed value is logged and replaced by its default, so tracing never stops the
+ * handlers that use it.
+ *
+ * @author      Lester Rivera
+ * @version     %I%, %G%
+ * @since       CA Identity Manager 12.0 CR7
+ */
+public class Tracer {
+	private static final Log logger = LogFactory.getLog(Tracer.class);
+
+	private static final Span NOOP = new Span(null, null, null, null);
+	private static final ThreadLocal<Span> current = new ThreadLocal<Span>();
+	private static final SecureRandom random = new SecureRandom();
+
+	private static final double sampleRate;
+	private static final SpanWriter writer;
+
+	static {
+		String file = System.getProperty("fasttrack.trace.file");
+		sampleRate = number("fasttrack.trace.sampleRate", 0.01);
+		if (file != null && !file.trim().isEmpty() && sampleRate > 0) {
+			writer = new SpanWriter(new File(file.trim()),
+					(long) number("fasttrack.trace.maxFileSize", 10485760),
+					(int) number("fasttrack.trace.maxFiles", 5));
+			logger.info("Tracing enabled to " + file + " with sample rate " + sampleRate);
+		} else {
+			writer = null;
+		}
+	}
+
+	private Tracer() {
+	}
+	// A numeric system property; the default if it is not set or malformed
+	private static double number(String name, double defaultValue) {
+		String value = System.getProperty(name);
+		if (value == null || value.trim().isEmpty()) {
+			return defaultValue;
+		}
+		try {
+			return Double.parseDouble(value.trim());
+		} catch (NumberFormatException ex) {
+			logger.warn("Invalid " + name + " value: " + value + "; using " + defaultValue);
+			return defaultValue;
+		}
+	}
+	/**
+	 * Starts a span at the root of a trace, and makes it the current span of the thread.
+	 *
+	 * @param name			the name of the span; for example, the class of the handler
+	 * @param correlationId	the ID that ties the spans of a submission together, such as the
+	 * task session ID; if null, a new trace is started
+	 * @return the span; call {@link Span#end()} when done
+	 */
+	public static Span startTrace(String name, String correlationId) {
+		if (writer == null) {
+			return NOOP;
+		}
+		String traceId = correlationId == null
+				? hex(random.nextLong()) + hex(random.nextLong())
+				: UUID.nameUUIDFromBytes(correlationId.getBytes()).toString().replace("-", "");
+		// Sample on the trace ID so every span of the trace takes the same decision
+		long bucket = Long.parseLong(traceId.substring(traceId.length() - 12), 16);
+		if (bucket >= sampleRate * 0x1000000000000L) {
+			return NOOP;
+		}
+		Span span = new Span(name, traceId, null, current.get());
+		if (correlationId != null) {
+			span.setAttribute("fasttrack.correlation_id", correlationId);
+		}
+		current.set(span);
+		return span;
+	}
+	/**
+	 * Starts a child span of the current span of the thread, and makes it the current span.
+	 * Does nothing if the thread has no current span.
+	 *
+	 * @param name	the name of the span; for example, the LDAP operation
+	 * @return the span; call {@link Span#end()} when done
+	 */
+	public static Span startSpan(String name) {
+		return startSpan(name, current.get());
+	}
+	/**
+	 * Starts a child span of the given span, and makes it the current span of the thread.
+	 * Use it to continue a trace on another thread.
+	 *
+	 * @param name		the name of the span
+	 * @param parent	the parent span, from {@link #current()} on the original thread; may be null
+	 * @return the span; call {@link Span#end()} when done
+	 */
+	public static Span startSpan(String name, Span parent) {
+		if (parent == null || parent == NOOP) {
+			return NOOP;
+		}
+		Span span = new Span(name, parent.traceId, parent.spanId, current.get());
+		current.set(span);
+		return span;
+	}
+	/**
+	 * @return the current span of the thread, or null
+	 */
+	public static Span current() {
+		return current.get();
+	}
+
+	private static String hex(long value) {
+		String s = Long.toHexString(value);
+		return "0000000000000000".substring(s.length()) + s;
+	}
+
+	private static String quote(String value) {
+		StringBuilder sb = new StringBuilder(value.length() + 2).append('"');
+		for (char c : value.toCharArray()) {
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+	/**
+	 * A timed operation within a trace.
+	 */
+	public static class Span {
+		private final String name;
+		private final String traceId;
+		private final String spanId;
+		private final String parentSpanId;
+		private final Span previous;
+		private final long startNanos;
+		private final long startTime;
+		private final List<String[]> attributes = new ArrayList<String[]>(4);
+		private String error = null;
+
+		Span(String name, String traceId, String parentSpanId, Span previous) {
+			this.name = name;
+			this.traceId = traceId;
+			this.spanId = traceId == null ? null : hex(random.nextLong());
+			this.parentSpanId = parentSpanId;
+			this.previous = previous;
+			this.startNanos = System.nanoTime();
+			this.startTime = System.currentTimeMillis();
+		}
+		/**
+		 * Adds an attribute to the span, such as the LDAP environment or the user name.
+		 */
+		public Span setAttribute(String key, Object value) {
+			if (this != NOOP) {
+				attributes.add(new String[]{key, String.valueOf(value)});
+			}
+			return this;
+		}
+		/**
+		 * Marks the span as failed.
+		 */
+		public Span setError(Throwable ex) {
+			if (this != NOOP) {
+				error = ex.getClass().getName() + ": " + ex.getMessage();
+			}
+			return this;
+		}
+		/**
+		 * Ends the span, records it, and restores the previous current span of the thread.
+		 */
+		public void end() {
+			if (this == NOOP) {
+				return;
+			}
+			long duration = System.nanoTime() - startNanos;
+			// Restore the previous span even if a child span was not ended
+			current.set(previous);
+			long start = startTime * 1000000L;
+			StringBuilder json = new StringBuilder(256);
+			json.append("{\"traceId\":\"").append(traceId)
+				.append("\",\"spanId\":\"").append(spanId).append('"');
+			if (parentSpanId != null) {
+				json.append(",\"parentSpanId\":\"").append(parentSpanId).append('"');
+			}
+			json.append(",\"name\":").append(quote(name))
+				.append(",\"kind\":1")
+				.append(",\"startTimeUnixNano\":\"").append(start)
+				.append("\",\"endTimeUnixNano\":\"").append(start + duration)
+				.append("\",\"attributes\":[");
+			for (int i = 0; i < attributes.size(); i++) {
+				String[] attribute = attributes.get(i);
+				if (i > 0) {
+					json.append(',');
+				}
+				json.append("{\"key\":").append(quote(attribute[0]))
+					.append(",\"value\":{\"stringValue\":").append(quote(attribute[1])).append("}}");
+			}
+			json.append("],\"status\":");
+			if (error == null) {
+				json.append("{\"code\":1}");
+			} else {
+				json.append("{\"code\":2,\"message\":").append(quote(error)).append('}');
+			}
+			json.append('}');
+			writer.write(json.toString());
+		}
+	}
+
+	// Writes the spans to a rolling file on a background thread
+	private static class SpanWriter implements Runnable {
+		// Milliseconds between two reports of dropped spans, and before writing again after an error
+		private static final long REPORT_INTERVAL = 60000;
+		private static final long RETRY_DELAY = 5000;
+
+		private final BlockingQueue<String> queue = new ArrayBlockingQueue<String>(10000);
+		private final File file;
+		private final long maxFileSize;
+		private final int maxFiles;
+		private final AtomicLong dropped = new AtomicLong();
+		private final AtomicLong lastReport = new AtomicLong();
+
+		SpanWriter(File file, long maxFileSize, int maxFiles) {
+			this.file = file;
+			this.maxFileSize = maxFileSize;
+			this.maxFiles = maxFiles;
+			Thread thread = new Thread(this, "Tracer-writer");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		void write(String span) {
+			if (!queue.offer(span)) {
+				drop();
+			}
+		}
+
+		// Counts a dropped span, and reports the drops at most once per interval. The report is
+		// made by the thread that drops the span, so drops are reported even if the writer is stuck.
+		private void drop() {
+			dropped.incrementAndGet();
+			long now = System.currentTimeMillis();
+			long last = lastReport.get();
+			if (now - last >= REPORT_INTERVAL && lastReport.compareAndSet(last, now)) {
+				logger.warn("Tracer dropped " + dropped.getAndSet(0) + " spans.");
+			}
+		}
+
+		public void run() {
+			Writer out = null;
+			long size = 0;
+			boolean failing = false;
+			try {
+				while (true) {
+					String span = queue.poll(1, TimeUnit.SECONDS);
+					try {
+						if (span == null) {
+							if (out != null) {
+								out.flush();
+							}
+							continue;
+						}
+						if (out == null || size >= maxFileSize) {
+							if (out != null) {
+								close(out);
+								out = null;
+								roll();
+							}
+							out = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+							size = file.length();
+						}
+						out.write(span);
+						out.write('\n');
+						size += span.length() + 1;
+						if (failing) {
+							logger.info("Writing trace spans to " + file.getPath() + " again.");
+							failing = false;
+						}
+					} catch (IOException ex) {
+						// Such as a full disk or a file removed by hand; open the file again after a while
+						if (span != null) {
+							drop();
+						}
+						if (!failing) {
+							logger.error("Unable to write trace spans to " + file.getPath() + "; retrying in "
+									+ RETRY_DELAY + " ms: " + ex.getMessage());
+							failing = true;
+						}
+						close(out);
+						out = null;
+						Thread.sleep(RETRY_DELAY);
+					}
+				}
+			} catch (InterruptedException ex) {
+				logger.debug("Tracer writer stopped.");
+			} finally {
+				close(out);
+			}
+		}
+
+		private static void close(Writer out) {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException ex) {
+					logger.debug("Error closing trace file: " + ex.getMessage());
+				}
+			}
+		}
+
+		private void roll() {
+			new File(file.getPath() + "." + maxFiles).delete();
+			for (int i = maxFiles - 1; i >= 1; i--) {
+				File older = new File(file.getPath() + "." + i);
+				if (older.exists()) {
+					older.renameTo(new File(file.getPath() + "." + (i + 1)));
+				}
+			}
+			file.renameTo(new File(file.getPath() + ".1"));
+		}
+	}
+}
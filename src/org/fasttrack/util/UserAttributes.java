@@ -0,0 +1,279 @@
+package org.fasttrack.util;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.netegrity.imapi.BLTHContext;
+import com.netegrity.llsdk6.imsapi.managedobject.User;
+/**
+ * A snapshot of the attributes of the user of a task submission, shared by the
+ * Business Logic Task Handlers (BLTH) that run for the same submission.
+ * <p>
+ * Each attribute is read from the user object once, the first time a BLTH asks for it;
+ * the BLTHs that run next get the value from the snapshot. Values set by a BLTH are
+ * buffered in the snapshot, so the next BLTHs see them, and are written to the user
+ * object by {@link #flush()}; an attribute set several times is written once, and a value
+ * equal to the current one is not written at all.
+ * <p>
+ * The normalized names used to generate IDs (upper case, without special characters,
+ * prefixes and suffixes) are computed once and shared as well.
+ * <p>
+ * Snapshots are kept by task session ID and user object, for one submission of the form:
+ * the BLTHs of a submission run one after the other on the thread of the request, so a
+ * snapshot is only reused on the thread that created it, and a form submitted again on
+ * another thread starts a new snapshot without reading anything. The snapshot is dropped by
+ * {@link #release(BLTHContext)} when the submission ends: by the handleSubmission trigger
+ * once every BLTH accepted the form, or by the BLTH that rejects it, so a form submitted again
+ * after the error is read again. A BLTH of another package that rejects the form should call
+ * it too. The BLTHs that share a snapshot must write the user through it, or their values
+ * are not seen by the next BLTHs. Passwords must not be read through the snapshot.
+ * <p>
+ * A BLTH that runs other BLTHs concurrently gives each of them a {@link #fork()} of the
+ * snapshot, attached to the thread that runs it. A fork reads through the snapshot but
+ * keeps its values to itself, even when flushed, until they are merged in the snapshot with
+ * {@link #getChanges()} and {@link #set(String, String)}.
+ * <h3>System Properties</h3>
+ * <ul>
+ * <li><b>fasttrack.snapshot.ttl</b> - Milliseconds after its last use a snapshot is dropped to
+ * free memory, when its submission was abandoned. Default is 10000.
+ * </ul>
+ *
+ * @author      Lester Rivera
+ * @version     %I%, %G%
+ * @since       CA Identity Manager 12.0 CR7
+ */
+public class UserAttributes {
+	private static final Log logger = LogFactory.getLog(UserAttributes.class);
+
+	private static final long TTL = Long.getLong("fasttrack.snapshot.ttl", 10000L);
+	private static final int SWEEP_INTERVAL = 64;
+	private static final ConcurrentHashMap<String, UserAttributes> snapshots = new ConcurrentHashMap<String, UserAttributes>();
+	private static final AtomicInteger requests = new AtomicInteger();
+	private static final ThreadLocal<UserAttributes> attached = new ThreadLocal<UserAttributes>();
+
+	private final User user;
+	private final UserAttributes parent;
+	private final Thread owner = Thread.currentThread();
+	private final Map<String, String> values = new HashMap<String, String>();
+	private final Map<String, String> pending = new LinkedHashMap<String, String>();
+	private volatile long lastUsed = System.currentTimeMillis();
+	private String firstName = null;
+	private String lastName = null;
+	/**
+	 * Creates a snapshot of a user that is not shared with other BLTHs.
+	 *
+	 * @param user	the user object
+	 */
+	public UserAttributes(User user) {
+		this(user, null);
+	}
+
+	private UserAttributes(User user, UserAttributes parent) {
+		this.user = user;
+		this.parent = parent;
+	}
+	/**
+	 * The snapshot of the user of the task submission, shared by the BLTHs of the submission;
+	 * or the fork attached to the thread, if any.
+	 *
+	 * @param blthContext	the context of the BLTH
+	 * @return the snapshot, or null if the context has no user
+	 */
+	public static UserAttributes forRequest(BLTHContext blthContext) throws Exception {
+		User user = blthContext.getUser();
+		if (user == null) {
+			return null;
+		}
+		UserAttributes fork = attached.get();
+		if (fork != null && fork.user == user) {
+			return fork;
+		}
+		if (requests.incrementAndGet() % SWEEP_INTERVAL == 0) {
+			sweep();
+		}
+		String key = blthContext.getSessionId();
+		UserAttributes snapshot = snapshots.get(key);
+		// Another thread is another request; that is, the form was submitted again
+		if (snapshot == null || snapshot.user != user || snapshot.owner != Thread.currentThread()) {
+			snapshot = new UserAttributes(user);
+			snapshots.put(key, snapshot);
+		}
+		snapshot.lastUsed = System.currentTimeMillis();
+		return snapshot;
+	}
+	/**
+	 * Drops the snapshot of the task submission, so the next BLTH reads the user object again;
+	 * called when the submission ends.
+	 *
+	 * @param blthContext	the context of the BLTH
+	 */
+	public static void release(BLTHContext blthContext) {
+		snapshots.remove(blthContext.getSessionId());
+	}
+	/**
+	 * Creates a fork of the snapshot, for a BLTH that runs concurrently with others.
+	 *
+	 * @return a fork that reads through the snapshot and keeps its own values
+	 */
+	public UserAttributes fork() {
+		return new UserAttributes(user, this);
+	}
+	/**
+	 * Makes the fork the snapshot returned by {@link #forRequest(BLTHContext)} on the
+	 * current thread, until {@link #detach()} is called.
+	 */
+	public void attach() {
+		attached.set(this);
+	}
+	/**
+	 * Stops returning the fork attached to the current thread.
+	 */
+	public static void detach() {
+		attached.remove();
+	}
+	/**
+	 * @return the values set since the previous flush, in the order they were first set;
+	 * for a fork, all the values it set
+	 */
+	public synchronized Map<String, String> getChanges() {
+		return new LinkedHashMap<String, String>(pending);
+	}
+	/**
+	 * @param name	the name of the attribute
+	 * @return true if the user has the attribute, or a value was set in the snapshot
+	 */
+	public synchronized boolean contains(String name) throws Exception {
+		return read(name) != null;
+	}
+	/**
+	 * @param name	the name of the attribute
+	 * @return the value of the attribute; an empty string if the user has not the attribute
+	 */
+	public synchronized String get(String name) throws Exception {
+		String value = read(name);
+		return value == null ? "" : value;
+	}
+	/**
+	 * Sets the value of an attribute in the snapshot. The value is written to the user
+	 * object by {@link #flush()}, unless it is the value the user object already has.
+	 *
+	 * @param name	the name of the attribute
+	 * @param value	the new value
+	 */
+	public synchronized void set(String name, String value) throws Exception {
+		if (!pending.containsKey(name) && value.equals(read(name))) {
+			return;
+		}
+		values.put(name, value);
+		pending.put(name, value);
+	}
+	/**
+	 * Writes the values set since the previous flush to the user object, once per attribute.
+	 * Does nothing for a fork; its values are merged by the BLTH that created it.
+	 *
+	 * @throws Exception if the user object rejects a value; the values not written yet are kept
+	 */
+	public synchronized void flush() throws Exception {
+		if (parent != null) {
+			return;
+		}
+		Iterator<Map.Entry<String, String>> it = pending.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, String> entry = it.next();
+			user.setAttribute(entry.getKey(), entry.getValue());
+			logger.debug("Flushed " + entry.getKey() + ": " + entry.getValue());
+			it.remove();
+		}
+	}
+	/**
+	 * @return the first name (%FIRST_NAME%) in upper case, without special characters
+	 */
+	public synchronized String getNormalizedFirstName() throws Exception {
+		if (firstName == null) {
+			firstName = normalizeFirstName(get("%FIRST_NAME%"));
+		}
+		return firstName;
+	}
+	/**
+	 * @return the last name (%LAST_NAME%) in upper case, without the al- and bin- prefixes,
+	 * the I to V, JR and SR suffixes, and special characters
+	 */
+	public synchronized String getNormalizedLastName() throws Exception {
+		if (lastName == null) {
+			lastName = normalizeLastName(get("%LAST_NAME%"));
+		}
+		return lastName;
+	}
+	/**
+	 * @param firstName	a first name
+	 * @return the first name in upper case, without special characters
+	 */
+	public static String normalizeFirstName(String firstName) {
+		// remove special characters from first and last name
+		String nonSpecialChars = "[^A-Z]";
+		return firstName.toUpperCase().replaceAll(nonSpecialChars, "");
+	}
+	/**
+	 * @param lastName	a last name
+	 * @return the last name in upper case, without prefixes, suffixes and special characters
+	 */
+	public static String normalizeLastName(String lastName) {
+		String nonSpecialChars = "[^A-Z]";
+		String remSuffix1 = "^AL-"; // remove arabic name prefix al-
+		String remSuffix2 = "^BIN-"; // remove arabic name prefix bin-
+		String remSuffix3 = "\\sI$"; // remove suffix I
+		String remSuffix4 = "\\sII$"; // remove suffix II
+		String remSuffix5 = "\\sIII$"; // remove suffix III
+		String remSuffix6 = "\\sIV$"; // remove suffix IV
+		String remSuffix7 = "\\sV$"; // remove suffix V
+		String remSuffix8 = "\\sJR$"; // remove suffix JR
+		String remSuffix9 = "\\sSR$"; // remove suffix SR
+		lastName = lastName.toUpperCase().replaceAll(remSuffix1, ""); // Remove al- from name
+		lastName = lastName.toUpperCase().replaceAll(remSuffix2, ""); // Remove bin- from name
+		lastName = lastName.toUpperCase().replaceAll(remSuffix3, ""); // remove suffix I
+		lastName = lastName.toUpperCase().replaceAll(remSuffix4, ""); // remove suffix II
+		lastName = lastName.toUpperCase().replaceAll(remSuffix5, ""); // remove suffix III
+		lastName = lastName.toUpperCase().replaceAll(remSuffix6, ""); // remove suffix IV
+		lastName = lastName.toUpperCase().replaceAll(remSuffix7, ""); // remove suffix V
+		lastName = lastName.toUpperCase().replaceAll(remSuffix8, ""); // remove suffix Jr
+		lastName = lastName.toUpperCase().replaceAll(remSuffix9, ""); // remove suffix Sr
+		return lastName.toUpperCase().replaceAll(nonSpecialChars, "");
+	}
+
+	// The value from the snapshot, reading the user object the first time; null if absent
+	private String read(String name) throws Exception {
+		if (values.containsKey(name)) {
+			return values.get(name);
+		}
+		if (parent != null) {
+			// Not kept, so a fork sees the values merged in the snapshot after it was created
+			synchronized (parent) {
+				return parent.read(name);
+			}
+		}
+		String value = user.containsAttribute(name) ? user.getAttribute(name) : null;
+		values.put(name, value);
+		return value;
+	}
+
+	private boolean isExpired() {
+		return System.currentTimeMillis() - lastUsed > TTL;
+	}
+
+	// Drops the snapshots of the submissions that are done
+	private static void sweep() {
+		Iterator<UserAttributes> it = snapshots.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().isExpired()) {
+				it.remove();
+			}
+		}
+	}
+}
@@ -0,0 +1,216 @@
+package org.fasttrack.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.fasttrack.util.Tracer.Span;
+/**
+ * Background warm-up of the fasttrack components after a CA Identity Manager restart,
+ * so the first form submissions do not pay for the cold costs: loading the settings,
+ * decrypting the passwords, the TLS handshakes and binds, and the first lookups.
+ * <p>
+ * The components submit their warm-up tasks from their init() methods when the WARMUP
+ * property is set. The tasks run in parallel on daemon threads, each once per process
+ * whatever the number of components submitting it, and each within a {@link Deadline}.
+ * A component may wait for the warm-up for a limited time with {@link #await(long)};
+ * the startup of CA Identity Manager is never held longer, whether the tasks are done
+ * or not.
+ * <p>
+ * {@link #isReady()} tells whether all the tasks submitted so far are done, and
+ * {@link #getTimings()} how long each took, for monitoring and load tests.
+ * <h3>System Properties</h3>
+ * <ul>
+ * <li><b>fasttrack.warmup.budget</b> - Milliseconds allowed to each warm-up task. Default is 60000.
+ * <li><b>fasttrack.warmup.connections</b> - Connections opened per LDAP environment. Default is 2.
+ * </ul>
+ *
+ * @author      Lester Rivera
+ * @version     %I%, %G%
+ * @since       CA Identity Manager 12.0 CR7
+ * @see org.fasttrack.util.LDAPUtils#warmUp(String, int)
+ */
+public final class Warmup {
+	private static final Log logger = LogFactory.getLog(Warmup.class);
+
+	/** The time allowed to each warm-up task, in milliseconds */
+	public static final long BUDGET = Long.getLong("fasttrack.warmup.budget", 60000L);
+	/** The connections opened per LDAP environment */
+	public static final int CONNECTIONS = Integer.getInteger("fasttrack.warmup.connections", 2);
+
+	private static final AtomicInteger threadNumber = new AtomicInteger();
+	private static final ExecutorService pool = Executors.newCachedThreadPool(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "Warmup-" + threadNumber.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	// Tasks by name, in the order submitted
+	private static final Map<String, Task> tasks = new LinkedHashMap<String, Task>();
+	private static boolean ldapSubmitted = false;
+
+	private Warmup() {
+	}
+	/**
+	 * Runs a warm-up task in the background, unless a task of the same name was submitted before.
+	 *
+	 * @param name	the name of the task; for example, ldap:ADQuery
+	 * @param work	the warm-up work
+	 * @return true if the task is submitted, false if it was submitted before
+	 */
+	public static boolean submit(String name, Callable<?> work) {
+		final Task task = new Task(name, work);
+		synchronized (tasks) {
+			if (tasks.containsKey(name)) {
+				return false;
+			}
+			tasks.put(name, task);
+		}
+		pool.execute(new Runnable() {
+			public void run() {
+				task.run();
+			}
+		});
+		return true;
+	}
+	/**
+	 * Opens the first connections to each LDAP environment of the ldap-target.properties
+	 * file in the background, once per process.
+	 */
+	public static void ldap() {
+		synchronized (tasks) {
+			if (ldapSubmitted) {
+				return;
+			}
+			ldapSubmitted = true;
+		}
+		LDAPUtils ldap = new LDAPUtils();
+		for (final String env : ldap.getEnvironments()) {
+			submit("ldap:" + env, new Callable<Integer>() {
+				public Integer call() throws Exception {
+					return new LDAPUtils().warmUp(env, CONNECTIONS);
+				}
+			});
+		}
+	}
+	/**
+	 * Waits for the tasks submitted so far, for no longer than the limit.
+	 *
+	 * @param limit	the time to wait in milliseconds; 0 not to wait
+	 * @return true if all the tasks are done
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public static boolean await(long limit) throws InterruptedException {
+		long expires = System.currentTimeMillis() + limit;
+		for (Task task : snapshot()) {
+			long remaining = expires - System.currentTimeMillis();
+			if (task.done.getCount() > 0 && (remaining <= 0 || !task.done.await(remaining, TimeUnit.MILLISECONDS))) {
+				logger.info("Warm-up not complete after " + limit + " ms; continuing in the background.");
+				return false;
+			}
+		}
+		return true;
+	}
+	/**
+	 * Reads the WARMUP_WAIT property of a handler.
+	 *
+	 * @param value	the property value; may be null
+	 * @return the time to wait in milliseconds; 0 if the value is not set or not a number
+	 */
+	public static long parseWait(String value) {
+		if (value == null || value.trim().isEmpty()) {
+			return 0;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException ex) {
+			logger.warn("Invalid WARMUP_WAIT value: " + value);
+			return 0;
+		}
+	}
+	/**
+	 * @return true if all the tasks submitted so far are done, whether they succeeded or not
+	 */
+	public static boolean isReady() {
+		for (Task task : snapshot()) {
+			if (task.done.getCount() > 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+	/**
+	 * @return the time taken by each task that is done, in milliseconds, by task name in the order submitted
+	 */
+	public static Map<String, Long> getTimings() {
+		Map<String, Long> timings = new LinkedHashMap<String, Long>();
+		for (Task task : snapshot()) {
+			if (task.done.getCount() == 0) {
+				timings.put(task.name, task.elapsed);
+			}
+		}
+		return timings;
+	}
+	/**
+	 * @return the names of the tasks that failed
+	 */
+	public static List<String> getFailures() {
+		List<String> failures = new ArrayList<String>();
+		for (Task task : snapshot()) {
+			if (task.error != null) {
+				failures.add(task.name);
+			}
+		}
+		return failures;
+	}
+
+	private static List<Task> snapshot() {
+		synchronized (tasks) {
+			return new ArrayList<Task>(tasks.values());
+		}
+	}
+
+	private static class Task {
+		final String name;
+		final Callable<?> work;
+		final CountDownLatch done = new CountDownLatch(1);
+		volatile long elapsed;
+		volatile Throwable error;
+
+		Task(String name, Callable<?> work) {
+			this.name = name;
+			this.work = work;
+		}
+
+		void run() {
+			long start = System.currentTimeMillis();
+			Span span = Tracer.startTrace("warmup", name);
+			Deadline deadline = Deadline.start("Warmup " + name, BUDGET);
+			try {
+				Object result = work.call();
+				logger.info("Warm-up " + name + " done in " + (System.currentTimeMillis() - start) + " ms"
+						+ (result == null ? "." : ": " + result));
+			} catch (Throwable ex) {
+				error = ex;
+				span.setError(ex);
+				logger.warn("Warm-up " + name + " failed after " + (System.currentTimeMillis() - start) + " ms: " + ex.getMessage());
+			} finally {
+				deadline.end();
+				span.end();
+				elapsed = System.currentTimeMillis() - start;
+				done.countDown();
+			}
+		}
+	}
+}
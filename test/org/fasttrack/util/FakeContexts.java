@@ -0,0 +1,247 @@
+package org.fasttrack.util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
+
+import com.netegrity.imapi.BLTHContext;
+import com.netegrity.imapi.EventContext;
+import com.netegrity.imapi.UserEvent;
+import com.netegrity.llsdk6.imsapi.managedobject.ProvisioningRole;
+import com.netegrity.llsdk6.imsapi.managedobject.User;
+import com.netegrity.llsdk6.imsapi.provider.ProvisioningRoleProvider;
+/**
+ * In-memory stand-ins for the CA Identity Manager objects handed to the BLTHs and the
+ * Event Listeners, so the {@link LoadDriver} can run the real handlers outside of a task
+ * submission.
+ * <p>
+ * The fakes are dynamic proxies of the API interfaces. Only the calls made by the handlers
+ * of this project are implemented; any other call returns null, false or 0. The user keeps
+ * its attributes and Provisioning Roles in memory, and the event context records the events
+ * generated by the listener instead of running them.
+ *
+ * @author      Lester Rivera
+ * @version     %I%, %G%
+ * @since       CA Identity Manager 12.0 CR7
+ * @see org.fasttrack.util.LoadDriver
+ */
+public class FakeContexts {
+	private FakeContexts() {
+	}
+	/**
+	 * A user with the given attributes and Provisioning Roles. The attribute %USER_ID%, if
+	 * set, is the friendly and unique name of the user.
+	 *
+	 * @param attributes	the attributes of the user; updated by setAttribute
+	 * @param roles			the names of the Provisioning Roles of the user; updated by makeRoleMember
+	 * @return the user
+	 */
+	public static User user(final Map<String, String> attributes, final Set<String> roles) {
+		return proxy(User.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				String name = method.getName();
+				synchronized (attributes) {
+					if (name.equals("getAttribute")) {
+						return attributes.get(args[0]);
+					} else if (name.equals("containsAttribute")) {
+						return attributes.containsKey(args[0]);
+					} else if (name.equals("setAttribute")) {
+						attributes.put((String) args[0], (String) args[1]);
+						return null;
+					} else if (name.equals("getFriendlyName") || name.equals("getUniqueName")) {
+						return attributes.get("%USER_ID%");
+					}
+				}
+				synchronized (roles) {
+					if (name.equals("isRoleMember")) {
+						return roles.contains(((ProvisioningRole) args[0]).getUniqueName());
+					} else if (name.equals("getProvisioningRolesMember")) {
+						Vector<ProvisioningRole> member = new Vector<ProvisioningRole>();
+						for (String role : roles) {
+							member.add(role(role, "FUNCTIONAL"));
+						}
+						return member;
+					} else if (name.equals("makeRoleMember")) {
+						roles.add(((ProvisioningRole) args[0]).getUniqueName());
+						return null;
+					}
+				}
+				if (name.equals("generateTemporaryPassword")) {
+					return "Temp" + Long.toHexString(System.nanoTime()) + "!";
+				}
+				return defaultValue(proxy, method, args);
+			}
+		});
+	}
+	/**
+	 * A Provisioning Role that exists.
+	 *
+	 * @param name	the friendly and unique name of the role
+	 * @param type	the role type kept in its custom field; for example, FUNCTIONAL
+	 * @return the role
+	 */
+	public static ProvisioningRole role(final String name, final String type) {
+		return proxy(ProvisioningRole.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				String called = method.getName();
+				if (called.equals("getFriendlyName") || called.equals("getUniqueName")) {
+					return name;
+				} else if (called.equals("exists")) {
+					return true;
+				} else if (called.equals("getCustomField")) {
+					return type;
+				}
+				return defaultValue(proxy, method, args);
+			}
+		});
+	}
+	/**
+	 * A Provisioning Role provider where every role exists, with the FUNCTIONAL type.
+	 *
+	 * @return the provider
+	 */
+	public static ProvisioningRoleProvider roleProvider() {
+		return proxy(ProvisioningRoleProvider.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if (method.getName().equals("findProvisioningRole")) {
+					return role((String) args[0], "FUNCTIONAL");
+				}
+				return defaultValue(proxy, method, args);
+			}
+		});
+	}
+	/**
+	 * The context of a BLTH for a task submission.
+	 *
+	 * @param sessionId	the task session ID
+	 * @param user		the user of the task
+	 * @return the context
+	 */
+	public static BLTHContext blthContext(final String sessionId, final User user) {
+		final ProvisioningRoleProvider provider = roleProvider();
+		return proxy(BLTHContext.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				String name = method.getName();
+				if (name.equals("getUser") || name.equals("getAdministrator")) {
+					return user;
+				} else if (name.equals("getSessionId")) {
+					return sessionId;
+				} else if (name.equals("getProvisioningRoleProvider")) {
+					return provider;
+				}
+				return defaultValue(proxy, method, args);
+			}
+		});
+	}
+	/**
+	 * The context of an event on a user, which records the events generated by the listener.
+	 *
+	 * @param eventName	the name of the event; for example, IMEventName.MODIFYUSEREVENT
+	 * @param user		the user of the event
+	 * @return the context
+	 */
+	public static RecordingEventContext eventContext(String eventName, User user) {
+		return new RecordingEventContext(eventName, user);
+	}
+
+	/**
+	 * An event context that records the events generated through it.
+	 */
+	public static class RecordingEventContext {
+		private final List<String> generated = Collections.synchronizedList(new ArrayList<String>());
+		private final EventContext context;
+
+		RecordingEventContext(final String eventName, final User user) {
+			final ProvisioningRoleProvider provider = roleProvider();
+			final UserEvent event = proxy(UserEvent.class, new InvocationHandler() {
+				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+					if (method.getName().equals("getUser")) {
+						return user;
+					} else if (method.getName().equals("getEventName")) {
+						return eventName;
+					}
+					return defaultValue(proxy, method, args);
+				}
+			});
+			context = proxy(EventContext.class, new InvocationHandler() {
+				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+					String name = method.getName();
+					if (name.equals("getEvent")) {
+						return event;
+					} else if (name.equals("getEventName")) {
+						return eventName;
+					} else if (name.equals("getProvisioningRoleProvider")) {
+						return provider;
+					} else if (name.equals("generateEvent")) {
+						// The event name and the role of an Assign or Revoke ProvisioningRoleEvent
+						String role = args[2] instanceof ProvisioningRole ? ((ProvisioningRole) args[2]).getUniqueName() : String.valueOf(args[2]);
+						String event = (String) args[0];
+						generated.add(event.substring(event.lastIndexOf('.') + 1) + ":" + role);
+						return null;
+					}
+					return defaultValue(proxy, method, args);
+				}
+			});
+		}
+		/** @return the context to hand to the listener */
+		public EventContext getContext() { return context; }
+		/**
+		 * @param eventName	the short name of the generated event; for example, AssignProvisioningRoleEvent
+		 * @return the names of the roles of the events generated with that name, in order
+		 */
+		public Set<String> getRoles(String eventName) {
+			Set<String> roles = new LinkedHashSet<String>();
+			synchronized (generated) {
+				for (String entry : generated) {
+					if (entry.startsWith(eventName + ":")) {
+						roles.add(entry.substring(eventName.length() + 1));
+					}
+				}
+			}
+			return roles;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+		return (T) Proxy.newProxyInstance(FakeContexts.class.getClassLoader(), new Class<?>[] {type}, handler);
+	}
+
+	// The Object methods, and null, false or 0 for the calls the fakes do not implement
+	private static Object defaultValue(Object proxy, Method method, Object[] args) {
+		String name = method.getName();
+		if (name.equals("equals")) {
+			return proxy == args[0];
+		} else if (name.equals("hashCode")) {
+			return System.identityHashCode(proxy);
+		} else if (name.equals("toString")) {
+			return "Fake" + proxy.getClass().getInterfaces()[0].getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+		}
+		Class<?> type = method.getReturnType();
+		if (type == boolean.class) {
+			return false;
+		} else if (type == int.class) {
+			return 0;
+		} else if (type == long.class) {
+			return 0L;
+		} else if (type == double.class) {
+			return 0.0;
+		} else if (type == float.class) {
+			return 0.0f;
+		} else if (type == short.class) {
+			return (short) 0;
+		} else if (type == byte.class) {
+			return (byte) 0;
+		} else if (type == char.class) {
+			return (char) 0;
+		}
+		return null;
+	}
+}
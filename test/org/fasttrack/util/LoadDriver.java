@@ -0,0 +1,442 @@
+package org.fasttrack.util;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.fasttrack.util.FakeContexts.RecordingEventContext;
+
+import com.netegrity.imapi.BLTHAdapter;
+import com.netegrity.imapi.BLTHContext;
+import com.netegrity.imapi.IMEventName;
+import com.netegrity.llsdk6.imsapi.managedobject.User;
+/**
+ * A load driver to measure the components outside of a CA Identity Manager task submission.
+ * <p>
+ * A workflow, the unit of work of one user submission, is run a number of times by a given
+ * number of concurrent threads. The concurrency is ramped up level by level, and each level
+ * is reported with its throughput, latency percentiles, errors and the number of LDAP
+ * operations sent. Comparing the levels shows where a component stops scaling. The main
+ * method exits with status 1 when any request failed.
+ * <p>
+ * The driver, {@link FakeContexts} and {@link RoleResolutionBenchmark} are in the test source
+ * root, so they are not packaged with the components; they run with the test classes and the
+ * CA Identity Manager libraries on the classpath.
+ * <p>
+ * The main method drives the utility classes against the directories configured in the
+ * ldap-target.properties file, so it should point at a test or staging environment:
+ * <pre>
+ * java org.fasttrack.util.LoadDriver query 1,4,16 1000 ADQuery "(sAMAccountName=JSMITH)"
+ * java org.fasttrack.util.LoadDriver unique 1,4,16 1000 ADQuery,PROVQuery:eTCustomField08 LOADTEST
+ * java org.fasttrack.util.LoadDriver cid 1,4,16 1000000 4
+ * java org.fasttrack.util.LoadDriver password 1,4,16 100000 12
+ * </pre>
+ * <p>
+ * The handler and listener scenarios run the real BLTHs and the role Event Listener on the
+ * in-memory users and contexts of {@link FakeContexts}, with their properties read from a file
+ * (- for none). The attributes of each user are given as name=value, where {n} is replaced by
+ * the request number:
+ * <pre>
+ * java org.fasttrack.util.LoadDriver handler 1,4,16 10000 org.fasttrack.blth.FormatFullname fullname.properties "%FIRST_NAME%=John{n}" "%LAST_NAME%=Doe"
+ * java org.fasttrack.util.LoadDriver listener 1,4,16 10000 listener.properties "Role A,Role B,Role C"
+ * </pre>
+ * The crosstalk scenario checks that the users of concurrent and repeated submissions never
+ * see each other's values: each request submits two users in turn through one shared BLTH,
+ * then rejects both forms and submits them again with other values, and checks every result.
+ * <pre>
+ * java org.fasttrack.util.LoadDriver crosstalk 1,4,16 10000
+ * </pre>
+ * The bulkhead scenario runs the {@link DirectoryBulkhead} of the default settings against a
+ * simulated directory, which serves a number of calls at once and queues the others. Each
+ * call takes from half to twice the service time, and the given percentage of the calls fail
+ * at once. A request fails when the bulkhead rejects it, so the levels up to the capacity of
+ * the directory plus the queue of the bulkhead must not fail; the state of the bulkhead is
+ * printed after the levels. For a capacity of 16, a service time of 10 ms and 5% of failed calls:
+ * <pre>
+ * java org.fasttrack.util.LoadDriver bulkhead 4,16,64 2000 16 10 5
+ * </pre>
+ *
+ * @author      Lester Rivera
+ * @version     %I%, %G%
+ * @since       CA Identity Manager 12.0 CR7
+ */
+public class LoadDriver {
+	private static final Log logger = LogFactory.getLog(LoadDriver.class);
+
+	private final String name;
+	private final Workflow workflow;
+	/**
+	 * The unit of work of one user submission.
+	 */
+	public interface Workflow {
+		/**
+		 * @param request	the sequence number of the request within the level, from 0
+		 * @throws Exception if the request fails; the failure is counted, not propagated
+		 */
+		void run(int request) throws Exception;
+	}
+	/**
+	 * @param name		the name of the scenario, for the reports
+	 * @param workflow	the work to run for each request
+	 */
+	public LoadDriver(String name, Workflow workflow) {
+		this.name = name;
+		this.workflow = workflow;
+	}
+	/**
+	 * Runs the workflow at each concurrency level, one level after the other.
+	 *
+	 * @param levels	the number of concurrent threads of each level
+	 * @param requests	the number of requests per level
+	 * @return the report of each level
+	 */
+	public List<Report> ramp(int[] levels, int requests) throws InterruptedException {
+		List<Report> reports = new ArrayList<Report>(levels.length);
+		for (int concurrency : levels) {
+			Report report = run(concurrency, requests);
+			logger.info(report);
+			String bulkheads = DirectoryBulkhead.report();
+			if (!bulkheads.isEmpty()) {
+				logger.info("Directory bulkheads after the level:\n" + bulkheads);
+			}
+			reports.add(report);
+		}
+		return reports;
+	}
+	/**
+	 * Runs the workflow with a number of concurrent threads.
+	 *
+	 * @param concurrency	the number of threads
+	 * @param requests		the number of requests, shared by the threads
+	 * @return the report of the run
+	 */
+	public Report run(int concurrency, final int requests) throws InterruptedException {
+		final long[] latencies = new long[requests];
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicInteger errors = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(concurrency);
+		for (int i = 0; i < concurrency; i++) {
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					try {
+						start.await();
+						int request;
+						while ((request = next.getAndIncrement()) < requests) {
+							long begin = System.nanoTime();
+							try {
+								workflow.run(request);
+							} catch (Exception ex) {
+								errors.incrementAndGet();
+								logger.debug("Request " + request + " failed: " + ex.getMessage());
+							}
+							latencies[request] = System.nanoTime() - begin;
+						}
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+					} finally {
+						done.countDown();
+					}
+				}
+			}, "LoadDriver-" + (i + 1));
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		long operations = LDAPUtils.getOperationCount();
+		long begin = System.nanoTime();
+		start.countDown();
+		done.await();
+		long elapsed = System.nanoTime() - begin;
+		Arrays.sort(latencies);
+		return new Report(name, concurrency, latencies, errors.get(), elapsed,
+				LDAPUtils.getOperationCount() - operations);
+	}
+
+	/**
+	 * The measures of one concurrency level.
+	 */
+	public static class Report {
+		private final String name;
+		private final int concurrency;
+		private final long[] latencies;
+		private final int errors;
+		private final long elapsed;
+		private final long operations;
+
+		Report(String name, int concurrency, long[] latencies, int errors, long elapsed, long operations) {
+			this.name = name;
+			this.concurrency = concurrency;
+			this.latencies = latencies;
+			this.errors = errors;
+			this.elapsed = elapsed;
+			this.operations = operations;
+		}
+		/** @return the number of concurrent threads */
+		public int getConcurrency() { return concurrency; }
+		/** @return the number of requests run */
+		public int getRequests() { return latencies.length; }
+		/** @return the number of requests that failed */
+		public int getErrors() { return errors; }
+		/** @return the number of LDAP operations sent during the run */
+		public long getDirectoryOperations() { return operations; }
+		/** @return the requests completed per second */
+		public double getThroughput() {
+			return elapsed == 0 ? 0 : latencies.length * 1000000000.0 / elapsed;
+		}
+		/**
+		 * @param percentile	the percentile, from 0 to 100; for example, 99 for the p99
+		 * @return the latency in milliseconds under which the percentage of the requests completed
+		 */
+		public double getLatencyMillis(double percentile) {
+			if (latencies.length == 0) {
+				return 0;
+			}
+			int rank = (int) Math.ceil(percentile / 100 * latencies.length) - 1;
+			return latencies[Math.min(Math.max(rank, 0), latencies.length - 1)] / 1000000.0;
+		}
+
+		public String toString() {
+			return String.format("%s concurrency=%d requests=%d errors=%d throughput=%.1f/s p50=%.2fms p90=%.2fms p99=%.2fms max=%.2fms ldapOps=%d (%.2f/request)",
+					name, concurrency, latencies.length, errors, getThroughput(),
+					getLatencyMillis(50), getLatencyMillis(90), getLatencyMillis(99), getLatencyMillis(100),
+					operations, latencies.length == 0 ? 0.0 : (double) operations / latencies.length);
+		}
+	}
+
+	/**
+	 * Runs a scenario from the command line.
+	 * Arguments: scenario, comma-delimited concurrency levels, requests per level, and the
+	 * arguments of the scenario.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("Usage: LoadDriver query|unique|cid|password|handler|listener|crosstalk|bulkhead <levels> <requests> [arguments]");
+			System.exit(1);
+		}
+		String scenario = args[0];
+		String[] values = args[1].split(",");
+		int[] levels = new int[values.length];
+		for (int i = 0; i < values.length; i++) {
+			levels[i] = Integer.parseInt(values[i].trim());
+		}
+		int requests = Integer.parseInt(args[2]);
+
+		Workflow workflow;
+		if (scenario.equals("query")) {
+			// LDAP search of one entry; arguments: environment, filter
+			final String env = args[3];
+			final String filter = args[4];
+			// One instance for all the requests, as the handlers keep it
+			final LDAPUtils ldap = new LDAPUtils();
+			workflow = new Workflow() {
+				public void run(int request) {
+					ldap.Query(env, filter, new String[]{"cn"});
+				}
+			};
+		} else if (scenario.equals("unique")) {
+			// Parallel uniqueness check of a new ID; arguments: directories, ID prefix
+			final DirectoryUniquenessChecker checker = new DirectoryUniquenessChecker(args[3], "sAMAccountName", 10000);
+			final String prefix = args[4];
+			workflow = new Workflow() {
+				public void run(int request) throws Exception {
+					checker.check(prefix + request);
+				}
+			};
+		} else if (scenario.equals("cid")) {
+			// Coordination-free CID from several nodes at once, each request on the next node;
+			// argument: number of nodes. A duplicate ID fails the request.
+			final CIDGenerator[] nodes = new CIDGenerator[Integer.parseInt(args[3])];
+			for (int i = 0; i < nodes.length; i++) {
+				nodes[i] = new CIDGenerator(i);
+			}
+			final Set<Long> generated = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+			workflow = new Workflow() {
+				public void run(int request) {
+					long id = nodes[request % nodes.length].nextId();
+					if (!generated.add(id)) {
+						throw new IllegalStateException("Duplicate CID " + id);
+					}
+				}
+			};
+		} else if (scenario.equals("handler")) {
+			// A BLTH on a fake user; arguments: BLTH class, properties file or -, and the
+			// attributes of the user as name=value, where {n} is replaced by the request number
+			final BLTHAdapter handler = (BLTHAdapter) Class.forName(args[3]).getDeclaredConstructor().newInstance();
+			handler.init(properties(args[4]));
+			final String[] attributes = Arrays.copyOfRange(args, 5, args.length);
+			workflow = new Workflow() {
+				public void run(int request) throws Exception {
+					Map<String, String> values = new HashMap<String, String>();
+					for (String attribute : attributes) {
+						int idx = attribute.indexOf('=');
+						values.put(attribute.substring(0, idx), attribute.substring(idx + 1).replace("{n}", String.valueOf(request)));
+					}
+					User user = FakeContexts.user(values, new HashSet<String>());
+					handler.handleValidation(FakeContexts.blthContext("LoadDriver-" + request, user));
+				}
+			};
+		} else if (scenario.equals("listener")) {
+			// The role listener on a ModifyUserEvent of a user who holds one functional role that
+			// is no longer listed; arguments: properties file or -, Functional Roles (eTCustomField52).
+			// A request fails unless the listed roles, and the base role, are assigned and the
+			// previous role is revoked.
+			Hashtable<Object, Object> properties = properties(args[3]);
+			// The listener requires the SMTP and base role settings; empty ones disable the emails
+			// and the base role
+			for (String name : new String[]{"SMTP_SERVER", "TO_EMAIL", "FROM_EMAIL", "BASE_ROLE"}) {
+				if (!properties.containsKey(name)) {
+					properties.put(name, "");
+				}
+			}
+			final org.fasttrack.evt.AssignProvisioningRole listener = new org.fasttrack.evt.AssignProvisioningRole();
+			listener.init(properties);
+			final String funcRoles = args[4];
+			final Set<String> expected = new HashSet<String>(ProvisioningRoleResolver.parseRoleNames(funcRoles));
+			String baseRole = (String) properties.get("BASE_ROLE");
+			if (baseRole != null && !baseRole.trim().isEmpty()) {
+				expected.add(baseRole.trim());
+			}
+			workflow = new Workflow() {
+				public void run(int request) throws Exception {
+					Map<String, String> values = new HashMap<String, String>();
+					values.put("%USER_ID%", "LOADTEST" + request);
+					values.put("eTCustomField52", funcRoles);
+					Set<String> roles = new HashSet<String>(Collections.singleton("LoadDriver Previous Role"));
+					RecordingEventContext event = FakeContexts.eventContext(IMEventName.MODIFYUSEREVENT, FakeContexts.user(values, roles));
+					listener.after(event.getContext());
+					Set<String> assigned = event.getRoles("AssignProvisioningRoleEvent");
+					Set<String> revoked = event.getRoles("RevokeProvisioningRoleEvent");
+					if (!assigned.equals(expected) || !revoked.equals(roles)) {
+						throw new IllegalStateException("User LOADTEST" + request + " assigned " + assigned + " and revoked " + revoked);
+					}
+				}
+			};
+		} else if (scenario.equals("crosstalk")) {
+			// Two users submitted in turn, each twice in its own session, the second time with
+			// another last name, through one FormatFullname shared by all the threads. A request
+			// fails if a fullname is not made of the names of its own user and submission.
+			Hashtable<Object, Object> properties = new Hashtable<Object, Object>();
+			properties.put("FORMAT", "<<first>> <<last>>");
+			final BLTHAdapter handler = new org.fasttrack.blth.FormatFullname();
+			handler.init(properties);
+			workflow = new Workflow() {
+				public void run(int request) throws Exception {
+					Map<String, String>[] values = new Map[2];
+					BLTHContext[] contexts = new BLTHContext[2];
+					for (int i = 0; i < 2; i++) {
+						String id = request + "-" + i;
+						values[i] = Collections.synchronizedMap(new HashMap<String, String>());
+						values[i].put("%FIRST_NAME%", "First" + id);
+						values[i].put("%LAST_NAME%", "Last" + id);
+						contexts[i] = FakeContexts.blthContext("crosstalk-" + id, FakeContexts.user(values[i], new HashSet<String>()));
+					}
+					for (int i = 0; i < 2; i++) {
+						handler.handleValidation(contexts[i]);
+						expect(values[i], "First" + request + "-" + i + " Last" + request + "-" + i);
+					}
+					// The forms are rejected, corrected and submitted again in the same sessions;
+					// the handler that rejects a form releases its snapshot
+					for (int i = 0; i < 2; i++) {
+						UserAttributes.release(contexts[i]);
+						values[i].put("%LAST_NAME%", "Changed" + request + "-" + i);
+						values[i].put("%FULL_NAME%", "default");
+					}
+					for (int i = 0; i < 2; i++) {
+						handler.handleValidation(contexts[i]);
+						expect(values[i], "First" + request + "-" + i + " Changed" + request + "-" + i);
+					}
+				}
+				private void expect(Map<String, String> values, String fullName) {
+					if (!fullName.equals(values.get("%FULL_NAME%"))) {
+						throw new IllegalStateException("Expected fullname " + fullName + " but got " + values.get("%FULL_NAME%"));
+					}
+				}
+			};
+		} else if (scenario.equals("bulkhead")) {
+			// The bulkhead in front of a simulated directory; arguments: calls served at once,
+			// service time in milliseconds, percentage of failed calls
+			Properties settings = new Properties();
+			settings.setProperty("bulkhead", "true");
+			final DirectoryBulkhead bulkhead = DirectoryBulkhead.forEnvironment("SIMULATED", settings);
+			final Semaphore servers = new Semaphore(Integer.parseInt(args[3]), true);
+			final long service = Long.parseLong(args[4]) * 1000000L;
+			final int failures = Integer.parseInt(args[5]);
+			workflow = new Workflow() {
+				public void run(int request) throws InterruptedException {
+					DirectoryBulkhead.Permit permit = bulkhead.acquire("simulated.search");
+					try {
+						ThreadLocalRandom random = ThreadLocalRandom.current();
+						if (random.nextInt(100) < failures) {
+							// An error comes back at once, and the caller handles it
+							permit.failed();
+							return;
+						}
+						servers.acquire();
+						try {
+							long nanos = service / 2 + (long) (random.nextDouble() * service * 3 / 2);
+							Thread.sleep(nanos / 1000000L, (int) (nanos % 1000000L));
+						} finally {
+							servers.release();
+						}
+					} finally {
+						permit.release();
+					}
+				}
+			};
+		} else if (scenario.equals("password")) {
+			// Password from the pre-filled pool; argument: length
+			final PasswordGenerator generator = new PasswordGenerator(Integer.parseInt(args[3]), 1, 1, 1, 1, "", 100);
+			workflow = new Workflow() {
+				public void run(int request) {
+					generator.nextPassword();
+				}
+			};
+		} else {
+			System.err.println("Unknown scenario: " + scenario);
+			System.exit(1);
+			return;
+		}
+
+		int errors = 0;
+		for (Report report : new LoadDriver(scenario, workflow).ramp(levels, requests)) {
+			System.out.println(report);
+			errors += report.getErrors();
+		}
+		System.out.print(DirectoryBulkhead.report());
+		// A failed request fails the run, so the scenarios can be used as checks
+		if (errors > 0) {
+			System.exit(1);
+		}
+	}
+	// The BLTH or Event Listener properties in a file; none for -
+	private static Hashtable<Object, Object> properties(String file) throws IOException {
+		Properties properties = new Properties();
+		if (!file.equals("-")) {
+			InputStream in = new FileInputStream(file);
+			try {
+				properties.load(in);
+			} finally {
+				in.close();
+			}
+		}
+		return properties;
+	}
+}
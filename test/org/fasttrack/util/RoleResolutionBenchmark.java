@@ -0,0 +1,144 @@
+package org.fasttrack.util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.netegrity.llsdk6.imsapi.managedobject.ProvisioningRole;
+import com.netegrity.llsdk6.imsapi.provider.ProvisioningRoleProvider;
+/**
+ * A benchmark of the Provisioning Role lookups of the AssignProvisioningRole Event Listener,
+ * as the list of Functional Roles of a user grows.
+ * <p>
+ * The lookups go to a simulated Provisioning Role provider where each findProvisioningRole()
+ * call takes a fixed time, so the benchmark runs without CA Identity Manager and the results
+ * only depend on the number of roles and of lookup threads. For each list size, the lookups
+ * are run one at a time and then with the given number of threads, and the latency of
+ * resolving the whole list is reported by the {@link LoadDriver}. One at a time, the latency
+ * grows with each role; in parallel, it grows with each ROLE_LOOKUP_THREADS roles:
+ * <pre>
+ * java org.fasttrack.util.RoleResolutionBenchmark 1,5,10,25,50 4,16 20 50
+ * </pre>
+ * The arguments are the list sizes, the numbers of threads, the time of a lookup in
+ * milliseconds and the number of lists resolved per run.
+ *
+ * @author      Lester Rivera
+ * @version     %I%, %G%
+ * @since       CA Identity Manager 12.0 CR7
+ * @see org.fasttrack.util.ProvisioningRoleResolver
+ */
+public class RoleResolutionBenchmark {
+	/**
+	 * A Provisioning Role provider whose lookups take a fixed time, and find every role.
+	 *
+	 * @param latency	the time of a lookup in milliseconds
+	 * @return the provider
+	 */
+	public static ProvisioningRoleProvider simulatedProvider(final long latency) {
+		return (ProvisioningRoleProvider) Proxy.newProxyInstance(RoleResolutionBenchmark.class.getClassLoader(),
+				new Class<?>[]{ProvisioningRoleProvider.class}, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if (method.getName().equals("findProvisioningRole")) {
+					Thread.sleep(latency);
+					return simulatedRole((String) args[0]);
+				}
+				return defaultValue(method.getReturnType());
+			}
+		});
+	}
+
+	private static ProvisioningRole simulatedRole(final String name) {
+		return (ProvisioningRole) Proxy.newProxyInstance(RoleResolutionBenchmark.class.getClassLoader(),
+				new Class<?>[]{ProvisioningRole.class}, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				String called = method.getName();
+				if (called.equals("exists")) {
+					return Boolean.TRUE;
+				} else if (called.equals("getFriendlyName") || called.equals("getUniqueName") || called.equals("toString")) {
+					return name;
+				} else if (called.equals("hashCode")) {
+					return name.hashCode();
+				} else if (called.equals("equals")) {
+					return proxy == args[0];
+				}
+				return defaultValue(method.getReturnType());
+			}
+		});
+	}
+
+	private static Object defaultValue(Class<?> type) {
+		if (type == boolean.class) {
+			return Boolean.FALSE;
+		} else if (type == int.class) {
+			return 0;
+		} else if (type == long.class) {
+			return 0L;
+		}
+		return null;
+	}
+	/**
+	 * Resolves lists of roles of each size with each number of threads.
+	 *
+	 * @param sizes		the numbers of roles in a list
+	 * @param threads	the numbers of lookup threads to compare with one at a time
+	 * @param latency	the time of a lookup in milliseconds
+	 * @param requests	the number of lists resolved for each size and number of threads
+	 * @return the report of each run
+	 */
+	public static List<LoadDriver.Report> run(int[] sizes, int[] threads, long latency, int requests) throws InterruptedException {
+		ProvisioningRoleProvider provider = simulatedProvider(latency);
+		List<LoadDriver.Report> reports = new ArrayList<LoadDriver.Report>();
+		for (int size : sizes) {
+			List<String> names = new ArrayList<String>(size);
+			for (int i = 1; i <= size; i++) {
+				names.add("Functional Role " + i);
+			}
+			reports.add(run(provider, names, 1, requests));
+			for (int count : threads) {
+				if (count > 1) {
+					reports.add(run(provider, names, count, requests));
+				}
+			}
+		}
+		return reports;
+	}
+
+	private static LoadDriver.Report run(final ProvisioningRoleProvider provider, final List<String> names, int threads, int requests)
+			throws InterruptedException {
+		final ProvisioningRoleResolver resolver = new ProvisioningRoleResolver(threads);
+		try {
+			return new LoadDriver("roles=" + names.size() + " threads=" + threads, new LoadDriver.Workflow() {
+				public void run(int request) throws Exception {
+					resolver.resolve(provider, names);
+				}
+			}).run(1, requests);
+		} finally {
+			resolver.shutdown();
+		}
+	}
+	/**
+	 * Runs the benchmark from the command line.
+	 * Arguments: comma-delimited list sizes, comma-delimited numbers of threads, the time of
+	 * a lookup in milliseconds, and the number of lists resolved per run.
+	 */
+	public static void main(String[] args) throws Exception {
+		int[] sizes = numbers(args.length > 0 ? args[0] : "1,5,10,25,50");
+		int[] threads = numbers(args.length > 1 ? args[1] : "4,16");
+		long latency = Long.parseLong(args.length > 2 ? args[2] : "20");
+		int requests = Integer.parseInt(args.length > 3 ? args[3] : "50");
+		for (LoadDriver.Report report : run(sizes, threads, latency, requests)) {
+			System.out.println(report);
+		}
+	}
+
+	private static int[] numbers(String list) {
+		String[] values = list.split(",");
+		int[] numbers = new int[values.length];
+		for (int i = 0; i < values.length; i++) {
+			numbers[i] = Integer.parseInt(values[i].trim());
+		}
+		return numbers;
+	}
+}